@@ -40,6 +40,11 @@ if [ -d "$JRE_DIR" ]; then
             echo "🗑 Removed: bin/$tool"
         fi
     done
+
+    # The JDK's base CDS archive must survive slimming; the app archive builds on it
+    if [ ! -f "$JRE_DIR/bin/server/classes.jsa" ]; then
+        echo "⚠ No base CDS archive (bin/server/classes.jsa) — startup will not use AppCDS."
+    fi
 else
     echo "⚠ No JRE directory found at $JRE_DIR — skipping slimming."
 fi
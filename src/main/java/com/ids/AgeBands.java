@@ -0,0 +1,72 @@
+package com.ids;
+
+import java.util.Locale;
+
+/**
+ * Age band schemes used for MER-style disaggregation. Bands are given by their
+ * inclusive lower bounds; the last band is open ended.
+ */
+public final class AgeBands {
+
+    public static final AgeBands MER_FINE = new AgeBands("mer_fine",
+            new int[] { 0, 1, 5, 10, 15, 20, 25, 30, 35, 40, 45, 50, 55, 60, 65 });
+    public static final AgeBands MER_COARSE = new AgeBands("mer_coarse", new int[] { 0, 15 });
+
+    public static final String UNKNOWN_LABEL = "Unknown age";
+
+    private final String name;
+    private final int[] lowerBounds;
+    private final String[] labels;
+
+    public AgeBands(String name, int[] lowerBounds) {
+        if (lowerBounds.length == 0 || lowerBounds[0] != 0)
+            throw new IllegalArgumentException("age bands must start at 0");
+        this.name = name;
+        this.lowerBounds = lowerBounds.clone();
+        this.labels = new String[lowerBounds.length];
+        for (int i = 0; i < lowerBounds.length; i++) {
+            if (i == lowerBounds.length - 1)
+                labels[i] = lowerBounds[i] + "+";
+            else if (lowerBounds[i + 1] - lowerBounds[i] == 1)
+                labels[i] = lowerBounds[i] == 0 ? "<1" : String.valueOf(lowerBounds[i]);
+            else if (i == 0)
+                labels[i] = "<" + lowerBounds[1];
+            else
+                labels[i] = lowerBounds[i] + "-" + (lowerBounds[i + 1] - 1);
+        }
+    }
+
+    /** Looks up a built-in scheme by name; unknown names fall back to {@link #MER_FINE}. */
+    public static AgeBands byName(String name) {
+        if (name != null && MER_COARSE.name.equals(name.toLowerCase(Locale.ROOT)))
+            return MER_COARSE;
+        return MER_FINE;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return lowerBounds.length;
+    }
+
+    /** Band index for an age in whole years, or -1 for negative ages. */
+    public int indexOf(int age) {
+        if (age < 0)
+            return -1;
+        int lo = 0, hi = lowerBounds.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lowerBounds[mid] <= age)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    public String label(int index) {
+        return index < 0 || index >= labels.length ? UNKNOWN_LABEL : labels[index];
+    }
+}
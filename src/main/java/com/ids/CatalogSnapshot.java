@@ -0,0 +1,139 @@
+package com.ids;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Everything the table browser and the sources list show: data tables, deferred
+ * tables, imported sources and table statistics. Persisted as catalog.json next
+ * to converted.db so the window can be filled at startup before the database is
+ * even opened; the live catalog then replaces it from a background thread.
+ */
+public class CatalogSnapshot {
+
+    static final String FILE_NAME = "catalog.json";
+
+    final List<String> tables;
+    final List<String> deferredTables;
+    final List<String> sources;
+    final Map<String, TableStatsCatalog.TableStats> stats;
+
+    CatalogSnapshot(List<String> tables, List<String> deferredTables, List<String> sources,
+            Map<String, TableStatsCatalog.TableStats> stats) {
+        this.tables = tables;
+        this.deferredTables = deferredTables;
+        this.sources = sources;
+        this.stats = stats;
+    }
+
+    /** Reads the live catalog; cheap, as it only touches bookkeeping tables and schema metadata. */
+    public static CatalogSnapshot load(Connection conn) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (ResultSet rs = conn.getMetaData().getTables(null, null, "%", new String[] { "TABLE" })) {
+            while (rs.next()) {
+                String tableName = rs.getString("TABLE_NAME");
+                if (!MdbRecordManager.isInternalTable(tableName))
+                    tables.add(tableName);
+            }
+        }
+        List<String> deferred = MdbRecordManager.listDeferredTables(conn);
+        return new CatalogSnapshot(tables, deferred, loadSources(conn, tables), TableStatsCatalog.load(conn));
+    }
+
+    // ids_import_sources has one row per import; only databases from before it
+    // existed fall back to the DISTINCT scan of SecurityUsers
+    private static List<String> loadSources(Connection conn, List<String> tables) throws SQLException {
+        List<String> sources = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(
+                        "SELECT hfr_code, source_mdb FROM ids_import_sources ORDER BY hfr_code")) {
+            while (rs.next())
+                addSource(sources, rs.getString(1), rs.getString(2));
+        }
+        if (sources.isEmpty() && tables.contains("SecurityUsers")) {
+            try (Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery(
+                            "SELECT DISTINCT hfr_code, source_mdb FROM SecurityUsers ORDER BY hfr_code")) {
+                while (rs.next())
+                    addSource(sources, rs.getString(1), rs.getString(2));
+            }
+        }
+        return sources;
+    }
+
+    private static void addSource(List<String> sources, String hfr, String src) {
+        if (hfr != null && src != null)
+            sources.add(hfr + " [ " + src + " ] ");
+    }
+
+    /** Returns the persisted snapshot, or null when there is none or it cannot be read. */
+    public static CatalogSnapshot read(Path file) {
+        if (!Files.isRegularFile(file))
+            return null;
+        try {
+            JsonNode root = new ObjectMapper().readTree(file.toFile());
+            Map<String, TableStatsCatalog.TableStats> stats = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (JsonNode t : root.path("stats")) {
+                TableStatsCatalog.TableStats ts = new TableStatsCatalog.TableStats(t.path("table").asText());
+                ts.rows = t.path("rows").asLong();
+                t.path("rowsByFacility").fields()
+                        .forEachRemaining(e -> ts.rowsByFacility.put(e.getKey(), e.getValue().asLong()));
+                for (JsonNode c : t.path("columns"))
+                    ts.columns.add(new TableStatsCatalog.ColumnStats(c.path("column").asText(),
+                            c.path("nullFraction").asDouble(), c.path("approxDistinct").asLong(),
+                            c.path("stale").asBoolean()));
+                stats.put(ts.table, ts);
+            }
+            return new CatalogSnapshot(strings(root.path("tables")), strings(root.path("deferredTables")),
+                    strings(root.path("sources")), stats);
+        } catch (IOException | RuntimeException e) {
+            // The live catalog replaces it moments later; a torn or stale cache is not worth a stack trace
+            System.err.println("Ignoring unreadable " + FILE_NAME + ": " + e.getClass().getSimpleName());
+            return null;
+        }
+    }
+
+    private static List<String> strings(JsonNode array) {
+        List<String> out = new ArrayList<>();
+        for (JsonNode n : array)
+            out.add(n.asText());
+        return out;
+    }
+
+    /** Writes the snapshot through a temp file so a crash never leaves half a file. */
+    public void write(Path file) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        tables.forEach(root.putArray("tables")::add);
+        deferredTables.forEach(root.putArray("deferredTables")::add);
+        sources.forEach(root.putArray("sources")::add);
+        ArrayNode statsNode = root.putArray("stats");
+        for (TableStatsCatalog.TableStats ts : stats.values()) {
+            ObjectNode t = statsNode.addObject();
+            t.put("table", ts.table);
+            t.put("rows", ts.rows);
+            ObjectNode byFacility = t.putObject("rowsByFacility");
+            ts.rowsByFacility.forEach(byFacility::put);
+            ArrayNode cols = t.putArray("columns");
+            for (TableStatsCatalog.ColumnStats c : ts.columns) {
+                ObjectNode col = cols.addObject();
+                col.put("column", c.column);
+                col.put("nullFraction", c.nullFraction);
+                col.put("approxDistinct", c.approxDistinct);
+                col.put("stale", c.stale);
+            }
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        mapper.writeValue(tmp.toFile(), root);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
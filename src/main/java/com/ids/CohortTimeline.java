@@ -0,0 +1,346 @@
+package com.ids;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Every patient's visit and status history held in primitive arrays, so cohort
+ * indicators can be evaluated for many periods in one parallel pass instead of
+ * running the SQL once per period.
+ *
+ * Patients are keyed by (hfr_code, PatientID). Visits and status events are
+ * stored CSR-style: patient i owns entries [start[i], start[i + 1]) of the day
+ * and code arrays, sorted by epoch day.
+ */
+public class CohortTimeline {
+
+    public enum Indicator {
+        TX_CURR, TX_NEW, TX_RTT
+    }
+
+    /** ARVStatusCode of an ART start visit (TX_NEW). */
+    static final int ART_START = 2;
+    /** ARVStatusCodes counted as on treatment (TX_CURR). */
+    static final Set<Integer> ON_ART = Set.of(3, 6, 8, 9, 10);
+    /** tblStatus values that make the next visit a return to treatment. */
+    static final Set<String> OUT_OF_CARE = Set.of("lost to follow-up", "iit", "missing appointments");
+    /** Minimum gap since the previous visit for TX_RTT. */
+    static final int RTT_GAP_DAYS = 28;
+
+    private static final boolean[] ON_ART_CODE = new boolean[256];
+    static {
+        for (int code : ON_ART)
+            ON_ART_CODE[code] = true;
+    }
+
+    private static final int UNKNOWN_CODE = 255;
+    private static final int DAY_BIAS = 1 << 23;
+    private static final int CHUNK = 4096;
+
+    /** A closed date range, e.g. one calendar month. */
+    public static class Period {
+        public final LocalDate start;
+        public final LocalDate end;
+        public final String label;
+
+        public Period(LocalDate start, LocalDate end, String label) {
+            this.start = start;
+            this.end = end;
+            this.label = label;
+        }
+
+        /** {@code count} calendar months ending with {@code last}. */
+        public static List<Period> months(YearMonth last, int count) {
+            List<Period> periods = new ArrayList<>(count);
+            for (int i = count - 1; i >= 0; i--) {
+                YearMonth m = last.minusMonths(i);
+                periods.add(new Period(m.atDay(1), m.atEndOfMonth(), m.toString()));
+            }
+            return periods;
+        }
+    }
+
+    /** Patient counts per period (rows) and facility (columns). */
+    public static class Matrix {
+        public final Indicator indicator;
+        public final List<Period> periods;
+        public final List<String> facilities;
+        public final long[][] counts;
+
+        Matrix(Indicator indicator, List<Period> periods, List<String> facilities, long[][] counts) {
+            this.indicator = indicator;
+            this.periods = periods;
+            this.facilities = facilities;
+            this.counts = counts;
+        }
+
+        public long total(int period) {
+            long sum = 0;
+            for (long c : counts[period])
+                sum += c;
+            return sum;
+        }
+
+        /** Header and rows for a grid: Period, one column per facility, Total. */
+        public List<String> headers() {
+            List<String> headers = new ArrayList<>();
+            headers.add("Period");
+            headers.addAll(facilities);
+            headers.add("Total");
+            return headers;
+        }
+
+        public List<List<String>> rows() {
+            List<List<String>> rows = new ArrayList<>(periods.size());
+            for (int p = 0; p < periods.size(); p++) {
+                List<String> row = new ArrayList<>(facilities.size() + 2);
+                row.add(periods.get(p).label);
+                for (long c : counts[p])
+                    row.add(Long.toString(c));
+                row.add(Long.toString(total(p)));
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+
+    private final List<String> facilities;
+    private final int[] patientFacility;
+    private final int[] visitStart;
+    private final int[] visitDay;
+    private final byte[] visitCode;
+    private final int[] statusStart;
+    private final int[] statusDay;
+    private final boolean[] statusOut;
+
+    private CohortTimeline(List<String> facilities, int[] patientFacility, int[] visitStart, int[] visitDay,
+            byte[] visitCode, int[] statusStart, int[] statusDay, boolean[] statusOut) {
+        this.facilities = facilities;
+        this.patientFacility = patientFacility;
+        this.visitStart = visitStart;
+        this.visitDay = visitDay;
+        this.visitCode = visitCode;
+        this.statusStart = statusStart;
+        this.statusDay = statusDay;
+        this.statusOut = statusOut;
+    }
+
+    public int patientCount() {
+        return patientFacility.length;
+    }
+
+    public int visitCount() {
+        return visitDay.length;
+    }
+
+    /** Reads tblVisits (and tblStatus, if imported) once. */
+    public static CohortTimeline load(Connection conn) throws SQLException {
+        Builder b = new Builder();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(
+                        "SELECT hfr_code, PatientID, VisitDate, ARVStatusCode FROM tblVisits")) {
+            while (rs.next())
+                b.visit(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4));
+        }
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT hfr_code, PatientID, StatusDate, Status FROM tblStatus")) {
+            while (rs.next())
+                b.status(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4));
+        } catch (SQLException e) {
+            // tblStatus not imported: TX_RTT then finds no one out of care
+            if (e.getMessage() == null || !e.getMessage().contains("no such"))
+                throw e;
+        }
+        return b.build();
+    }
+
+    /** Collects rows in any order; {@link #build()} sorts them per patient. */
+    static class Builder {
+        private final Map<String, Integer> facilityIds = new LinkedHashMap<>();
+        private final Map<String, Integer> patientIds = new HashMap<>();
+        private final IntList patientFacility = new IntList();
+        private final LongList visits = new LongList();
+        private final LongList statuses = new LongList();
+
+        private int patient(String hfr, String patientId) {
+            String h = hfr == null ? "" : hfr;
+            return patientIds.computeIfAbsent(h + '\u001f' + patientId, k -> {
+                patientFacility.add(facilityIds.computeIfAbsent(h, f -> facilityIds.size()));
+                return patientFacility.size() - 1;
+            });
+        }
+
+        // patient in the high 32 bits, then biased day, then an 8-bit code, so
+        // one sort orders everything by patient and date
+        private static long pack(int patient, int day, int code) {
+            return ((long) patient << 32) | ((long) (day + DAY_BIAS) << 8) | code;
+        }
+
+        void visit(String hfr, String patientId, String date, String arvStatus) {
+            long sec = DateValues.epochSecond(date);
+            if (patientId == null || sec == DateValues.NOT_A_DATE)
+                return;
+            int code = UNKNOWN_CODE;
+            try {
+                if (arvStatus != null)
+                    code = Math.min(UNKNOWN_CODE, Math.max(0, (int) Double.parseDouble(arvStatus.trim())));
+            } catch (NumberFormatException ignored) {
+            }
+            visits.add(pack(patient(hfr, patientId), (int) Math.floorDiv(sec, 86_400L), code));
+        }
+
+        void status(String hfr, String patientId, String date, String status) {
+            long sec = DateValues.epochSecond(date);
+            if (patientId == null || sec == DateValues.NOT_A_DATE)
+                return;
+            boolean out = status != null && OUT_OF_CARE.contains(status.trim().toLowerCase(Locale.ROOT));
+            statuses.add(pack(patient(hfr, patientId), (int) Math.floorDiv(sec, 86_400L), out ? 1 : 0));
+        }
+
+        CohortTimeline build() {
+            int patients = patientFacility.size();
+            long[] v = visits.toArray();
+            Arrays.parallelSort(v);
+            int[] vStart = new int[patients + 1];
+            int[] vDay = new int[v.length];
+            byte[] vCode = new byte[v.length];
+            for (int i = 0; i < v.length; i++) {
+                vStart[(int) (v[i] >>> 32) + 1]++;
+                vDay[i] = (int) ((v[i] >>> 8) & 0xFFFFFF) - DAY_BIAS;
+                vCode[i] = (byte) (v[i] & 0xFF);
+            }
+            long[] s = statuses.toArray();
+            Arrays.parallelSort(s);
+            int[] sStart = new int[patients + 1];
+            int[] sDay = new int[s.length];
+            boolean[] sOut = new boolean[s.length];
+            for (int i = 0; i < s.length; i++) {
+                sStart[(int) (s[i] >>> 32) + 1]++;
+                sDay[i] = (int) ((s[i] >>> 8) & 0xFFFFFF) - DAY_BIAS;
+                sOut[i] = (s[i] & 0xFF) != 0;
+            }
+            for (int i = 0; i < patients; i++) {
+                vStart[i + 1] += vStart[i];
+                sStart[i + 1] += sStart[i];
+            }
+            return new CohortTimeline(new ArrayList<>(facilityIds.keySet()), patientFacility.toArray(), vStart,
+                    vDay, vCode, sStart, sDay, sOut);
+        }
+    }
+
+    /** Counts patients meeting {@code indicator} in every period, per facility. */
+    public Matrix evaluate(Indicator indicator, List<Period> periods) {
+        int np = periods.size();
+        int nf = facilities.size();
+        int[] from = new int[np];
+        int[] to = new int[np];
+        for (int p = 0; p < np; p++) {
+            from[p] = (int) periods.get(p).start.toEpochDay();
+            to[p] = (int) periods.get(p).end.toEpochDay();
+        }
+
+        int patients = patientFacility.length;
+        int chunks = (patients + CHUNK - 1) / CHUNK;
+        long[] flat = IntStream.range(0, chunks).parallel().mapToObj(c -> {
+            long[] local = new long[np * nf];
+            int end = Math.min(patients, (c + 1) * CHUNK);
+            for (int i = c * CHUNK; i < end; i++) {
+                int f = patientFacility[i];
+                for (int p = 0; p < np; p++) {
+                    if (matches(indicator, i, from[p], to[p]))
+                        local[p * nf + f]++;
+                }
+            }
+            return local;
+        }).reduce(new long[np * nf], (a, b) -> {
+            long[] sum = a.clone();
+            for (int i = 0; i < sum.length; i++)
+                sum[i] += b[i];
+            return sum;
+        });
+
+        long[][] counts = new long[np][nf];
+        for (int p = 0; p < np; p++)
+            System.arraycopy(flat, p * nf, counts[p], 0, nf);
+        return new Matrix(indicator, periods, facilities, counts);
+    }
+
+    private boolean matches(Indicator indicator, int patient, int from, int to) {
+        int lo = visitStart[patient], hi = visitStart[patient + 1];
+        int first = lowerBound(visitDay, lo, hi, from);
+        switch (indicator) {
+            case TX_CURR:
+                for (int i = first; i < hi && visitDay[i] <= to; i++) {
+                    if (ON_ART_CODE[visitCode[i] & 0xFF])
+                        return true;
+                }
+                return false;
+            case TX_NEW:
+                for (int i = first; i < hi && visitDay[i] <= to; i++) {
+                    if ((visitCode[i] & 0xFF) == ART_START)
+                        return true;
+                }
+                return false;
+            case TX_RTT:
+                // first visit in the period, after a gap, following an out-of-care status
+                if (first >= hi || visitDay[first] > to || first == lo)
+                    return false;
+                if (visitDay[first] - visitDay[first - 1] <= RTT_GAP_DAYS)
+                    return false;
+                int sLo = statusStart[patient];
+                int lastStatus = lowerBound(statusDay, sLo, statusStart[patient + 1], from) - 1;
+                return lastStatus >= sLo && statusOut[lastStatus];
+            default:
+                return false;
+        }
+    }
+
+    /** First index in [lo, hi) whose day is >= {@code day}. */
+    private static int lowerBound(int[] days, int lo, int hi, int day) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (days[mid] < day)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static final class IntList {
+        private int[] a = new int[1024];
+        private int n;
+
+        void add(int v) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+
+        int size() {
+            return n;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(a, n);
+        }
+    }
+
+    private static final class LongList {
+        private long[] a = new long[1024];
+        private int n;
+
+        void add(long v) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(a, n);
+        }
+    }
+}
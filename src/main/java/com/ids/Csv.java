@@ -0,0 +1,30 @@
+package com.ids;
+
+import java.util.List;
+
+/** Minimal RFC 4180 style CSV helpers shared by the exporters. */
+final class Csv {
+
+    private Csv() {
+    }
+
+    static String escape(String s) {
+        String v = (s == null) ? "" : s;
+        if (v.contains("\"") || v.contains(",") || v.contains("\n") || v.contains("\r")) {
+            v = "\"" + v.replace("\"", "\"\"") + "\"";
+        }
+        return v;
+    }
+
+    /** Joins the first {@code width} values of a row; missing cells are written empty. */
+    static String line(List<String> row, int width) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < width; i++) {
+            String val = (i < row.size() && row.get(i) != null) ? row.get(i) : "";
+            if (i > 0)
+                sb.append(',');
+            sb.append(escape(val));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,179 @@
+package com.ids;
+
+import java.sql.*;
+
+/**
+ * Keeps converted.db compact and its planner statistics current.
+ *
+ * Imports and removals bump a change counter (this is an import listener);
+ * a maintenance slice then refreshes statistics with a bounded ANALYZE and
+ * returns a bounded number of free pages to the OS with incremental_vacuum.
+ * Slices are cheap enough to run after each import batch and whenever the app
+ * is idle. {@link #runFull} is the user-triggered version, which also converts
+ * older databases to incremental auto-vacuum with a single VACUUM.
+ */
+public class DatabaseMaintenance implements ImportListener {
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** What a maintenance run did and how fresh the planner statistics are. */
+    public static class Report {
+        public final long reclaimedBytes;
+        public final long freeBytes;
+        public final boolean analyzed;
+        public final boolean converted;
+        public final String analyzedAt;
+        public final long changesSinceAnalyze;
+
+        Report(long reclaimedBytes, long freeBytes, boolean analyzed, boolean converted, String analyzedAt,
+                long changesSinceAnalyze) {
+            this.reclaimedBytes = reclaimedBytes;
+            this.freeBytes = freeBytes;
+            this.analyzed = analyzed;
+            this.converted = converted;
+            this.analyzedAt = analyzedAt;
+            this.changesSinceAnalyze = changesSinceAnalyze;
+        }
+
+        /** True if the run changed anything worth telling the user about. */
+        public boolean didWork() {
+            return reclaimedBytes > 0 || analyzed || converted;
+        }
+
+        public String summary() {
+            StringBuilder sb = new StringBuilder(String.format("Reclaimed %.1f MB", reclaimedBytes / 1048576.0));
+            if (freeBytes > 0)
+                sb.append(String.format(" (%.1f MB still free inside the file)", freeBytes / 1048576.0));
+            if (converted)
+                sb.append("; switched to incremental auto-vacuum");
+            sb.append(analyzedAt == null ? "; planner statistics never refreshed"
+                    : "; planner statistics from " + analyzedAt
+                            + (changesSinceAnalyze > 0 ? " (" + changesSinceAnalyze + " imports/removals since)" : ""));
+            return sb.toString();
+        }
+    }
+
+    @Override
+    public void ensureTables(Connection conn) throws SQLException {
+        ensureTable(conn);
+    }
+
+    @Override
+    public void onSourceImported(Connection conn, String hfrCode) throws SQLException {
+        bumpChanges(conn);
+    }
+
+    @Override
+    public void onSourceRemoved(Connection conn, String hfrCode) throws SQLException {
+        bumpChanges(conn);
+    }
+
+    static void ensureTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_maintenance (key TEXT PRIMARY KEY, value TEXT)");
+        }
+    }
+
+    private static void bumpChanges(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO ids_maintenance (key, value) VALUES ('changes_since_analyze', 1) "
+                    + "ON CONFLICT(key) DO UPDATE SET value = value + 1");
+        }
+    }
+
+    /** One bounded slice; safe to run often. */
+    public static Report runSlice(Connection conn, StorageProfile profile) throws SQLException {
+        return run(conn, profile, false);
+    }
+
+    /** Converts to incremental auto-vacuum if needed, frees all pages and refreshes statistics. */
+    public static Report runFull(Connection conn, StorageProfile profile) throws SQLException {
+        return run(conn, profile, true);
+    }
+
+    private static Report run(Connection conn, StorageProfile profile, boolean full) throws SQLException {
+        ensureTable(conn);
+        long pageSize = pragmaLong(conn, "page_size");
+        long freeBefore = pragmaLong(conn, "freelist_count");
+        long pagesBefore = pragmaLong(conn, "page_count");
+
+        boolean converted = false;
+        if (pragmaLong(conn, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+            if (freeBefore > 0) {
+                incrementalVacuum(conn, full ? freeBefore : Math.min(freeBefore, profile.vacuumPagesPerSlice));
+            }
+        } else if (full) {
+            // auto_vacuum can only change through a full rebuild of the file
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+                stmt.execute("VACUUM");
+            }
+            converted = pragmaLong(conn, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+        }
+
+        long changes = changesSinceAnalyze(conn);
+        boolean analyzed = false;
+        if (full || changes > 0 || analyzedAt(conn) == null) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA analysis_limit = " + profile.analysisLimit);
+                stmt.execute("ANALYZE");
+                stmt.execute("INSERT OR REPLACE INTO ids_maintenance (key, value) VALUES "
+                        + "('analyzed_at', datetime('now')), ('changes_since_analyze', 0)");
+            }
+            analyzed = true;
+            changes = 0;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA optimize");
+        }
+
+        long freeAfter = pragmaLong(conn, "freelist_count");
+        long reclaimedPages = Math.max(0, pagesBefore - pragmaLong(conn, "page_count"));
+        return new Report(reclaimedPages * pageSize, freeAfter * pageSize, analyzed, converted, analyzedAt(conn),
+                changes);
+    }
+
+    // The driver steps a statement once per execute and every step of
+    // incremental_vacuum frees one page, so run it once per page, in one commit
+    private static void incrementalVacuum(Connection conn, long pages) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            // closed before the commit, which fails while the statement is mid-step
+            try (PreparedStatement ps = conn.prepareStatement("PRAGMA incremental_vacuum(" + pages + ")")) {
+                for (long i = 0; i < pages; i++)
+                    ps.execute();
+            }
+            conn.commit();
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static long changesSinceAnalyze(Connection conn) throws SQLException {
+        String v = value(conn, "changes_since_analyze");
+        return v == null ? 0 : Long.parseLong(v);
+    }
+
+    private static String analyzedAt(Connection conn) throws SQLException {
+        return value(conn, "analyzed_at");
+    }
+
+    private static String value(Connection conn, String key) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT value FROM ids_maintenance WHERE key = ?")) {
+            ps.setString(1, key);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    private static long pragmaLong(Connection conn, String pragma) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA " + pragma)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.ids;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parses the date strings that end up in converted.db: Jackcess LocalDateTime
+ * ({@code 2019-03-05T00:00}), ISO dates, SQLite datetime text, legacy
+ * {@code java.util.Date#toString()} output and day-first dates.
+ */
+public final class DateValues {
+
+    /** Returned by {@link #epochSecond} when a value is not a date. */
+    public static final long NOT_A_DATE = Long.MIN_VALUE;
+
+    private static final List<DateTimeFormatter> FALLBACK_FORMATS = List.of(
+            DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.ENGLISH),
+            DateTimeFormatter.ofPattern("d/M/yyyy[ H:mm[:ss]]", Locale.ENGLISH),
+            DateTimeFormatter.ofPattern("d-MMM-yyyy", Locale.ENGLISH));
+
+    private DateValues() {
+    }
+
+    /** Seconds since the epoch (UTC, local time fields), or {@link #NOT_A_DATE}. */
+    public static long epochSecond(String text) {
+        LocalDateTime t = parse(text);
+        return t == null ? NOT_A_DATE : t.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public static LocalDate parseDate(String text) {
+        LocalDateTime t = parse(text);
+        return t == null ? null : t.toLocalDate();
+    }
+
+    public static LocalDateTime parse(String text) {
+        if (text == null)
+            return null;
+        String s = text.trim();
+        if (s.length() < 8)
+            return null;
+
+        // Fast path: yyyy-MM-dd with an optional 'T' or ' ' time part
+        if (s.length() >= 10 && isDigits(s, 0, 4) && s.charAt(4) == '-' && isDigits(s, 5, 7)
+                && s.charAt(7) == '-' && isDigits(s, 8, 10)) {
+            try {
+                int y = num(s, 0, 4), mo = num(s, 5, 7), d = num(s, 8, 10);
+                int h = 0, mi = 0, sec = 0;
+                if (s.length() >= 16 && (s.charAt(10) == 'T' || s.charAt(10) == ' ') && isDigits(s, 11, 13)
+                        && s.charAt(13) == ':' && isDigits(s, 14, 16)) {
+                    h = num(s, 11, 13);
+                    mi = num(s, 14, 16);
+                    if (s.length() >= 19 && s.charAt(16) == ':' && isDigits(s, 17, 19))
+                        sec = num(s, 17, 19);
+                }
+                return LocalDateTime.of(y, mo, d, h, mi, sec);
+            } catch (java.time.DateTimeException e) {
+                return null;
+            }
+        }
+
+        if (!Character.isLetterOrDigit(s.charAt(0)))
+            return null;
+        for (DateTimeFormatter f : FALLBACK_FORMATS) {
+            try {
+                java.time.temporal.TemporalAccessor parsed = f.parseBest(s, LocalDateTime::from, LocalDate::from);
+                return parsed instanceof LocalDateTime ? (LocalDateTime) parsed
+                        : ((LocalDate) parsed).atStartOfDay();
+            } catch (DateTimeParseException ignored) {
+                // try the next format
+            }
+        }
+        return null;
+    }
+
+    private static boolean isDigits(String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
+    private static int num(String s, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++)
+            n = n * 10 + (s.charAt(i) - '0');
+        return n;
+    }
+}
@@ -0,0 +1,175 @@
+package com.ids;
+
+import java.util.*;
+
+/**
+ * Single-pass age band x sex x facility x result counter for indicator line lists.
+ *
+ * Each (facility, result) pair owns one dense {@code int[]} indexed by
+ * (age band, sex); rows are counted as they stream past, so the pivot is built
+ * without re-querying SQLite or keeping a second copy of the rows.
+ */
+public class DisaggregationEngine {
+
+    static final String[] SEX_LABELS = { "Female", "Male", "Unknown sex" };
+    static final int FEMALE = 0, MALE = 1, UNKNOWN_SEX = 2;
+
+    private static final List<String> AGE_HEADERS = List.of("age", "patientage");
+    private static final List<String> SEX_HEADERS = List.of("sex", "patientsex", "sexcode");
+    private static final List<String> FACILITY_HEADERS = List.of("hfr_code");
+    private static final List<String> RESULT_HEADERS = List.of("hiv result", "hivresultcode", "finaltestresults");
+
+    private final AgeBands bands;
+    private final int ageCol, sexCol, facilityCol, resultCol;
+    private final int bandSlots; // bands plus "unknown age"
+
+    private final Map<String, Integer> facilityIds = new HashMap<>();
+    private final Map<String, Integer> resultIds = new HashMap<>();
+    private final List<String> facilities = new ArrayList<>();
+    private final List<String> results = new ArrayList<>();
+    private final Map<Long, int[]> counters = new HashMap<>();
+    private long rows;
+
+    private DisaggregationEngine(AgeBands bands, int ageCol, int sexCol, int facilityCol, int resultCol) {
+        this.bands = bands;
+        this.ageCol = ageCol;
+        this.sexCol = sexCol;
+        this.facilityCol = facilityCol;
+        this.resultCol = resultCol;
+        this.bandSlots = bands.size() + 1;
+    }
+
+    /**
+     * Returns an engine for a line list with these headers, or {@code null} when
+     * the result has no age and sex columns to disaggregate by.
+     */
+    public static DisaggregationEngine forHeaders(List<String> headers, AgeBands bands) {
+        int age = find(headers, AGE_HEADERS);
+        int sex = find(headers, SEX_HEADERS);
+        if (age < 0 || sex < 0)
+            return null;
+        return new DisaggregationEngine(bands, age, sex, find(headers, FACILITY_HEADERS),
+                find(headers, RESULT_HEADERS));
+    }
+
+    private static int find(List<String> headers, List<String> candidates) {
+        for (String candidate : candidates) {
+            for (int i = 0; i < headers.size(); i++) {
+                if (headers.get(i) != null && candidate.equalsIgnoreCase(headers.get(i).trim()))
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Counts one line-list row. */
+    public void accept(List<String> row) {
+        int facility = facilityCol < 0 ? 0 : idOf(valueAt(row, facilityCol), facilityIds, facilities);
+        int result = resultCol < 0 ? 0 : idOf(valueAt(row, resultCol), resultIds, results);
+        long key = ((long) facility << 32) | (result & 0xffffffffL);
+
+        int[] cells = counters.get(key);
+        if (cells == null) {
+            cells = new int[bandSlots * SEX_LABELS.length];
+            counters.put(key, cells);
+        }
+        cells[bandOf(valueAt(row, ageCol)) * SEX_LABELS.length + sexOf(valueAt(row, sexCol))]++;
+        rows++;
+    }
+
+    public long getRowCount() {
+        return rows;
+    }
+
+    private static String valueAt(List<String> row, int col) {
+        return col < row.size() ? row.get(col) : null;
+    }
+
+    private static int idOf(String value, Map<String, Integer> ids, List<String> names) {
+        String v = value == null || value.isBlank() ? "(blank)" : value.trim();
+        Integer id = ids.get(v);
+        if (id == null) {
+            id = names.size();
+            ids.put(v, id);
+            names.add(v);
+        }
+        return id;
+    }
+
+    private int bandOf(String age) {
+        if (age == null || age.isBlank())
+            return bands.size();
+        try {
+            int band = bands.indexOf((int) Math.floor(Double.parseDouble(age.trim())));
+            return band < 0 ? bands.size() : band;
+        } catch (NumberFormatException e) {
+            return bands.size();
+        }
+    }
+
+    static int sexOf(String sex) {
+        if (sex == null)
+            return UNKNOWN_SEX;
+        String s = sex.trim().toUpperCase(Locale.ROOT);
+        if (s.isEmpty())
+            return UNKNOWN_SEX;
+        // CTC/HTS registers use M/F, Male/Female, ME/KE (Swahili) or 1/2
+        if (s.startsWith("F") || s.equals("KE") || s.equals("2"))
+            return FEMALE;
+        if (s.startsWith("M") || s.equals("1"))
+            return MALE;
+        return UNKNOWN_SEX;
+    }
+
+    public List<String> pivotHeaders() {
+        List<String> headers = new ArrayList<>();
+        if (facilityCol >= 0)
+            headers.add("hfr_code");
+        if (resultCol >= 0)
+            headers.add("Result");
+        headers.add("Sex");
+        for (int b = 0; b < bandSlots; b++)
+            headers.add(bands.label(b));
+        headers.add("Total");
+        return headers;
+    }
+
+    /** One row per facility x result x sex, with a count per age band and a total. */
+    public List<List<String>> pivotRows() {
+        List<Long> keys = new ArrayList<>(counters.keySet());
+        keys.sort(Comparator.<Long, String>comparing(k -> facilityName(k))
+                .thenComparing(k -> resultName(k)));
+
+        List<List<String>> out = new ArrayList<>();
+        for (Long key : keys) {
+            int[] cells = counters.get(key);
+            for (int sex = 0; sex < SEX_LABELS.length; sex++) {
+                int total = 0;
+                List<String> row = new ArrayList<>();
+                if (facilityCol >= 0)
+                    row.add(facilityName(key));
+                if (resultCol >= 0)
+                    row.add(resultName(key));
+                row.add(SEX_LABELS[sex]);
+                for (int b = 0; b < bandSlots; b++) {
+                    int n = cells[b * SEX_LABELS.length + sex];
+                    total += n;
+                    row.add(Integer.toString(n));
+                }
+                if (total == 0)
+                    continue;
+                row.add(Integer.toString(total));
+                out.add(row);
+            }
+        }
+        return out;
+    }
+
+    private String facilityName(long key) {
+        return facilityCol < 0 ? "" : facilities.get((int) (key >>> 32));
+    }
+
+    private String resultName(long key) {
+        return resultCol < 0 ? "" : results.get((int) key);
+    }
+}
@@ -0,0 +1,583 @@
+package com.ids;
+
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a catalog query as parallel slices over disjoint sets of facilities on
+ * read-only connections, and merges the slices back into the query's ORDER BY
+ * order. SQLite uses one core per statement; with {@code parallelism} slices a
+ * national run uses that many.
+ *
+ * The facilities are dealt round-robin into at most {@code parallelism}
+ * slices, so a run never holds more than that many threads and connections
+ * (plus one for metadata) however many facilities there are. Each slice
+ * shadows the data tables the query names with TEMP views limited to its
+ * facilities, so the query text runs unchanged. Joins therefore only match
+ * rows of the same slice, which gives the single-connection result only when
+ * the query itself never combines rows of different facilities:
+ * {@link #splitBlocker} accepts a query only when every join and GROUP BY
+ * includes hfr_code. Every slice streams its sorted rows into a small bounded
+ * queue and a k-way heap merge over the queue heads hands rows to the caller's
+ * sink as they arrive.
+ *
+ * All connections of a run open a read transaction together, while the
+ * caller's write lock is held, so every slice reads the same committed state
+ * even while imports run.
+ */
+public class FacilityFanout implements AutoCloseable {
+
+    private static final Pattern ORDER_BY = Pattern.compile(
+            "ORDER\\s+BY\\s+([\\w.\"'\\[\\]]+)(\\s+(ASC|DESC))?\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /** Functions that fold many rows into one; outside a GROUP BY they fold every facility together. */
+    private static final Set<String> AGGREGATES = Set.of("COUNT", "SUM", "AVG", "MIN", "MAX", "TOTAL",
+            "GROUP_CONCAT");
+    /** Words that end a FROM list, join condition or GROUP BY. */
+    private static final Set<String> CLAUSE_ENDS = Set.of("JOIN", "LEFT", "RIGHT", "FULL", "INNER", "OUTER",
+            "CROSS", "NATURAL", "WHERE", "GROUP", "ORDER", "HAVING", "LIMIT", "WINDOW");
+    private static final Pattern TOKEN = Pattern.compile(
+            "--[^\\n]*|/\\*.*?\\*/|'(?:[^']|'')*'|\"[^\"]*\"|\\[[^\\]]*\\]|`[^`]*`|[A-Za-z_][A-Za-z0-9_$]*|\\S",
+            Pattern.DOTALL);
+
+    /** Rows a slice may read ahead of the merge. */
+    static final int QUEUE_ROWS = 256;
+
+    private final Path db;
+    private final StorageProfile profile;
+    private final int parallelism;
+    private final int queueRows;
+    private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+    private final java.util.concurrent.atomic.AtomicInteger peakConnections =
+            new java.util.concurrent.atomic.AtomicInteger();
+
+    public FacilityFanout(Path db, StorageProfile profile, int parallelism) {
+        this(db, profile, parallelism, QUEUE_ROWS);
+    }
+
+    FacilityFanout(Path db, StorageProfile profile, int parallelism, int queueRows) {
+        this.db = db;
+        this.profile = profile;
+        this.parallelism = Math.max(1, parallelism);
+        this.queueRows = Math.max(1, queueRows);
+    }
+
+    /** Closes the connections of running slices, e.g. before converted.db is deleted. */
+    public void resetConnections() {
+        for (Connection c : open) {
+            try {
+                c.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        open.clear();
+    }
+
+    @Override
+    public void close() {
+        resetConnections();
+    }
+
+    /**
+     * Creates an hfr_code index on every data table {@code sql} names, so each
+     * slice reads only its facility's rows. Needs the writable connection.
+     */
+    public static void ensureFacilityIndexes(Connection conn, String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            for (String table : referencedTables(conn, sql)) {
+                stmt.execute("CREATE INDEX IF NOT EXISTS \"ids_hfr_" + table + "\" ON \"" + table
+                        + "\" (hfr_code)");
+            }
+        }
+    }
+
+    /** Data tables with an hfr_code column whose name appears as a word in {@code sql}. */
+    static List<String> referencedTables(Connection conn, String sql) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        for (String table : TableStatsCatalog.dataTables(conn)) {
+            Pattern word = Pattern.compile("\\b" + Pattern.quote(table) + "\\b", Pattern.CASE_INSENSITIVE);
+            if (word.matcher(sql).find() && TableStatsCatalog.dataColumns(conn, table) != null)
+                tables.add(table);
+        }
+        return tables;
+    }
+
+    /**
+     * Why running {@code sql} per facility could return something else than
+     * running it once, or null when it cannot. Slices never see each other's
+     * rows, so the query must not combine rows across facilities: every join
+     * needs an {@code a.hfr_code = b.hfr_code} condition (or USING hfr_code),
+     * every GROUP BY an hfr_code term, and it may not use DISTINCT, LIMIT,
+     * compound SELECTs, window functions, comma joins, aggregates without
+     * GROUP BY or subqueries other than CTEs and derived tables. The check is
+     * textual and errs on the side of refusing.
+     */
+    public static String splitBlocker(String sql) {
+        List<String> t = new ArrayList<>();
+        Matcher m = TOKEN.matcher(sql);
+        while (m.find()) {
+            String tok = m.group();
+            if (tok.startsWith("--") || tok.startsWith("/*"))
+                continue;
+            if (tok.startsWith("\"") || tok.startsWith("[") || tok.startsWith("`"))
+                tok = tok.substring(1, tok.length() - 1); // quoted identifier
+            t.add(tok.startsWith("'") ? tok : tok.toUpperCase(Locale.ROOT));
+        }
+        int[] depth = new int[t.size()];
+        for (int i = 0, d = 0; i < t.size(); i++) {
+            if (t.get(i).equals(")"))
+                d--;
+            depth[i] = d;
+            if (t.get(i).equals("("))
+                d++;
+        }
+
+        for (int i = 0; i < t.size(); i++) {
+            String tok = t.get(i);
+            switch (tok) {
+            case "DISTINCT":
+            case "LIMIT":
+            case "UNION":
+            case "INTERSECT":
+            case "EXCEPT":
+                return "it uses " + tok;
+            case "OVER":
+                return "it uses a window function";
+            case "SELECT":
+                if (i > 1 && t.get(i - 1).equals("(")
+                        && !Set.of("AS", "FROM", "JOIN").contains(t.get(i - 2)))
+                    return "it has a subquery that can match rows of other facilities";
+                String scope = scopeBlocker(t, depth, i);
+                if (scope != null)
+                    return scope;
+                break;
+            case "JOIN":
+                if (!joinsOnFacility(t, depth, i))
+                    return "it joins rows without matching hfr_code";
+                break;
+            case "GROUP":
+                if (!mentionsFacility(clause(t, depth, i + 2)))
+                    return "it groups rows without hfr_code";
+                break;
+            default:
+                break;
+            }
+        }
+        return null;
+    }
+
+    /** Checks one SELECT: comma joins, and aggregates that fold every facility into one row. */
+    private static String scopeBlocker(List<String> t, int[] depth, int select) {
+        int d = depth[select];
+        boolean inFrom = false, aggregates = false, grouped = false;
+        for (int i = select + 1; i < t.size() && depth[i] >= d; i++) {
+            if (depth[i] != d)
+                continue;
+            String tok = t.get(i);
+            if (tok.equals("SELECT"))
+                break; // the main query after a CTE list starts its own scope
+            if (tok.equals("FROM"))
+                inFrom = true;
+            else if (CLAUSE_ENDS.contains(tok) && !tok.equals("JOIN"))
+                inFrom = inFrom && !Set.of("WHERE", "GROUP", "ORDER", "HAVING", "LIMIT", "WINDOW").contains(tok);
+            else if (tok.equals(",") && inFrom)
+                return "it joins tables with a comma";
+            if (tok.equals("GROUP"))
+                grouped = true;
+            if (AGGREGATES.contains(tok) && i + 1 < t.size() && t.get(i + 1).equals("("))
+                aggregates = true;
+        }
+        return aggregates && !grouped ? "it aggregates rows of every facility together" : null;
+    }
+
+    /** True when the JOIN at {@code join} has an ON or USING condition that matches hfr_code. */
+    private static boolean joinsOnFacility(List<String> t, int[] depth, int join) {
+        int d = depth[join];
+        for (int i = join + 1; i < t.size() && depth[i] >= d; i++) {
+            if (depth[i] != d)
+                continue; // a derived table
+            String tok = t.get(i);
+            if (tok.equals("ON") || tok.equals("USING"))
+                return mentionsFacility(clause(t, depth, i + 1));
+            if (CLAUSE_ENDS.contains(tok))
+                return false;
+        }
+        return false;
+    }
+
+    /** Tokens from {@code from} to the end of the clause they belong to. */
+    private static List<String> clause(List<String> t, int[] depth, int from) {
+        if (from >= t.size())
+            return List.of();
+        int d = depth[from - 1];
+        int i = from;
+        while (i < t.size() && depth[i] >= d && !(depth[i] == d && CLAUSE_ENDS.contains(t.get(i))))
+            i++;
+        return t.subList(from, i);
+    }
+
+    /** True for a USING list with hfr_code, {@code x.hfr_code = y.hfr_code}, or a GROUP BY term on it. */
+    private static boolean mentionsFacility(List<String> c) {
+        for (int i = 0; i < c.size(); i++) {
+            if (!c.get(i).equals("HFR_CODE"))
+                continue;
+            boolean qualified = i > 0 && c.get(i - 1).equals(".");
+            int eq = i + 1;
+            if (eq < c.size() && c.get(eq).equals("=")) {
+                int other = eq + 1;
+                if (other + 2 < c.size() && c.get(other + 1).equals("."))
+                    other += 2;
+                if (other < c.size() && c.get(other).equals("HFR_CODE"))
+                    return true;
+            }
+            // GROUP BY terms and USING lists name the column without comparing it
+            if (i == 0 || c.get(i - 1).equals(",") || c.get(i - 1).equals("(") || c.get(i - 1).equals("BY")
+                    || (qualified && (i < 3 || Set.of(",", "(", "BY").contains(c.get(i - 3))))) {
+                int next = i + 1;
+                if (next >= c.size() || c.get(next).equals(",") || c.get(next).equals(")"))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs {@code sql} per facility and feeds every row to {@code sink} in the
+     * query's final ORDER BY order (slice order when it has none, or the
+     * ordering column is not in the output). Returns the column labels.
+     * {@code queryKey} labels the per-slice JFR events.
+     */
+    public List<String> run(String queryKey, String sql, Consumer<List<String>> sink)
+            throws SQLException, InterruptedException {
+        return run(queryKey, sql, sink, null);
+    }
+
+    /**
+     * As {@link #run(String, String, Consumer)}; {@code writeLock} is the
+     * lock every writer of the database holds for its whole transaction (the
+     * main connection), taken briefly while the run's connections pin their
+     * read snapshot. Null pins without it; slices may then differ by a commit.
+     */
+    public List<String> run(String queryKey, String sql, Consumer<List<String>> sink, Object writeLock)
+            throws SQLException, InterruptedException {
+        String blocker = splitBlocker(sql);
+        if (blocker != null)
+            throw new SQLException("This query cannot run per facility: " + blocker);
+
+        List<Connection> conns = new ArrayList<>();
+        ExecutorService producers = null;
+        try {
+            if (writeLock != null) {
+                synchronized (writeLock) {
+                    openPinned(conns);
+                }
+            } else {
+                openPinned(conns);
+            }
+            Connection meta = conns.get(0);
+            List<String> tables = referencedTables(meta, sql);
+            if (tables.isEmpty())
+                throw new SQLException("The query reads no facility tables, so it cannot be split per facility");
+            List<String> facilities = facilities(meta, tables);
+            List<String> headers = headersOf(meta, sql);
+            if (facilities.isEmpty())
+                return headers; // no facility has rows in any table the query reads
+
+            int n = Math.min(parallelism, facilities.size());
+            List<List<String>> groups = new ArrayList<>();
+            for (int g = 0; g < n; g++)
+                groups.add(new ArrayList<>());
+            for (int f = 0; f < facilities.size(); f++)
+                groups.get(f % n).add(facilities.get(f));
+
+            int orderCol = orderColumn(sql, headers);
+            List<Slice> slices = new ArrayList<>();
+            producers = Executors.newFixedThreadPool(n, r -> {
+                Thread t = new Thread(r, "facility-slice");
+                t.setDaemon(true);
+                return t;
+            });
+            for (int g = 0; g < n; g++) {
+                Slice slice = new Slice(groups.get(g), conns.get(g + 1));
+                slices.add(slice);
+                producers.execute(() -> slice.produce(queryKey, sql, tables, orderCol));
+            }
+            merge(slices, orderCol, descending(sql), sink);
+            return headers;
+        } finally {
+            if (producers != null) {
+                producers.shutdownNow(); // wakes slices still blocked on a full queue
+                producers.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            conns.forEach(this::disconnect);
+        }
+    }
+
+    /**
+     * Opens the metadata connection and one per possible slice, each inside a
+     * read transaction that has already read, so all see one snapshot.
+     */
+    private void openPinned(List<Connection> conns) throws SQLException {
+        for (int i = 0; i <= parallelism; i++) {
+            Connection conn = connect();
+            conns.add(conn);
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master")) {
+                rs.next();
+            }
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        Connection conn = SqliteConnections.openReadOnly(db, profile);
+        open.add(conn);
+        peakConnections.accumulateAndGet(open.size(), Math::max);
+        return conn;
+    }
+
+    /** Most connections open at once since this fan-out was created. Package-private for tests. */
+    int peakConnections() {
+        return peakConnections.get();
+    }
+
+    private void disconnect(Connection conn) {
+        if (!open.remove(conn))
+            return; // closed by resetConnections
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** One row read by a slice, or the end of the slice (row null). */
+    private static final class Item {
+        final List<String> row;
+        final Object key;
+        final Throwable error;
+
+        Item(List<String> row, Object key, Throwable error) {
+            this.row = row;
+            this.key = key;
+            this.error = error;
+        }
+    }
+
+    /** The result for a few facilities, produced in the query's own order. */
+    private final class Slice {
+        final List<String> facilities;
+        final Connection conn;
+        final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(queueRows);
+        Item head;
+
+        Slice(List<String> facilities, Connection conn) {
+            this.facilities = facilities;
+            this.conn = conn;
+        }
+
+        String label() {
+            return facilities.size() == 1 ? facilities.get(0)
+                    : facilities.get(0) + " +" + (facilities.size() - 1);
+        }
+
+        /** Reads the slice into its queue; always ends with an end or error item. */
+        void produce(String queryKey, String sql, List<String> tables, int orderCol) {
+            Throwable failure = null;
+            try {
+                shadow(conn, tables, facilities);
+                PerfEvents.QueryExecute execute = new PerfEvents.QueryExecute();
+                execute.queryKey = queryKey;
+                execute.hfrCode = label();
+                execute.begin();
+                try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+                    execute.commit();
+                    PerfEvents.QueryFetch fetch = new PerfEvents.QueryFetch();
+                    fetch.queryKey = queryKey;
+                    fetch.hfrCode = label();
+                    fetch.begin();
+                    int cols = rs.getMetaData().getColumnCount();
+                    while (rs.next()) {
+                        if (Thread.currentThread().isInterrupted())
+                            return; // the merge gave up
+                        List<String> row = new ArrayList<>(cols);
+                        for (int i = 1; i <= cols; i++)
+                            row.add(rs.getString(i));
+                        fetch.rows++;
+                        fetch.bytes += PerfEvents.sizeOf(row);
+                        queue.put(new Item(row, orderCol >= 0 ? rs.getObject(orderCol + 1) : null, null));
+                    }
+                    fetch.commit();
+                }
+            } catch (InterruptedException e) {
+                return; // the merge gave up; nobody reads the queue any more
+            } catch (Throwable e) {
+                failure = e;
+            }
+            try {
+                queue.put(new Item(null, null, failure));
+            } catch (InterruptedException ignored) {
+                // the merge gave up
+            }
+        }
+
+        /** Takes the next item into {@code head}; false at the end of the slice. */
+        boolean advance() throws SQLException, InterruptedException {
+            head = queue.take();
+            if (head.error == null)
+                return head.row != null;
+            if (head.error instanceof SQLException)
+                throw (SQLException) head.error;
+            throw new SQLException("Facility slice " + label() + " failed: " + head.error, head.error);
+        }
+    }
+
+    /** Hides each table behind a TEMP view of the slice's facilities; temp names resolve first. */
+    private static void shadow(Connection conn, List<String> tables, List<String> facilities) throws SQLException {
+        StringBuilder in = new StringBuilder();
+        for (String hfr : facilities)
+            in.append(in.length() == 0 ? "" : ", ").append('\'').append(hfr.replace("'", "''")).append('\'');
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA query_only = 0"); // the file itself stays read-only
+            for (String table : tables)
+                stmt.execute("CREATE TEMP VIEW \"" + table + "\" AS SELECT * FROM main.\"" + table
+                        + "\" WHERE hfr_code IN (" + in + ")");
+            stmt.execute("PRAGMA query_only = 1");
+        }
+    }
+
+    /**
+     * Facilities with rows in any of {@code tables}. Tables the stats catalog
+     * already covers are read from it; the others (databases from before the
+     * catalog, or a backfill still running) are scanned for their hfr_codes.
+     */
+    static List<String> facilities(Connection conn, List<String> tables) throws SQLException {
+        TableStatsCatalog.ensureCatalogTables(conn);
+        Set<String> out = new TreeSet<>();
+        for (String table : tables) {
+            Set<String> known = new TreeSet<>();
+            try (PreparedStatement ps = conn.prepareStatement("SELECT hfr_code, row_count FROM ids_table_stats "
+                    + "WHERE lower(table_name) = lower(?) AND hfr_code IS NOT NULL")) {
+                ps.setString(1, table);
+                boolean covered = false;
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        covered = true;
+                        if (rs.getLong(2) > 0)
+                            known.add(rs.getString(1));
+                    }
+                }
+                if (!covered) {
+                    try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(
+                            "SELECT DISTINCT hfr_code FROM \"" + table + "\" WHERE hfr_code IS NOT NULL")) {
+                        while (rs.next())
+                            known.add(rs.getString(1));
+                    }
+                }
+            }
+            out.addAll(known);
+        }
+        return new ArrayList<>(out);
+    }
+
+    private static List<String> headersOf(Connection conn, String sql) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ResultSetMetaData md = ps.getMetaData();
+            List<String> headers = new ArrayList<>();
+            for (int i = 1; i <= md.getColumnCount(); i++)
+                headers.add(md.getColumnLabel(i));
+            return headers;
+        }
+    }
+
+    /**
+     * Index of the output column the query's final ORDER BY sorts on, or -1.
+     * Handles {@code ORDER BY p.PatientID} and sort keys renamed in the select
+     * list ({@code c.ClientCode AS 'TESTING ID'}).
+     */
+    static int orderColumn(String sql, List<String> headers) {
+        Matcher m = ORDER_BY.matcher(sql.trim());
+        if (!m.find())
+            return -1;
+        String expr = m.group(1);
+        String bare = unquote(expr.contains(".") ? expr.substring(expr.lastIndexOf('.') + 1) : expr);
+        for (int i = 0; i < headers.size(); i++) {
+            if (headers.get(i).equalsIgnoreCase(bare))
+                return i;
+        }
+        Matcher alias = Pattern.compile(Pattern.quote(expr) + "\\s+AS\\s+('([^']+)'|\"([^\"]+)\"|(\\w+))",
+                Pattern.CASE_INSENSITIVE).matcher(sql);
+        if (alias.find()) {
+            String label = alias.group(2) != null ? alias.group(2)
+                    : alias.group(3) != null ? alias.group(3) : alias.group(4);
+            for (int i = 0; i < headers.size(); i++) {
+                if (headers.get(i).equalsIgnoreCase(label))
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean descending(String sql) {
+        Matcher m = ORDER_BY.matcher(sql.trim());
+        return m.find() && "DESC".equalsIgnoreCase(m.group(3));
+    }
+
+    private static String unquote(String s) {
+        if (s.length() >= 2 && (s.startsWith("\"") || s.startsWith("'") || s.startsWith("[")))
+            return s.substring(1, s.length() - 1);
+        return s;
+    }
+
+    /** Heap merge of the slice queues; ties keep facility order. */
+    private static void merge(List<Slice> slices, int orderCol, boolean desc, Consumer<List<String>> sink)
+            throws SQLException, InterruptedException {
+        if (orderCol < 0) {
+            for (Slice s : slices) {
+                while (s.advance())
+                    sink.accept(s.head.row);
+            }
+            return;
+        }
+        Comparator<Integer> byKey = (a, b) -> {
+            int c = compareValues(slices.get(a).head.key, slices.get(b).head.key);
+            if (desc)
+                c = -c;
+            return c != 0 ? c : Integer.compare(a, b);
+        };
+        PriorityQueue<Integer> heads = new PriorityQueue<>(slices.size(), byKey);
+        for (int s = 0; s < slices.size(); s++) {
+            if (slices.get(s).advance())
+                heads.add(s);
+        }
+        while (!heads.isEmpty()) {
+            int s = heads.poll();
+            Slice slice = slices.get(s);
+            sink.accept(slice.head.row);
+            if (slice.advance())
+                heads.add(s);
+        }
+    }
+
+    /** SQLite's cross-type order: NULL, then numbers, then text. */
+    static int compareValues(Object a, Object b) {
+        int ra = rank(a), rb = rank(b);
+        if (ra != rb)
+            return Integer.compare(ra, rb);
+        if (ra == 0)
+            return 0;
+        if (ra == 1)
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static int rank(Object v) {
+        return v == null ? 0 : v instanceof Number ? 1 : 2;
+    }
+}
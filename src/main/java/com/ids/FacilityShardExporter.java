@@ -0,0 +1,283 @@
+package com.ids;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes one indicator result as one CSV per hfr_code plus an index file, in a
+ * single pass over the rows. All files are named after the export's base name, so
+ * several indicators can share one folder.
+ *
+ * Rows are grouped into small per-facility batches and handed to a fixed set of
+ * writer lanes; a facility always maps to the same lane so its file is written in
+ * row order. Each lane keeps at most {@code maxOpenFiles / lanes} files open and
+ * reopens evicted ones in append mode. Codes that sanitize to the same file name
+ * (say {@code A/1} and {@code A_1}, or {@code hf1} and {@code HF1} on a
+ * case-insensitive disk) get a hash suffix, so no two facilities share a file.
+ */
+public class FacilityShardExporter {
+
+    public static final String FACILITY_COLUMN = "hfr_code";
+
+    private static final int BATCH_ROWS = 256;
+    private static final int LANE_QUEUE_BATCHES = 64;
+    private static final List<List<String>> END_OF_INPUT = new ArrayList<>();
+
+    private final int lanes;
+    private final int maxOpenFiles;
+
+    public FacilityShardExporter(int lanes, int maxOpenFiles) {
+        if (lanes < 1 || maxOpenFiles < lanes)
+            throw new IllegalArgumentException("need at least one open file per writer lane");
+        this.lanes = lanes;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    public static FacilityShardExporter withDefaults() {
+        int lanes = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return new FacilityShardExporter(lanes, 64);
+    }
+
+    /** Per-facility row counts and file names, in hfr_code order, as written to the index. */
+    public static class Summary {
+        public final Map<String, Integer> rowsByFacility;
+        public final Map<String, String> fileByFacility;
+        public final Path directory;
+
+        Summary(Map<String, Integer> rowsByFacility, Map<String, String> fileByFacility, Path directory) {
+            this.rowsByFacility = rowsByFacility;
+            this.fileByFacility = fileByFacility;
+            this.directory = directory;
+        }
+
+        public int totalRows() {
+            return rowsByFacility.values().stream().mapToInt(Integer::intValue).sum();
+        }
+    }
+
+    public static int facilityColumnIndex(List<String> headers) {
+        for (int i = 0; i < headers.size(); i++) {
+            if (FACILITY_COLUMN.equalsIgnoreCase(headers.get(i)))
+                return i;
+        }
+        return -1;
+    }
+
+    public Summary export(List<String> headers, List<? extends List<String>> rows, Path outDir, String baseName)
+            throws IOException {
+        int facilityCol = facilityColumnIndex(headers);
+        if (facilityCol < 0)
+            throw new IllegalArgumentException("Result has no " + FACILITY_COLUMN + " column to split on.");
+
+        Files.createDirectories(outDir);
+        String header = Csv.line(headers, headers.size());
+        PerfEvents.CsvExport event = new PerfEvents.CsvExport();
+        event.queryKey = baseName;
+        event.path = outDir.toString();
+        event.begin();
+
+        List<BlockingQueue<List<List<String>>>> queues = new ArrayList<>();
+        List<Map<String, Integer>> laneCounts = new ArrayList<>();
+        // Filled by this thread before a facility's first batch is queued, read by the lanes
+        Map<String, String> fileNames = new ConcurrentHashMap<>();
+        Set<String> takenNames = new HashSet<>();
+        ExecutorService pool = Executors.newFixedThreadPool(lanes, r -> {
+            Thread t = new Thread(r, "shard-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < lanes; i++) {
+            BlockingQueue<List<List<String>>> queue = new ArrayBlockingQueue<>(LANE_QUEUE_BATCHES);
+            Map<String, Integer> counts = new HashMap<>();
+            queues.add(queue);
+            laneCounts.add(counts);
+            Lane lane = new Lane(queue, counts, fileNames, outDir, header, headers.size(), facilityCol,
+                    maxOpenFiles / lanes);
+            futures.add(pool.submit(lane));
+        }
+
+        try {
+            // Single pass: accumulate per-facility batches, hand full ones to their lane
+            Map<String, List<List<String>>> pending = new HashMap<>();
+            for (List<String> row : rows) {
+                String facility = facilityOf(row, facilityCol);
+                fileNames.computeIfAbsent(facility, f -> uniqueFileName(baseName, f, takenNames));
+                List<List<String>> batch = pending.computeIfAbsent(facility, f -> new ArrayList<>(BATCH_ROWS));
+                batch.add(row);
+                event.rows++;
+                event.bytes += PerfEvents.sizeOf(row);
+                if (batch.size() >= BATCH_ROWS) {
+                    put(queues.get(laneOf(facility)), batch, futures);
+                    pending.remove(facility);
+                }
+            }
+            for (Map.Entry<String, List<List<String>>> e : pending.entrySet())
+                put(queues.get(laneOf(e.getKey())), e.getValue(), futures);
+            for (BlockingQueue<List<List<String>>> queue : queues)
+                put(queue, END_OF_INPUT, futures);
+
+            for (Future<?> f : futures)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Map<String, Integer> merged = new TreeMap<>();
+        for (Map<String, Integer> counts : laneCounts)
+            merged.putAll(counts);
+        writeIndex(outDir, baseName, merged, fileNames);
+        event.commit();
+        return new Summary(merged, new TreeMap<>(fileNames), outDir);
+    }
+
+    private int laneOf(String facility) {
+        return Math.floorMod(facility.hashCode(), lanes);
+    }
+
+    // Blocks while the lane is busy, but gives up if a lane has already failed
+    private static void put(BlockingQueue<List<List<String>>> queue, List<List<String>> batch, List<Future<?>> lanes)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(batch, 200, TimeUnit.MILLISECONDS)) {
+            for (Future<?> f : lanes) {
+                if (f.isDone())
+                    f.get();
+            }
+        }
+    }
+
+    static String facilityOf(List<String> row, int facilityCol) {
+        String v = facilityCol < row.size() ? row.get(facilityCol) : null;
+        return (v == null || v.isBlank()) ? "UNKNOWN" : v.trim();
+    }
+
+    static String fileNameFor(String baseName, String facility) {
+        return baseName + "_" + facility.replaceAll("[^A-Za-z0-9._-]", "_") + ".csv";
+    }
+
+    /** The index lists the files of one export; the dash keeps it apart from any facility file. */
+    public static String indexFileFor(String baseName) {
+        return baseName + "-index.csv";
+    }
+
+    // Names are compared case-insensitively, as Windows and macOS disks do
+    static String uniqueFileName(String baseName, String facility, Set<String> taken) {
+        String name = fileNameFor(baseName, facility);
+        String stem = name.substring(0, name.length() - ".csv".length());
+        String suffix = Integer.toHexString(facility.hashCode());
+        for (int n = 1; !taken.add(name.toLowerCase(Locale.ROOT)); n++)
+            name = stem + "_" + suffix + (n > 1 ? "_" + n : "") + ".csv";
+        return name;
+    }
+
+    private static void writeIndex(Path outDir, String baseName, Map<String, Integer> counts,
+            Map<String, String> fileNames) throws IOException {
+        Path index = outDir.resolve(indexFileFor(baseName));
+        try (BufferedWriter out = Files.newBufferedWriter(index, StandardCharsets.UTF_8)) {
+            out.write("hfr_code,file,rows");
+            out.newLine();
+            for (Map.Entry<String, Integer> e : counts.entrySet()) {
+                out.write(Csv.escape(e.getKey()) + "," + Csv.escape(fileNames.get(e.getKey())) + ","
+                        + e.getValue());
+                out.newLine();
+            }
+        }
+    }
+
+    /** One writer thread owning a bounded LRU of open facility files. */
+    private static class Lane implements Callable<Void> {
+        private final BlockingQueue<List<List<String>>> queue;
+        private final Map<String, Integer> counts;
+        private final Map<String, String> fileNames;
+        private final Path outDir;
+        private final String header;
+        private final int width;
+        private final int facilityCol;
+        private final LinkedHashMap<String, BufferedWriter> open;
+
+        Lane(BlockingQueue<List<List<String>>> queue, Map<String, Integer> counts, Map<String, String> fileNames,
+                Path outDir, String header, int width, int facilityCol, int maxOpen) {
+            this.queue = queue;
+            this.counts = counts;
+            this.fileNames = fileNames;
+            this.outDir = outDir;
+            this.header = header;
+            this.width = width;
+            this.facilityCol = facilityCol;
+            this.open = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BufferedWriter> eldest) {
+                    if (size() <= maxOpen)
+                        return false;
+                    try {
+                        eldest.getValue().close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                while (true) {
+                    List<List<String>> batch = queue.take();
+                    if (batch == END_OF_INPUT)
+                        return null;
+                    String facility = facilityOf(batch.get(0), facilityCol);
+                    BufferedWriter out = writerFor(facility);
+                    for (List<String> row : batch) {
+                        out.write(Csv.line(row, width));
+                        out.newLine();
+                    }
+                    counts.merge(facility, batch.size(), Integer::sum);
+                }
+            } finally {
+                IOException first = null;
+                for (BufferedWriter w : open.values()) {
+                    try {
+                        w.close();
+                    } catch (IOException e) {
+                        if (first == null)
+                            first = e;
+                    }
+                }
+                open.clear();
+                if (first != null)
+                    throw first;
+            }
+        }
+
+        private BufferedWriter writerFor(String facility) throws IOException {
+            BufferedWriter out = open.get(facility);
+            if (out != null)
+                return out;
+            Path file = outDir.resolve(fileNames.get(facility));
+            boolean fresh = !counts.containsKey(facility);
+            out = fresh
+                    ? Files.newBufferedWriter(file, StandardCharsets.UTF_8)
+                    : Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            if (fresh) {
+                out.write(header);
+                out.newLine();
+            }
+            open.put(facility, out);
+            return out;
+        }
+    }
+}
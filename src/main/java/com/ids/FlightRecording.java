@@ -0,0 +1,78 @@
+package com.ids;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * An on-demand Flight Recorder recording: the JDK's "profile" settings plus
+ * every {@link PerfEvents} event, dumped to {@code recordings/} in the app data
+ * directory so a slow session in the field can be sent in and read offline.
+ */
+public class FlightRecording {
+
+    static final String DIR_NAME = "recordings";
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Path outDir;
+    private Recording recording;
+
+    public FlightRecording(Path appDataDir) {
+        this.outDir = appDataDir.resolve(DIR_NAME);
+    }
+
+    public synchronized boolean isRunning() {
+        return recording != null;
+    }
+
+    public synchronized void start() throws IOException {
+        if (recording != null)
+            return;
+        Recording r;
+        try {
+            r = new Recording(Configuration.getConfiguration("profile"));
+        } catch (ParseException e) {
+            throw new IOException("Unreadable JFR settings: " + e.getMessage(), e);
+        }
+        r.setName("IDS Analytics");
+        r.setToDisk(true);
+        r.setMaxAge(Duration.ofHours(1)); // a long session keeps only the recent past
+        for (Class<?> event : PerfEvents.class.getClasses()) {
+            if (jdk.jfr.Event.class.isAssignableFrom(event))
+                r.enable(event.asSubclass(jdk.jfr.Event.class)).withThreshold(Duration.ZERO);
+        }
+        r.start();
+        recording = r;
+    }
+
+    /** Stops the recording and writes it to a timestamped file; returns its path. */
+    public synchronized Path stopAndDump() throws IOException {
+        if (recording == null)
+            throw new IllegalStateException("No recording is running");
+        try {
+            Files.createDirectories(outDir);
+            Path file = outDir.resolve("ids-" + LocalDateTime.now().format(STAMP) + ".jfr");
+            recording.stop();
+            recording.dump(file);
+            return file;
+        } finally {
+            recording.close();
+            recording = null;
+        }
+    }
+
+    /** Discards a running recording without writing it; called on exit. */
+    public synchronized void close() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.ids;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Small HyperLogLog distinct-count sketch. Registers serialise to a byte array
+ * so sketches can be stored in SQLite and merged later (union of sets).
+ */
+public final class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 11;
+
+    private final int p;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be 4..16");
+        this.p = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /** Restores a sketch from {@link #toBytes()}; precision is implied by length. */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        int precision = Integer.numberOfTrailingZeros(bytes.length);
+        if (bytes.length != 1 << precision)
+            throw new IllegalArgumentException("not a sketch: " + bytes.length + " bytes");
+        HyperLogLog h = new HyperLogLog(precision);
+        System.arraycopy(bytes, 0, h.registers, 0, bytes.length);
+        return h;
+    }
+
+    public byte[] toBytes() {
+        return registers.clone();
+    }
+
+    public void add(String value) {
+        if (value != null)
+            addHash(hash64(value));
+    }
+
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (64 - p));
+        long rest = hash << p;
+        int rank = rest == 0 ? 64 - p + 1 : Long.numberOfLeadingZeros(rest) + 1;
+        if (rank > registers[index])
+            registers[index] = (byte) rank;
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.p != p)
+            throw new IllegalArgumentException("cannot merge sketches of different precision");
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    public boolean isEmpty() {
+        for (byte r : registers) {
+            if (r != 0)
+                return false;
+        }
+        return true;
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * (double) m / sum;
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log((double) m / zeros); // linear counting for small sets
+        return Math.round(e);
+    }
+
+    /** Typical relative standard error of {@link #estimate()}. */
+    public double relativeError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    /** 64-bit FNV-1a over UTF-8 bytes with a final avalanche mix. */
+    public static long hash64(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,86 @@
+package com.ids;
+
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable record of a batch import. Every selected file is written as PENDING
+ * before work starts; a file only becomes DONE inside the same transaction that
+ * copies its rows, so after a crash the PENDING files are exactly the ones left
+ * to do and none of them has partial data in the database.
+ */
+public class ImportJournal {
+
+    public static final String PENDING = "PENDING";
+    public static final String DONE = "DONE";
+    public static final String SKIPPED = "SKIPPED";
+    public static final String FAILED = "FAILED";
+
+    static void ensureTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_import_journal (source_path TEXT PRIMARY KEY, "
+                    + "source_mdb TEXT, batch_id TEXT, status TEXT, hfr_code TEXT, message TEXT, updated_at TEXT)");
+        }
+    }
+
+    /** Records the files of a new batch as PENDING in one transaction; returns the batch id. */
+    public static String enqueue(Connection conn, List<File> files) throws SQLException {
+        ensureTable(conn);
+        String batchId = Long.toString(System.currentTimeMillis(), 36);
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement("INSERT OR REPLACE INTO ids_import_journal "
+                + "(source_path, source_mdb, batch_id, status, updated_at) VALUES (?, ?, ?, ?, datetime('now'))")) {
+            for (File f : files) {
+                ps.setString(1, f.getAbsolutePath());
+                ps.setString(2, f.getName());
+                ps.setString(3, batchId);
+                ps.setString(4, PENDING);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            conn.commit();
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return batchId;
+    }
+
+    /**
+     * Sets the status of a journaled file. Runs in the caller's transaction, so a
+     * DONE written during an import commits or rolls back with the data.
+     */
+    public static void mark(Connection conn, String sourcePath, String status, String hfrCode, String message)
+            throws SQLException {
+        if (sourcePath == null)
+            return;
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE ids_import_journal SET status = ?, hfr_code = ?, "
+                + "message = ?, updated_at = datetime('now') WHERE source_path = ?")) {
+            ps.setString(1, status);
+            ps.setString(2, hfrCode);
+            ps.setString(3, message);
+            ps.setString(4, sourcePath);
+            ps.executeUpdate();
+        }
+    }
+
+    /** Files of interrupted batches, in the order they were queued. */
+    public static List<File> pendingFiles(Connection conn) throws SQLException {
+        ensureTable(conn);
+        List<File> files = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT source_path FROM ids_import_journal WHERE status = ? ORDER BY rowid")) {
+            ps.setString(1, PENDING);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next())
+                    files.add(new File(rs.getString(1)));
+            }
+        }
+        return files;
+    }
+}
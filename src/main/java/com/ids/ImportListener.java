@@ -0,0 +1,42 @@
+package com.ids;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Hook for data derived from imported rows (statistics, search index, ...).
+ * Listeners see every row while {@link MdbRecordManager} copies it, so they
+ * never have to rescan a table, and run inside the import transaction.
+ */
+interface ImportListener {
+
+    /** Receives the rows of one table from one source. */
+    interface TableSink {
+        void accept(String[] values) throws SQLException;
+
+        /** Called after the table's last row, before the import commits. */
+        void finish(Connection conn) throws SQLException;
+    }
+
+    /** Creates bookkeeping tables; called before each import and removal. */
+    default void ensureTables(Connection conn) throws SQLException {
+    }
+
+    /**
+     * Returns a sink for this table, or null when the listener does not care.
+     * {@code columnNames} excludes hfr_code and source_mdb.
+     */
+    default TableSink onTable(Connection conn, String tableName, List<String> columnNames, String hfrCode)
+            throws SQLException {
+        return null;
+    }
+
+    /** Called after all tables of a source are copied, before the commit. */
+    default void onSourceImported(Connection conn, String hfrCode) throws SQLException {
+    }
+
+    /** Called after a facility's rows were deleted from every data table. */
+    default void onSourceRemoved(Connection conn, String hfrCode) throws SQLException {
+    }
+}
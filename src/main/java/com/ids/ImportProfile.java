@@ -0,0 +1,183 @@
+package com.ids;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.healthmarketscience.jackcess.Column;
+import com.healthmarketscience.jackcess.Table;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Describes which MDB tables and columns are copied into converted.db.
+ * Tables left out of a profile are recorded as deferred and can be imported
+ * on demand later (see {@link MdbRecordManager#importDeferredTable}).
+ */
+public class ImportProfile {
+
+    /** Marker used in profile files for "every column of this table". */
+    public static final String ALL_COLUMNS = "*";
+
+    /** Tables the app itself reads during import and in the sources list. */
+    private static final List<String> REQUIRED_TABLES = List.of("tblConfig", "SecurityUsers");
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern STRING_LITERAL = Pattern.compile("'[^']*'");
+    // alias is a lookahead so a following JOIN keyword is not consumed
+    private static final Pattern TABLE_REF = Pattern.compile(
+            "\\b(?:FROM|JOIN)\\s+([A-Za-z_][A-Za-z0-9_]*)(?=\\s+(?:AS\\s+)?([A-Za-z_][A-Za-z0-9_]*))?",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern CTE_NAME = Pattern.compile(
+            "(?:\\bWITH|,)\\s*([A-Za-z_][A-Za-z0-9_]*)\\s+AS\\s*\\(", Pattern.CASE_INSENSITIVE);
+    private static final Pattern STAR_REF = Pattern.compile("\\b([A-Za-z_][A-Za-z0-9_]*)\\.\\*");
+    private static final Set<String> KEYWORDS = Set.of("on", "where", "join", "left", "right", "inner", "outer",
+            "cross", "group", "order", "having", "limit", "union", "using", "as", "select", "and", "or");
+
+    public static final ImportProfile FULL = new ImportProfile("Full (all tables)", null, Set.of());
+
+    private static ImportProfile catalogDefault;
+
+    private final String name;
+    // lower-case table name -> lower-case column names; null means every table
+    private final Map<String, Set<String>> tables;
+    // lower-case identifiers referenced anywhere in the catalog
+    private final Set<String> referencedColumns;
+
+    private ImportProfile(String name, Map<String, Set<String>> tables, Set<String> referencedColumns) {
+        this.name = name;
+        this.tables = tables;
+        this.referencedColumns = referencedColumns;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isFull() {
+        return tables == null;
+    }
+
+    public boolean includesTable(String tableName) {
+        return tables == null || tables.containsKey(tableName.toLowerCase(Locale.ROOT));
+    }
+
+    /** Columns of {@code mdbTable} this profile copies, in MDB column order. */
+    public List<Column> selectColumns(Table mdbTable) {
+        List<Column> all = new ArrayList<>(mdbTable.getColumns());
+        if (tables == null)
+            return all;
+        Set<String> cols = tables.get(mdbTable.getName().toLowerCase(Locale.ROOT));
+        if (cols == null)
+            return List.of();
+        if (cols.contains(ALL_COLUMNS))
+            return all;
+
+        List<Column> selected = new ArrayList<>();
+        for (Column col : all) {
+            String lower = col.getName().toLowerCase(Locale.ROOT);
+            if (cols.contains(lower) || referencedColumns.contains(lower))
+                selected.add(col);
+        }
+        return selected;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /** Default profile: the tables and columns queries.json actually references. */
+    public static synchronized ImportProfile catalogDefault() {
+        if (catalogDefault == null)
+            catalogDefault = fromQueryCatalog("Indicators (from query catalog)", QueryLoader.getAllQueries().values());
+        return catalogDefault;
+    }
+
+    /**
+     * Derives a profile from SQL text. Column selection is deliberately generous:
+     * any identifier that appears in the catalog is kept for every referenced table,
+     * so unqualified columns inside CTEs are never lost. {@code alias.*} keeps the
+     * whole table.
+     */
+    public static ImportProfile fromQueryCatalog(String name, Collection<String> sqls) {
+        Map<String, Set<String>> tables = new LinkedHashMap<>();
+        Set<String> identifiers = new HashSet<>();
+
+        for (String raw : sqls) {
+            String sql = STRING_LITERAL.matcher(raw).replaceAll("''");
+
+            Set<String> cteNames = new HashSet<>();
+            Matcher cte = CTE_NAME.matcher(sql);
+            while (cte.find())
+                cteNames.add(cte.group(1).toLowerCase(Locale.ROOT));
+
+            Map<String, String> aliases = new HashMap<>();
+            Matcher ref = TABLE_REF.matcher(sql);
+            while (ref.find()) {
+                String table = ref.group(1).toLowerCase(Locale.ROOT);
+                if (cteNames.contains(table) || KEYWORDS.contains(table))
+                    continue;
+                tables.computeIfAbsent(table, t -> new HashSet<>());
+                aliases.put(table, table);
+                String alias = ref.group(2);
+                if (alias != null && !KEYWORDS.contains(alias.toLowerCase(Locale.ROOT)))
+                    aliases.put(alias.toLowerCase(Locale.ROOT), table);
+            }
+
+            Matcher star = STAR_REF.matcher(sql);
+            while (star.find()) {
+                String table = aliases.get(star.group(1).toLowerCase(Locale.ROOT));
+                if (table != null)
+                    tables.get(table).add(ALL_COLUMNS);
+            }
+
+            Matcher id = IDENTIFIER.matcher(sql);
+            while (id.find())
+                identifiers.add(id.group().toLowerCase(Locale.ROOT));
+        }
+
+        for (String required : REQUIRED_TABLES)
+            tables.computeIfAbsent(required.toLowerCase(Locale.ROOT), t -> new HashSet<>()).add(ALL_COLUMNS);
+
+        return new ImportProfile(name, tables, identifiers);
+    }
+
+    /**
+     * Built-in profiles plus any named profiles from {@code import-profiles.json}
+     * in the app data dir, shaped as {@code {"name": {"table": ["col", "*"]}}}.
+     */
+    public static List<ImportProfile> loadProfiles(Path appDataDir) {
+        List<ImportProfile> profiles = new ArrayList<>();
+        profiles.add(catalogDefault());
+        profiles.add(FULL);
+
+        Path file = appDataDir == null ? null : appDataDir.resolve("import-profiles.json");
+        if (file == null || !Files.exists(file))
+            return profiles;
+
+        try {
+            Map<String, Map<String, List<String>>> custom = new ObjectMapper().readValue(file.toFile(),
+                    new TypeReference<Map<String, Map<String, List<String>>>>() {
+                    });
+            for (Map.Entry<String, Map<String, List<String>>> e : custom.entrySet()) {
+                Map<String, Set<String>> tables = new LinkedHashMap<>();
+                for (Map.Entry<String, List<String>> t : e.getValue().entrySet()) {
+                    Set<String> cols = new HashSet<>();
+                    for (String c : t.getValue())
+                        cols.add(c.toLowerCase(Locale.ROOT));
+                    tables.put(t.getKey().toLowerCase(Locale.ROOT), cols);
+                }
+                for (String required : REQUIRED_TABLES)
+                    tables.computeIfAbsent(required.toLowerCase(Locale.ROOT), t -> new HashSet<>()).add(ALL_COLUMNS);
+                profiles.add(new ImportProfile(e.getKey(), tables, Set.of()));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return profiles;
+    }
+}
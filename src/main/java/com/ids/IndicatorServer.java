@@ -0,0 +1,429 @@
+package com.ids;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional localhost HTTP API that serves the queries.json indicators, so a
+ * dashboard can poll them without anyone clicking through the query dialog.
+ *
+ * <pre>
+ * GET /api/indicators
+ * GET /api/indicators/TX_CURR?start=2024-01-01&amp;end=2024-03-31[&amp;hfr=A,B][&amp;format=csv]
+ * </pre>
+ *
+ * Requests run on virtual threads when the JVM has them (a small pool
+ * otherwise) over a bounded pool of read-only connections, so they never wait
+ * on the UI's connection. Identical requests that arrive while one is running
+ * share its result: it is written once to a temp file and streamed to each.
+ */
+public class IndicatorServer {
+
+    public static final int DEFAULT_PORT = 8765;
+    static final int POOL_SIZE = 4;
+    static final long BORROW_TIMEOUT_MS = 30_000;
+    private static final int FALLBACK_THREADS = 16;
+
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final ReadOnlyPool pool;
+    private final Path tempDir;
+    private final Map<String, Flight> flights = new HashMap<>();
+    private final JsonFactory json = new JsonFactory();
+
+    /** One in-progress result, shared by identical concurrent requests. */
+    private static class Flight {
+        final CompletableFuture<Path> body = new CompletableFuture<>();
+        int waiters;
+        boolean done;
+    }
+
+    /** A client error; {@code status} is the HTTP response code. */
+    private static class ApiException extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        ApiException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private IndicatorServer(HttpServer http, ExecutorService executor, ReadOnlyPool pool, Path tempDir) {
+        this.http = http;
+        this.executor = executor;
+        this.pool = pool;
+        this.tempDir = tempDir;
+    }
+
+    /** Binds to the loopback address only; {@code port} 0 picks a free port. */
+    public static IndicatorServer start(Path db, StorageProfile profile, int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService executor = newRequestExecutor();
+        IndicatorServer server = new IndicatorServer(http, executor, new ReadOnlyPool(db, profile, POOL_SIZE),
+                db.toAbsolutePath().getParent());
+        http.createContext("/api/indicators", server::handle);
+        http.setExecutor(executor);
+        http.start();
+        return server;
+    }
+
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + getPort() + "/api/indicators";
+    }
+
+    /** Drops pooled connections, e.g. before converted.db is deleted. */
+    public void resetConnections() {
+        pool.reset();
+    }
+
+    public void stop() {
+        http.stop(0);
+        executor.shutdownNow();
+        pool.close();
+    }
+
+    /** Virtual threads on JDK 21+, found reflectively since we build for 17. */
+    static ExecutorService newRequestExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newFixedThreadPool(FALLBACK_THREADS, r -> {
+                Thread t = new Thread(r, "indicator-api-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void handle(HttpExchange ex) {
+        try {
+            if (!"GET".equals(ex.getRequestMethod()))
+                throw new ApiException(405, "Only GET is supported");
+            String key = ex.getRequestURI().getPath().replaceFirst("^/api/indicators/?", "");
+            if (key.isEmpty())
+                sendIndicatorList(ex);
+            else
+                sendIndicator(ex, key, parseQuery(ex.getRequestURI().getRawQuery()));
+        } catch (ApiException e) {
+            sendError(ex, e.status, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(ex, 503, "Server is stopping");
+        } catch (SQLException e) {
+            sendError(ex, 500, e.getMessage());
+        } catch (IOException e) {
+            // Client went away mid-response
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void sendIndicatorList(HttpExchange ex) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(200, 0);
+        try (JsonGenerator g = json.createGenerator(ex.getResponseBody())) {
+            g.writeStartObject();
+            g.writeArrayFieldStart("indicators");
+            for (String key : new TreeSet<>(QueryLoader.getAllQueries().keySet()))
+                g.writeString(key);
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+    }
+
+    private void sendIndicator(HttpExchange ex, String key, Map<String, String> params)
+            throws IOException, ApiException, SQLException, InterruptedException {
+        if (!QueryLoader.getAllQueries().containsKey(key))
+            throw new ApiException(404, "Unknown indicator: " + key);
+        LocalDate start = parseDate(params, "start");
+        LocalDate end = parseDate(params, "end");
+        if (end.isBefore(start))
+            throw new ApiException(400, "end is before start");
+        String format = params.getOrDefault("format", "json").toLowerCase(Locale.ROOT);
+        if (!format.equals("json") && !format.equals("csv"))
+            throw new ApiException(400, "format must be json or csv");
+        List<String> facilities = new ArrayList<>();
+        for (String hfr : params.getOrDefault("hfr", "").split(","))
+            if (!hfr.isBlank())
+                facilities.add(hfr.trim());
+
+        Request request = new Request(key, start, end, facilities, format);
+        Flight flight = join(request);
+        try {
+            Path body = await(flight);
+            ex.getResponseHeaders().set("Content-Type",
+                    format.equals("csv") ? "text/csv; charset=utf-8" : "application/json; charset=utf-8");
+            ex.sendResponseHeaders(200, Files.size(body));
+            try (OutputStream out = ex.getResponseBody()) {
+                Files.copy(body, out);
+            }
+        } finally {
+            leave(flight);
+        }
+    }
+
+    private static class Request {
+        final String key;
+        final LocalDate start;
+        final LocalDate end;
+        final List<String> facilities;
+        final String format;
+
+        Request(String key, LocalDate start, LocalDate end, List<String> facilities, String format) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+            this.facilities = facilities;
+            this.format = format;
+        }
+
+        String flightKey() {
+            return key + '|' + start + '|' + end + '|' + String.join(",", facilities) + '|' + format;
+        }
+    }
+
+    /**
+     * Joins the flight for {@code request}, running it first if none is in
+     * progress. Every caller must {@link #leave} the flight afterwards.
+     */
+    private Flight join(Request request) {
+        String fk = request.flightKey();
+        Flight flight;
+        boolean leader = false;
+        synchronized (flights) {
+            flight = flights.get(fk);
+            if (flight == null) {
+                flight = new Flight();
+                flights.put(fk, flight);
+                leader = true;
+            }
+            flight.waiters++;
+        }
+        if (leader) {
+            try {
+                flight.body.complete(render(request));
+            } catch (Exception e) {
+                flight.body.completeExceptionally(e);
+            } finally {
+                synchronized (flights) {
+                    flight.done = true; // later requests run the query again
+                    flights.remove(fk);
+                }
+            }
+        }
+        return flight;
+    }
+
+    private static Path await(Flight flight) throws ApiException, SQLException, IOException, InterruptedException {
+        try {
+            return flight.body.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ApiException)
+                throw (ApiException) cause;
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof InterruptedException)
+                throw (InterruptedException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    /** The last caller to leave a finished flight deletes its temp file. */
+    private void leave(Flight flight) {
+        boolean last;
+        synchronized (flights) {
+            last = --flight.waiters == 0 && flight.done;
+        }
+        if (last && !flight.body.isCompletedExceptionally()) {
+            try {
+                Files.deleteIfExists(flight.body.join());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Path render(Request request) throws ApiException, SQLException, IOException, InterruptedException {
+        String sql = QueryLoader.render(request.key, request.start, request.end);
+        if (!request.facilities.isEmpty())
+            sql = "SELECT * FROM (" + sql + ") WHERE hfr_code IN ("
+                    + String.join(",", Collections.nCopies(request.facilities.size(), "?")) + ")";
+
+        ReadOnlyPool.Lease lease = pool.borrow(BORROW_TIMEOUT_MS);
+        if (lease == null)
+            throw new ApiException(503, "All database connections are busy; try again");
+        Path file = Files.createTempFile(tempDir, "ids-api-", "." + request.format);
+        try (lease; PreparedStatement ps = lease.conn.prepareStatement(sql)) {
+            for (int i = 0; i < request.facilities.size(); i++)
+                ps.setString(i + 1, request.facilities.get(i));
+            PerfEvents.QueryExecute execute = new PerfEvents.QueryExecute();
+            execute.queryKey = request.key;
+            execute.begin();
+            PerfEvents.QueryFetch fetch = new PerfEvents.QueryFetch();
+            fetch.queryKey = request.key;
+            try (ResultSet rs = ps.executeQuery();
+                    Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                execute.commit();
+                fetch.begin();
+                if (request.format.equals("csv"))
+                    fetch.rows = writeCsv(rs, out);
+                else
+                    fetch.rows = writeJson(rs, request, out);
+            }
+            fetch.bytes = Files.size(file);
+            fetch.commit();
+            return file;
+        } catch (SQLException | IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /** Writes the header and rows; returns the row count. */
+    private static long writeCsv(ResultSet rs, Writer out) throws SQLException, IOException {
+        ResultSetMetaData md = rs.getMetaData();
+        int cols = md.getColumnCount();
+        List<String> row = new ArrayList<>(cols);
+        for (int i = 1; i <= cols; i++)
+            row.add(md.getColumnLabel(i));
+        out.write(Csv.line(row, cols));
+        out.write("\r\n");
+        long count = 0;
+        while (rs.next()) {
+            row.clear();
+            for (int i = 1; i <= cols; i++)
+                row.add(rs.getString(i));
+            out.write(Csv.line(row, cols));
+            out.write("\r\n");
+            count++;
+        }
+        return count;
+    }
+
+    private long writeJson(ResultSet rs, Request request, Writer out) throws SQLException, IOException {
+        ResultSetMetaData md = rs.getMetaData();
+        int cols = md.getColumnCount();
+        try (JsonGenerator g = json.createGenerator(out)) {
+            g.writeStartObject();
+            g.writeStringField("indicator", request.key);
+            g.writeStringField("start", request.start.toString());
+            g.writeStringField("end", request.end.toString());
+            g.writeArrayFieldStart("hfr");
+            for (String hfr : request.facilities)
+                g.writeString(hfr);
+            g.writeEndArray();
+            g.writeArrayFieldStart("columns");
+            for (int i = 1; i <= cols; i++)
+                g.writeString(md.getColumnLabel(i));
+            g.writeEndArray();
+            g.writeArrayFieldStart("rows");
+            long count = 0;
+            while (rs.next()) {
+                g.writeStartArray();
+                for (int i = 1; i <= cols; i++) {
+                    Object v = rs.getObject(i);
+                    if (v == null)
+                        g.writeNull();
+                    else if (v instanceof Integer || v instanceof Long)
+                        g.writeNumber(((Number) v).longValue());
+                    else if (v instanceof Double || v instanceof Float)
+                        g.writeNumber(((Number) v).doubleValue());
+                    else
+                        g.writeString(rs.getString(i));
+                }
+                g.writeEndArray();
+                count++;
+            }
+            g.writeEndArray();
+            g.writeNumberField("rowCount", count);
+            g.writeEndObject();
+            return count;
+        }
+    }
+
+    private void sendError(HttpExchange ex, int status, String message) {
+        try {
+            byte[] body;
+            try (ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    JsonGenerator g = json.createGenerator(buf)) {
+                g.writeStartObject();
+                g.writeStringField("error", message == null ? "Unknown error" : message);
+                g.writeEndObject();
+                g.flush();
+                body = buf.toByteArray();
+            }
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.sendResponseHeaders(status, body.length);
+            ex.getResponseBody().write(body);
+        } catch (IOException ignored) {
+            // Client went away, or headers were already sent
+        }
+    }
+
+    private static LocalDate parseDate(Map<String, String> params, String name) throws ApiException {
+        String v = params.get(name);
+        if (v == null || v.isBlank())
+            throw new ApiException(400, "Missing " + name + " (yyyy-MM-dd)");
+        try {
+            return LocalDate.parse(v.trim());
+        } catch (DateTimeParseException e) {
+            throw new ApiException(400, "Invalid " + name + ": " + v);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (raw == null || raw.isEmpty())
+            return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.put(name, value);
+        }
+        return params;
+    }
+}
@@ -7,13 +7,15 @@ import javafx.scene.image.Image;
 import javafx.stage.Stage;
 
 public class Main extends Application {
+    private MainController controller;
+
     @Override
     public void start(Stage stage) throws Exception {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/layout.fxml"));
         Scene scene = new Scene(loader.load());
         // scene.getStylesheets().add(getClass().getResource("/style.css").toExternalForm());
         // scene.getStylesheets().add(getClass().getResource("/dark-theme.css").toExternalForm());
-        MainController controller = loader.getController();
+        controller = loader.getController();
         controller.setScene(scene);
 
         stage.setTitle("IDS Analytics");
@@ -26,6 +28,25 @@ public class Main extends Application {
         stage.setMinHeight(500);
        // stage.setMaximized(true);
         stage.show();
+        logStartup("window shown");
+    }
+
+    @Override
+    public void stop() {
+        if (controller != null)
+            controller.shutdown();
+    }
+
+    /**
+     * Prints the time since JVM launch when started with {@code -Dids.startupTrace=true}, to compare cold
+     * starts with and without the CDS archive.
+     */
+    static void logStartup(String phase) {
+        if (!Boolean.getBoolean("ids.startupTrace"))
+            return;
+        ProcessHandle.current().info().startInstant().ifPresent(start -> System.out.println(
+                "[startup] " + phase + " after " + java.time.Duration.between(start, java.time.Instant.now()).toMillis()
+                        + " ms"));
     }
 
     public static void main(String[] args) {
@@ -3,7 +3,6 @@ package com.ids;
 import com.healthmarketscience.jackcess.*;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
-import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
@@ -35,23 +34,59 @@ public class MainController {
     @FXML
     private TableView<ObservableList<String>> resultTable;
     @FXML
+    private TableView<ObservableList<String>> pivotTable;
+    @FXML
+    private TabPane resultTabs;
+    @FXML
+    private ChoiceBox<CohortTimeline.Indicator> trendIndicatorChoice;
+    @FXML
+    private Spinner<Integer> trendMonthsSpinner;
+    @FXML
+    private DatePicker trendEndPicker;
+    @FXML
+    private javafx.scene.chart.LineChart<String, Number> trendChart;
+    @FXML
+    private TableView<ObservableList<String>> trendTable;
+    @FXML
+    private TextField resultFilterField;
+    @FXML
     private TreeView<String> tableTreeView;
     @FXML
     private ProgressBar importProgress;
     @FXML
     private Label statusLabel;
     @FXML
+    private Label queueLabel;
+    @FXML
     private ListView<String> mdbListView;
     @FXML
     private ListView<String> failedImportsListView;
     @FXML
     private Button exportButton;
     @FXML
+    private Button shardExportButton;
+    @FXML
     private TextField mdbSearchField;
     @FXML
+    private TextField idSearchField;
+    @FXML
     private Label importedCountLabel;
     @FXML
     private ToggleButton themeToggle;
+    @FXML
+    private ChoiceBox<ImportProfile> importProfileChoice;
+    @FXML
+    private Button resumeImportButton;
+    @FXML
+    private ToggleButton apiToggle;
+    @FXML
+    private ToggleButton watchToggle;
+    @FXML
+    private MenuItem startRecordingItem;
+    @FXML
+    private MenuItem dumpRecordingItem;
+    @FXML
+    private MenuItem liveDatabaseItem;
 
     private Scene scene;
     private final String DARK_THEME = getClass().getResource("/dark-theme.css").toExternalForm();
@@ -59,23 +94,58 @@ public class MainController {
 
     private ObservableList<ObservableList<String>> currentResults = FXCollections.observableArrayList();
     private List<String> currentColumnHeaders = new ArrayList<>();
+    // Bumped for every ad-hoc query; a result that arrives after a newer request is dropped
+    private long queryRequest;
+    private String currentResultName = "query";
+    private static final String SEARCH_RESULT_NAME = "id_search";
+    private static final int SEARCH_LIMIT = 500;
 
-    private Connection sqliteConnection;
+    private volatile Connection sqliteConnection;
     private boolean freshImport = true;
     private ObservableList<String> failedImports = FXCollections.observableArrayList();
     private int totalMdbs = 0;
     private final AtomicInteger completedMdbs = new AtomicInteger(0);
 
     private ObservableList<String> allMdbSources;
+    private final Set<String> deferredTables = new HashSet<>();
+    private Map<String, TableStatsCatalog.TableStats> tableStats = new HashMap<>();
+    private static final int PREVIEW_ROWS = 1000;
     private FilteredList<String> filteredMdbList;
 
     private PredefinedQueryController queryController = new PredefinedQueryController();
+    // Bounded pool for predefined queries and exports; reports its queue to the status bar
+    private static final int QUERY_WORKERS = 2;
+    private final QueryScheduler queryScheduler = new QueryScheduler(QUERY_WORKERS,
+            stats -> Platform.runLater(() -> queueLabel.setText(stats.summary())));
+    private ResultGridSorter resultSorter;
+    private final java.util.concurrent.ScheduledExecutorService maintenanceExec = java.util.concurrent.Executors
+            .newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "idle-maintenance");
+                t.setDaemon(true);
+                return t;
+            });
+    private volatile long lastUserActivity = System.currentTimeMillis();
+    private volatile boolean importRunning;
+    private StorageProfile storageProfile = StorageProfile.defaults();
     private final java.util.concurrent.ScheduledExecutorService progressExec = java.util.concurrent.Executors
             .newSingleThreadScheduledExecutor();
     private java.util.concurrent.ScheduledFuture<?> progressTask;
 
     private Path appDataDir;
     private Path dbPath;
+    private javafx.concurrent.Task<Connection> startupLoad;
+    private IndicatorServer indicatorServer;
+    private FacilityFanout facilityFanout;
+    // Read-only converted.db connections for predefined queries, one per query worker
+    private ReadOnlyPool queryReaders;
+    private WatchFolder watchFolder;
+    private FlightRecording flightRecording;
+    /** Set while a read-only snapshot stands in for converted.db; the live connection waits aside. */
+    private volatile Snapshots.Info openSnapshot;
+    private volatile Connection liveConnection;
+    // Loaded on the first trend request; dropped whenever the catalog changes
+    private CohortTimeline cohortTimeline;
+    private static final int TREND_SERIES = 5;
 
     // Allow Main to inject the Scene for theme toggling
     public void setScene(Scene scene) {
@@ -98,11 +168,53 @@ public class MainController {
                 item -> newVal == null || newVal.isBlank() || item.toLowerCase().contains(newVal.toLowerCase())));
         importedCountLabel.textProperty().bind(Bindings.size(allMdbSources).asString("( %d )"));
 
+        // Table nodes show catalog stats; tables skipped by the import profile are
+        // listed but marked for on-demand import
+        tableTreeView.setCellFactory(tv -> new TreeCell<>() {
+            @Override
+            protected void updateItem(String item, boolean empty) {
+                super.updateItem(item, empty);
+                if (empty || item == null)
+                    setText(null);
+                else if (!isTableNode(getTreeItem()))
+                    setText(item);
+                else if (deferredTables.contains(item) && !tableStats.containsKey(item))
+                    setText(item + "  (not imported – click to load)");
+                else
+                    setText(formatTableLabel(item));
+            }
+        });
+        tableTreeView.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
+            if (isTableNode(newVal))
+                autoQueryTable(newVal.getValue());
+        });
+
+        // Double-clicking an ID search hit opens the matching row
+        resultTable.setRowFactory(tv -> {
+            TableRow<ObservableList<String>> row = new TableRow<>();
+            row.setOnMouseClicked(ev -> {
+                if (ev.getClickCount() == 2 && !row.isEmpty() && SEARCH_RESULT_NAME.equals(currentResultName))
+                    openSearchHit(row.getItem());
+            });
+            return row;
+        });
+
+        // Multi-period trends from the in-memory cohort timeline
+        trendIndicatorChoice.getItems().setAll(CohortTimeline.Indicator.values());
+        trendIndicatorChoice.getSelectionModel().selectFirst();
+        trendMonthsSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 120, 24));
+        trendEndPicker.setValue(LocalDate.now());
+
+        // Type-aware sort/filter off the FX thread
+        resultSorter = ResultGridSorter.attach(resultTable, resultFilterField, statusLabel::setText);
+
         // Theme toggle (hook scene safely after attach)
         themeToggle.setSelected(false);
         Platform.runLater(() -> {
             Scene sc = statusLabel.getScene(); // any node already attached
             if (sc != null) {
+                sc.addEventFilter(javafx.scene.input.InputEvent.ANY,
+                        e -> lastUserActivity = System.currentTimeMillis());
                 if (!sc.getStylesheets().contains(LIGHT_THEME))
                     sc.getStylesheets().add(LIGHT_THEME);
                 themeToggle.setText("Dark Mode");
@@ -122,34 +234,446 @@ public class MainController {
             }
         });
 
-        // DB: only connect if file exists; otherwise just update status label.
+        // Profiles are tiny; the database itself is opened off the FX thread
+        if (appDataDir == null)
+            initStorage();
+        importProfileChoice.getItems().setAll(ImportProfile.loadProfiles(appDataDir));
+        importProfileChoice.getSelectionModel().selectFirst();
+        storageProfile = StorageProfile.load(appDataDir);
+        loadCatalogAtStartup();
+        importProfileChoice.valueProperty().addListener((obs, old, p) -> {
+            if (watchFolder != null)
+                watchFolder.setProfile(selectedImportProfile());
+        });
+        Path watched = WatchFolder.savedFolder(appDataDir);
+        if (watched != null && Files.isDirectory(watched))
+            startWatching(watched);
+
+        // Idle maintenance: checked every minute, runs one bounded slice
+        maintenanceExec.scheduleWithFixedDelay(this::maintainIfIdle, 1, 1, java.util.concurrent.TimeUnit.MINUTES);
+    }
+
+    private void maintainIfIdle() {
+        long idleMs = System.currentTimeMillis() - lastUserActivity;
+        Connection conn = sqliteConnection;
+        if (conn == null || importRunning || openSnapshot != null
+                || idleMs < storageProfile.idleMinutes * 60_000L)
+            return;
         try {
-            if (appDataDir == null)
-                initStorage();
+            DatabaseMaintenance.Report report;
+            synchronized (conn) {
+                report = DatabaseMaintenance.runSlice(conn, storageProfile);
+            }
+            if (report.didWork())
+                Platform.runLater(() -> statusLabel.setText("🧹 Idle maintenance: " + report.summary()));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
-            File dbFile = dbPath.toFile();
-            if (dbFile.exists()) {
-                sqliteConnection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-
-                // ✅ Check if there are any tables in the DB
-                try (ResultSet rs = sqliteConnection.getMetaData().getTables(null, null, "%",
-                        new String[] { "TABLE" })) {
-                    if (rs.next()) {
-                        loadTablesIntoTreeView(sqliteConnection);
-                        loadMdbSourcesList(sqliteConnection);
-                        statusLabel.setText("✅ Loaded existing converted.db");
-                    } else {
-                        statusLabel.setText("ℹ️ Database is empty. Please import MDBs.");
-                    }
+    /** Runs maintenance in the background; {@code full} converts and frees everything. */
+    private void runMaintenanceInBackground(boolean full) {
+        if (sqliteConnection == null)
+            return;
+        final Connection conn = sqliteConnection;
+        javafx.concurrent.Task<DatabaseMaintenance.Report> task = new javafx.concurrent.Task<>() {
+            @Override
+            protected DatabaseMaintenance.Report call() throws Exception {
+                synchronized (conn) {
+                    return full ? DatabaseMaintenance.runFull(conn, storageProfile)
+                            : DatabaseMaintenance.runSlice(conn, storageProfile);
                 }
+            }
+        };
+        task.setOnSucceeded(ev -> {
+            if (full)
+                importProgress.setProgress(1.0);
+            if (full || task.getValue().didWork())
+                statusLabel.setText("🧹 " + task.getValue().summary());
+        });
+        task.setOnFailed(ev -> {
+            if (full)
+                importProgress.setProgress(0);
+            Throwable ex = task.getException();
+            if (full)
+                showAlert("Maintenance Error", ex != null ? ex.getMessage() : "Unknown error");
+            else if (ex != null)
+                ex.printStackTrace();
+        });
+        Thread t = new Thread(task, "db-maintenance");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Compacts converted.db and refreshes planner statistics now. */
+    @FXML
+    public void onMaintainClicked() {
+        if (sqliteConnection == null) {
+            showAlert("No Database", "Open or import a database first.");
+            return;
+        }
+        if (importRunning) {
+            statusLabel.setText("Wait for the import to finish before maintaining the database.");
+            return;
+        }
+        if (openSnapshot != null) {
+            statusLabel.setText("Snapshots are read-only – go back to the live database to maintain it.");
+            return;
+        }
+        statusLabel.setText("🧹 Compacting database and refreshing statistics…");
+        importProgress.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        runMaintenanceInBackground(true);
+    }
+
+    /** Starts or stops the localhost indicator API ({@code -Dids.api.port} overrides the port). */
+    @FXML
+    public void onApiToggled() {
+        if (!apiToggle.isSelected()) {
+            stopApi();
+            statusLabel.setText("🌐 Local API stopped.");
+            return;
+        }
+        try {
+            int port = Integer.getInteger("ids.api.port", IndicatorServer.DEFAULT_PORT);
+            indicatorServer = IndicatorServer.start(dbPath, storageProfile, port);
+            statusLabel.setText("🌐 Local API: " + indicatorServer.getBaseUrl());
+        } catch (IOException e) {
+            apiToggle.setSelected(false);
+            showAlert("Local API", "Could not start the local API: " + e.getMessage());
+        }
+    }
+
+    /** Stops the local API, if running. */
+    public void stopApi() {
+        if (indicatorServer != null) {
+            indicatorServer.stop();
+            indicatorServer = null;
+        }
+    }
+
+    /** Stops background services; called on exit. */
+    public void shutdown() {
+        stopApi();
+        if (watchFolder != null)
+            watchFolder.close();
+        if (flightRecording != null)
+            flightRecording.close();
+        if (queryReaders != null)
+            queryReaders.close();
+    }
+
+    /** Copies converted.db to a new versioned snapshot in the background; queries keep running. */
+    @FXML
+    public void onTakeSnapshotClicked() {
+        if (dbPath == null || !dbPath.toFile().exists()) {
+            showAlert("No Database", "Import MDBs before taking a snapshot.");
+            return;
+        }
+        TextInputDialog dialog = new TextInputDialog(java.time.YearMonth.now().minusMonths(1).toString());
+        dialog.setTitle("Take Snapshot");
+        dialog.setHeaderText("Freeze the current data for a reporting period");
+        dialog.setContentText("Period label:");
+        java.util.Optional<String> label = dialog.showAndWait();
+        if (label.isEmpty())
+            return;
+
+        statusLabel.setText("📸 Taking snapshot…");
+        importProgress.setProgress(0);
+        final Path db = dbPath;
+        javafx.concurrent.Task<Snapshots.Info> task = new javafx.concurrent.Task<>() {
+            @Override
+            protected Snapshots.Info call() throws Exception {
+                return Snapshots.take(db, storageProfile, appDataDir, label.get(), f -> updateProgress(f, 1.0));
+            }
+        };
+        task.progressProperty().addListener((obs, old, p) -> importProgress.setProgress(p.doubleValue()));
+        task.setOnSucceeded(ev -> {
+            importProgress.setProgress(1.0);
+            statusLabel.setText("📸 Snapshot " + task.getValue() + " saved to " + task.getValue().file);
+        });
+        task.setOnFailed(ev -> {
+            importProgress.setProgress(0);
+            Throwable ex = task.getException();
+            showAlert("Snapshot Error", ex != null ? ex.getMessage() : "Unknown error");
+        });
+        Thread t = new Thread(task, "db-snapshot");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /** Switches queries and the table browser to a read-only snapshot. */
+    @FXML
+    public void onOpenSnapshotClicked() {
+        List<Snapshots.Info> snapshots;
+        try {
+            snapshots = Snapshots.list(appDataDir);
+        } catch (IOException e) {
+            showAlert("Snapshot Error", e.getMessage());
+            return;
+        }
+        if (snapshots.isEmpty()) {
+            showAlert("No Snapshots", "No snapshots have been taken yet.");
+            return;
+        }
+        if (importRunning) {
+            statusLabel.setText("Wait for the import to finish before opening a snapshot.");
+            return;
+        }
+        ChoiceDialog<Snapshots.Info> dialog = new ChoiceDialog<>(snapshots.get(snapshots.size() - 1), snapshots);
+        dialog.setTitle("Open Snapshot");
+        dialog.setHeaderText("Re-run indicators against a frozen period (read-only)");
+        dialog.setContentText("Snapshot:");
+        java.util.Optional<Snapshots.Info> choice = dialog.showAndWait();
+        if (choice.isEmpty())
+            return;
+
+        Connection conn;
+        try {
+            conn = Snapshots.open(choice.get(), storageProfile);
+        } catch (SQLException e) {
+            showAlert("Snapshot Error", "Could not open the snapshot: " + e.getMessage());
+            return;
+        }
+        if (openSnapshot == null)
+            liveConnection = sqliteConnection;
+        else
+            closeQuietly(sqliteConnection);
+        sqliteConnection = conn;
+        openSnapshot = choice.get();
+        liveDatabaseItem.setDisable(false);
+        clearResults();
+        reloadCatalog();
+        statusLabel.setText("📸 Viewing snapshot " + openSnapshot + " (read-only). Imports are paused.");
+    }
+
+    /** Closes the open snapshot and returns to converted.db. */
+    @FXML
+    public void onLiveDatabaseClicked() {
+        if (openSnapshot == null)
+            return;
+        closeQuietly(sqliteConnection);
+        sqliteConnection = liveConnection;
+        liveConnection = null;
+        openSnapshot = null;
+        liveDatabaseItem.setDisable(true);
+        clearResults();
+        reloadCatalog();
+        statusLabel.setText("✅ Back on the live database.");
+    }
+
+    /**
+     * converted.db's connection, also while a snapshot stands in for it. Read from the watch thread, so it
+     * retries if a snapshot opened between the two reads.
+     */
+    private Connection writableConnection() {
+        Connection live, current;
+        do {
+            live = liveConnection;
+            current = sqliteConnection;
+        } while (live != liveConnection);
+        return live != null ? live : current;
+    }
+
+    private void clearResults() {
+        queryRequest++; // a query still running against the previous database is not shown
+        PredefinedQueryController.clearTable(resultTable);
+        PredefinedQueryController.clearTable(pivotTable);
+        currentResults = FXCollections.observableArrayList();
+        exportButton.setVisible(false);
+        shardExportButton.setVisible(false);
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            if (conn != null)
+                conn.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Starts a Flight Recorder recording with the app's import, query and export events. */
+    @FXML
+    public void onStartRecordingClicked() {
+        if (flightRecording == null)
+            flightRecording = new FlightRecording(appDataDir);
+        try {
+            flightRecording.start();
+        } catch (IOException | RuntimeException e) {
+            showAlert("Diagnostics", "Could not start the recording: " + e.getMessage());
+            return;
+        }
+        startRecordingItem.setDisable(true);
+        dumpRecordingItem.setDisable(false);
+        statusLabel.setText("🩺 Recording performance – reproduce the slow step, then Stop and Save.");
+    }
+
+    /** Stops the recording and writes it to the app data directory, off the FX thread. */
+    @FXML
+    public void onDumpRecordingClicked() {
+        if (flightRecording == null || !flightRecording.isRunning())
+            return;
+        dumpRecordingItem.setDisable(true);
+        statusLabel.setText("🩺 Saving recording…");
+        final FlightRecording recording = flightRecording;
+        javafx.concurrent.Task<Path> task = new javafx.concurrent.Task<>() {
+            @Override
+            protected Path call() throws Exception {
+                return recording.stopAndDump();
+            }
+        };
+        task.setOnSucceeded(ev -> {
+            startRecordingItem.setDisable(false);
+            statusLabel.setText("🩺 Recording saved to " + task.getValue());
+        });
+        task.setOnFailed(ev -> {
+            startRecordingItem.setDisable(false);
+            Throwable ex = task.getException();
+            showAlert("Diagnostics",
+                    "Could not save the recording: " + (ex != null ? ex.getMessage() : "Unknown error"));
+        });
+        Thread t = new Thread(task, "jfr-dump");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Starts watching a chosen folder for new or changed MDBs, or stops watching. */
+    @FXML
+    public void onWatchToggled() {
+        if (!watchToggle.isSelected()) {
+            if (watchFolder != null)
+                watchFolder.close();
+            watchFolder = null;
+            try {
+                WatchFolder.saveFolder(appDataDir, null);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            watchToggle.setText("👁 Watch Folder");
+            statusLabel.setText("👁 Stopped watching for MDBs.");
+            return;
+        }
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Select Folder to Watch for MDB Files");
+        File dir = chooser.showDialog(null);
+        if (dir == null) {
+            watchToggle.setSelected(false);
+            return;
+        }
+        if (sqliteConnection == null) {
+            if (startupLoad != null && startupLoad.isRunning()) {
+                watchToggle.setSelected(false);
+                statusLabel.setText("Still opening converted.db – try again in a moment.");
+                return;
+            }
+            try {
+                sqliteConnection = openDatabase();
+            } catch (SQLException e) {
+                watchToggle.setSelected(false);
+                showAlert("Watch Folder", "Could not open the database: " + e.getMessage());
+                return;
+            }
+        }
+        try {
+            WatchFolder.saveFolder(appDataDir, dir.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        startWatching(dir.toPath());
+    }
+
+    private void startWatching(Path folder) {
+        WatchFolder watch = new WatchFolder(folder, this::writableConnection,
+                () -> importRunning || openSnapshot != null,
+                selectedImportProfile(), this::onWatchedImport);
+        try {
+            watch.start();
+        } catch (IOException e) {
+            watchToggle.setSelected(false);
+            showAlert("Watch Folder", "Could not watch " + folder + ": " + e.getMessage());
+            return;
+        }
+        watchFolder = watch;
+        watchToggle.setSelected(true);
+        watchToggle.setText("👁 Watching " + folder.getFileName());
+        statusLabel.setText("👁 Watching " + folder + " for new or changed MDBs.");
+    }
+
+    /** Called on the watcher thread after each file it imported or failed to import. */
+    private void onWatchedImport(WatchFolder.Change change) {
+        MdbRecordManager.ImportResult result = change.result;
+        final String item = result.hfrCode + " [ " + change.file.getName() + " ]";
+        Platform.runLater(() -> {
+            if (ImportJournal.DONE.equals(result.status)) {
+                if (!allMdbSources.contains(item))
+                    allMdbSources.add(item);
+                statusLabel.setText("👁 Imported " + item + " from the watch folder.");
+                reloadCatalog();
+                runMaintenanceInBackground(false);
             } else {
-                statusLabel.setText("ℹ️ No existing database found. Please import MDBs.");
+                failedImports.add("Failed: [ " + change.file.getName() + " ] - " + result.message);
             }
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-            showAlert("Error", "Failed to load existing database: " + ex.getMessage());
-            statusLabel.setText("⚠️ Failed to load database.");
+        });
+    }
+
+    /**
+     * Paints the persisted catalog snapshot as soon as it is read, then opens
+     * converted.db, reads the live catalog and swaps it in, all off the FX
+     * thread so the window is usable immediately.
+     */
+    private void loadCatalogAtStartup() {
+        if (!dbPath.toFile().exists()) {
+            statusLabel.setText("ℹ️ No existing database found. Please import MDBs.");
+            return;
         }
+        statusLabel.setText("Opening converted.db…");
+        final Path snapshotFile = appDataDir.resolve(CatalogSnapshot.FILE_NAME);
+        final CatalogSnapshot[] live = new CatalogSnapshot[1];
+
+        startupLoad = new javafx.concurrent.Task<>() {
+            @Override
+            protected Connection call() throws Exception {
+                CatalogSnapshot cached = CatalogSnapshot.read(snapshotFile);
+                if (cached != null) {
+                    Platform.runLater(() -> {
+                        if (sqliteConnection == null) {
+                            applyCatalog(cached);
+                            Main.logStartup("cached catalog shown");
+                        }
+                    });
+                }
+                Connection conn = openDatabase();
+                live[0] = CatalogSnapshot.load(conn);
+                writeSnapshot(live[0]);
+                return conn;
+            }
+        };
+
+        startupLoad.setOnSucceeded(ev -> {
+            sqliteConnection = startupLoad.getValue();
+            applyCatalog(live[0]);
+            Main.logStartup("live catalog shown");
+            if (live[0].tables.isEmpty()) {
+                statusLabel.setText("ℹ️ Database is empty. Please import MDBs.");
+                return;
+            }
+            statusLabel.setText("✅ Loaded existing converted.db");
+            showPendingImports();
+            refreshStatsInBackground();
+        });
+
+        startupLoad.setOnFailed(ev -> {
+            Throwable ex = startupLoad.getException();
+            if (ex != null)
+                ex.printStackTrace();
+            showAlert("Error", "Failed to load existing database: " + (ex != null ? ex.getMessage() : "Unknown error"));
+            statusLabel.setText("⚠️ Failed to load database.");
+        });
+
+        Thread t = new Thread(startupLoad, "catalog-load");
+        t.setDaemon(true);
+        t.start();
     }
 
     public void onFreshImportClicked() {
@@ -163,6 +687,14 @@ public class MainController {
     }
 
     private void openFileOrFolderForImport() {
+        if (startupLoad != null && startupLoad.isRunning()) {
+            statusLabel.setText("Still opening converted.db – try again in a moment.");
+            return;
+        }
+        if (openSnapshot != null) {
+            statusLabel.setText("Snapshots are read-only – go back to the live database to import.");
+            return;
+        }
         Alert optionDialog = new Alert(Alert.AlertType.CONFIRMATION);
         optionDialog.initOwner(mdbListView.getScene().getWindow());
         optionDialog.setTitle("Select Input Type");
@@ -208,13 +740,13 @@ public class MainController {
             if (freshImport) {
                 if (appDataDir == null)
                     initStorage();
-                Files.deleteIfExists(dbPath);
-                sqliteConnection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+                deleteDatabaseFiles();
+                sqliteConnection = openDatabase();
             } else {
                 if (sqliteConnection == null || sqliteConnection.isClosed()) {
                     if (appDataDir == null)
                         initStorage();
-                    sqliteConnection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+                    sqliteConnection = openDatabase();
                 }
             }
 
@@ -244,26 +776,38 @@ public class MainController {
 
     private void resetConvertedDatabase() {
         try {
-            if (sqliteConnection != null)
-                sqliteConnection.close();
             if (appDataDir == null)
                 initStorage();
-            Files.deleteIfExists(dbPath);
-            sqliteConnection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+            deleteDatabaseFiles();
+            sqliteConnection = openDatabase();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     public void startAutoMerge(List<File> mdbFiles) {
+        // Journal the whole batch first so an interrupted run can be resumed
+        try {
+            synchronized (sqliteConnection) {
+                ImportJournal.enqueue(sqliteConnection, mdbFiles);
+            }
+        } catch (SQLException e) {
+            showAlert("Import Error", "Failed to record the import batch: " + e.getMessage());
+            return;
+        }
+        resumeImportButton.setVisible(false);
+        resumeImportButton.setManaged(false);
+
+        importRunning = true;
         this.totalMdbs = mdbFiles.size();
         completedMdbs.set(0);
 
         int threads = Math.min(mdbFiles.size(), Runtime.getRuntime().availableProcessors());
         ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ImportProfile profile = selectedImportProfile();
 
         for (File mdbFile : mdbFiles) {
-            executor.submit(() -> importIfNotExists(mdbFile));
+            executor.submit(() -> importIfNotExists(mdbFile, profile));
         }
 
         executor.shutdown();
@@ -276,83 +820,82 @@ public class MainController {
                 }
             }
             Platform.runLater(() -> {
-                loadTablesIntoTreeView(sqliteConnection);
-                loadMdbSourcesList(sqliteConnection);
+                importRunning = false;
+                reloadCatalog();
                 statusLabel.setText("✅ All MDB files processed.");
                 importProgress.setProgress(1.0);
+                runMaintenanceInBackground(false); // fresh planner stats for the new data
             });
         }).start();
     }
 
-    private void importIfNotExists(File mdbFile) {
-        final boolean[] skipped = { false };
+    private void importIfNotExists(File mdbFile, ImportProfile profile) {
+        MdbRecordManager.ImportResult result = MdbRecordManager.importMdbFile(sqliteConnection, mdbFile, profile);
+        final String item = result.hfrCode + " [ " + mdbFile.getName() + " ]";
+        switch (result.status) {
+            case ImportJournal.DONE:
+                Platform.runLater(() -> allMdbSources.add(item)); // ✅ update source list, not filtered view
+                break;
+            case ImportJournal.SKIPPED:
+                Platform.runLater(() -> failedImports.add(item + " already imported"));
+                break;
+            default:
+                final String msg = "Failed: [ " + mdbFile.getName() + " ] - " + result.message;
+                Platform.runLater(() -> failedImports.add(msg));
+        }
 
-        String hfrCode = "UNKNOWN";
-        try (Database mdb = DatabaseBuilder.open(mdbFile)) {
-            // Determine hfrCode
-            Table configTable = mdb.getTable("tblConfig");
-            Map<String, Integer> hfrCount = new HashMap<>();
-            for (Row row : configTable) {
-                Object v = row.get("HFRCode");
-                if (v != null) {
-                    String h = v.toString();
-                    hfrCount.put(h, hfrCount.getOrDefault(h, 0) + 1);
-                }
-            }
-            hfrCode = hfrCount.entrySet().stream()
-                    .max(Map.Entry.comparingByValue())
-                    .map(Map.Entry::getKey)
-                    .orElse("UNKNOWN");
+        int done = completedMdbs.incrementAndGet();
+        double progress = (totalMdbs <= 0) ? 1.0 : (double) done / totalMdbs;
+        final String statusText = "Processed " + done + " / " + totalMdbs + " MDBs"
+                + (ImportJournal.SKIPPED.equals(result.status) ? " (skipped duplicate)" : "");
+        Platform.runLater(() -> {
+            importProgress.setProgress(progress);
+            statusLabel.setText(statusText);
+        });
+    }
 
-            // Import or skip
+    /** Re-runs the files an interrupted batch left PENDING in the journal. */
+    @FXML
+    public void onResumeImportClicked() {
+        if (sqliteConnection == null)
+            return;
+        try {
+            List<File> pending;
             synchronized (sqliteConnection) {
-                if (isAlreadyImported(hfrCode)) {
-                    skipped[0] = true;
-                    String msg = hfrCode + " [ " + mdbFile.getName() + " ] already imported";
-                    Platform.runLater(() -> failedImports.add(msg));
-                } else {
-                    try (Statement pragma = sqliteConnection.createStatement()) {
-                        pragma.execute("PRAGMA synchronous = OFF");
-                        pragma.execute("PRAGMA journal_mode = MEMORY");
-                    }
-                    MdbRecordManager.mergeMdbToSqlite(sqliteConnection, mdb, hfrCode, mdbFile.getName());
-                    final String item = hfrCode + " [ " + mdbFile.getName() + " ]";
-                    Platform.runLater(() -> allMdbSources.add(item)); // ✅ update source list, not filtered view
-                }
+                pending = ImportJournal.pendingFiles(sqliteConnection);
             }
-
-        } catch (Exception e) {
-            final String msg = "Failed: [ " + mdbFile.getName() + " ] - " + e.getMessage();
-            Platform.runLater(() -> failedImports.add(msg));
-        } finally {
-            int done = completedMdbs.incrementAndGet();
-            double progress = (totalMdbs <= 0) ? 1.0 : (double) done / totalMdbs;
-            final String statusText = "Processed " + done + " / " + totalMdbs + " MDBs"
-                    + (skipped[0] ? " (skipped duplicate)" : "");
-            Platform.runLater(() -> {
-                importProgress.setProgress(progress);
-                statusLabel.setText(statusText);
-            });
+            if (pending.isEmpty()) {
+                statusLabel.setText("Nothing left to resume.");
+                resumeImportButton.setVisible(false);
+                resumeImportButton.setManaged(false);
+                return;
+            }
+            statusLabel.setText("Resuming import of " + pending.size() + " remaining MDB(s)…");
+            importProgress.setProgress(0);
+            startAutoMerge(pending);
+        } catch (SQLException e) {
+            showAlert("Import Error", "Failed to read the import journal: " + e.getMessage());
         }
     }
 
-    private boolean isAlreadyImported(String hfrCode) {
+    private void showPendingImports() {
         try {
-            DatabaseMetaData meta = sqliteConnection.getMetaData();
-            ResultSet tables = meta.getTables(null, null, "SecurityUsers", null);
-            if (!tables.next())
-                return false;
-
-            PreparedStatement stmt = sqliteConnection.prepareStatement(
-                    "SELECT 1 FROM SecurityUsers WHERE hfr_code = ? LIMIT 1");
-            stmt.setString(1, hfrCode);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next();
+            int pending = ImportJournal.pendingFiles(sqliteConnection).size();
+            resumeImportButton.setVisible(pending > 0);
+            resumeImportButton.setManaged(pending > 0);
+            if (pending > 0)
+                statusLabel.setText("⚠️ The last import stopped with " + pending
+                        + " MDB(s) left. Click Resume Import to finish it.");
         } catch (SQLException e) {
-            return false;
+            e.printStackTrace();
         }
     }
 
+    private ImportProfile selectedImportProfile() {
+        ImportProfile profile = importProfileChoice.getValue();
+        return profile != null ? profile : ImportProfile.catalogDefault();
+    }
+
     private ContextMenu createMdbListContextMenu() {
         ContextMenu contextMenu = new ContextMenu();
         MenuItem removeItem = new MenuItem("Remove Records");
@@ -361,6 +904,10 @@ public class MainController {
             String selected = mdbListView.getSelectionModel().getSelectedItem();
             if (selected == null || selected.isEmpty())
                 return;
+            if (openSnapshot != null) {
+                statusLabel.setText("Snapshots are read-only – go back to the live database to remove records.");
+                return;
+            }
 
             Alert confirmDialog = new Alert(Alert.AlertType.CONFIRMATION);
             confirmDialog.initOwner(mdbListView.getScene().getWindow());
@@ -391,7 +938,9 @@ public class MainController {
 
             task.setOnSucceeded(ev -> {
                 importProgress.setProgress(0);
-                loadMdbSourcesList(sqliteConnection); // refresh left list
+                reloadCatalog(); // refresh left list and tables
+                refreshStatsInBackground();
+                runMaintenanceInBackground(false);
                 statusLabel.setText("✅ Records from '" + selected + "' removed.");
             });
 
@@ -418,100 +967,401 @@ public class MainController {
             showAlert("Error", "Please enter a SQL query.");
             return;
         }
+        currentResultName = "query";
         executeQueryAndDisplay(query);
     }
 
+    /** Columns, JDBC types and rows of an ad-hoc query or table preview. */
+    private static class QueryResult {
+        final List<String> headers = new ArrayList<>();
+        final List<List<String>> rows = new ArrayList<>();
+        int[] sqlTypes;
+    }
+
+    /**
+     * Runs {@code query} as interactive work on the query scheduler and shows the result when it arrives;
+     * only the latest request is shown if several overlap.
+     */
     private void executeQueryAndDisplay(String query) {
-        try (Statement stmt = sqliteConnection.createStatement();
-                ResultSet rs = stmt.executeQuery(query)) {
+        final Connection conn = sqliteConnection;
+        final String resultName = currentResultName;
+        final long request = ++queryRequest;
+        queryScheduler.submit(null, QueryScheduler.Priority.INTERACTIVE, () -> runQuery(conn, resultName, query))
+                .whenComplete((result, ex) -> Platform.runLater(() -> {
+                    if (request != queryRequest)
+                        return; // superseded by a newer query
+                    if (ex != null) {
+                        Throwable cause = ex instanceof java.util.concurrent.CompletionException
+                                && ex.getCause() != null ? ex.getCause() : ex;
+                        cause.printStackTrace();
+                        showAlert("Query Error", cause.getMessage());
+                        return;
+                    }
+                    showQueryResult(resultName, result);
+                }));
+    }
+
+    private static QueryResult runQuery(Connection conn, String resultName, String query) throws SQLException {
+        QueryResult result = new QueryResult();
+        PerfEvents.QueryExecute execute = new PerfEvents.QueryExecute();
+        execute.queryKey = resultName;
+        execute.begin();
+        synchronized (conn) {
+            try (Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery(query)) {
+                execute.commit();
+
+                ResultSetMetaData meta = rs.getMetaData();
+                int columnCount = meta.getColumnCount();
+                result.sqlTypes = new int[columnCount];
+                for (int i = 1; i <= columnCount; i++) {
+                    result.headers.add(meta.getColumnLabel(i));
+                    result.sqlTypes[i - 1] = meta.getColumnType(i);
+                }
 
-            resultTable.getColumns().clear();
-            currentResults.clear();
-            currentColumnHeaders.clear();
+                PerfEvents.QueryFetch fetch = new PerfEvents.QueryFetch();
+                fetch.queryKey = resultName;
+                fetch.begin();
+                while (rs.next()) {
+                    List<String> row = new ArrayList<>(columnCount);
+                    for (int i = 1; i <= columnCount; i++) {
+                        row.add(rs.getString(i));
+                    }
+                    result.rows.add(row);
+                    fetch.bytes += PerfEvents.sizeOf(row);
+                }
+                fetch.rows = result.rows.size();
+                fetch.commit();
+            }
+        }
+        return result;
+    }
 
-            ResultSetMetaData meta = rs.getMetaData();
-            int columnCount = meta.getColumnCount();
+    private void showQueryResult(String resultName, QueryResult result) {
+        PredefinedQueryController.clearTable(pivotTable);
+        resultTabs.getSelectionModel().selectFirst();
+        currentColumnHeaders = result.headers;
+        resultSorter.setTypeHints(result.sqlTypes);
+        currentResults = PredefinedQueryController.showRows(resultTable, resultName, result.headers, result.rows);
+        exportButton.setVisible(!currentResults.isEmpty());
+        shardExportButton.setVisible(!currentResults.isEmpty());
+    }
 
-            for (int i = 1; i <= columnCount; i++) {
-                final int colIndex = i;
-                String columnLabel = meta.getColumnLabel(i);
-                currentColumnHeaders.add(columnLabel);
+    /** Fills the table browser and the sources list; must run on the FX thread. */
+    private void applyCatalog(CatalogSnapshot catalog) {
+        TreeItem<String> root = new TreeItem<>("Tables");
+        root.setExpanded(true);
 
-                TableColumn<ObservableList<String>, String> col = new TableColumn<>(columnLabel);
-                col.setCellValueFactory(param -> new ReadOnlyStringWrapper(param.getValue().get(colIndex - 1)));
-                resultTable.getColumns().add(col);
-            }
+        tableStats = catalog.stats;
+        for (String tableName : catalog.tables)
+            root.getChildren().add(createTableItem(tableName));
 
-            while (rs.next()) {
-                ObservableList<String> row = FXCollections.observableArrayList();
-                for (int i = 1; i <= columnCount; i++) {
-                    row.add(rs.getString(i));
+        deferredTables.clear();
+        deferredTables.addAll(catalog.deferredTables);
+        for (String tableName : deferredTables) {
+            if (!catalog.tables.contains(tableName))
+                root.getChildren().add(new TreeItem<>(tableName));
+        }
+
+        tableTreeView.setRoot(root);
+        allMdbSources.setAll(catalog.sources); // ✅ update source list
+    }
+
+    /** Re-reads the catalog in the background, shows it and refreshes catalog.json. */
+    private void reloadCatalog() {
+        if (sqliteConnection == null)
+            return;
+        cohortTimeline = null;
+        final Connection conn = sqliteConnection;
+        final boolean live = openSnapshot == null;
+        javafx.concurrent.Task<CatalogSnapshot> task = new javafx.concurrent.Task<>() {
+            @Override
+            protected CatalogSnapshot call() throws Exception {
+                CatalogSnapshot catalog;
+                synchronized (conn) {
+                    catalog = CatalogSnapshot.load(conn);
                 }
-                currentResults.add(row);
+                if (live)
+                    writeSnapshot(catalog); // the startup cache describes converted.db only
+                return catalog;
             }
+        };
+        task.setOnSucceeded(ev -> {
+            if (conn == sqliteConnection)
+                applyCatalog(task.getValue());
+        });
+        task.setOnFailed(ev -> {
+            Throwable ex = task.getException();
+            showAlert("Error", "Failed to load table list: " + (ex != null ? ex.getMessage() : "Unknown error"));
+        });
+        Thread t = new Thread(task, "catalog-reload");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void writeSnapshot(CatalogSnapshot catalog) {
+        try {
+            catalog.write(appDataDir.resolve(CatalogSnapshot.FILE_NAME));
+        } catch (IOException e) {
+            e.printStackTrace(); // only costs the next startup its head start
+        }
+    }
 
-            resultTable.setItems(currentResults);
-            exportButton.setVisible(!currentResults.isEmpty());
+    private boolean isTableNode(TreeItem<String> item) {
+        return item != null && item.getParent() != null && item.getParent() == tableTreeView.getRoot();
+    }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-            showAlert("Query Error", e.getMessage());
+    // Columns (null fraction, approximate distinct) and per-facility row counts
+    private TreeItem<String> createTableItem(String tableName) {
+        TreeItem<String> item = new TreeItem<>(tableName);
+        TableStatsCatalog.TableStats stats = tableStats.get(tableName);
+        if (stats == null)
+            return item;
+
+        for (TableStatsCatalog.ColumnStats col : stats.columns) {
+            String text = String.format("%s — %.0f%% null · ≈%,d distinct%s", col.column, col.nullFraction * 100,
+                    col.approxDistinct, col.stale ? " (stale)" : "");
+            item.getChildren().add(new TreeItem<>(text));
+        }
+        if (!stats.rowsByFacility.isEmpty()) {
+            TreeItem<String> facilities = new TreeItem<>("Rows by facility (" + stats.rowsByFacility.size() + ")");
+            stats.rowsByFacility.forEach((hfr, rows) -> facilities.getChildren()
+                    .add(new TreeItem<>(String.format("%s — %,d", hfr, rows))));
+            item.getChildren().add(facilities);
         }
+        return item;
     }
 
-    private void loadTablesIntoTreeView(Connection conn) {
-        try {
-            TreeItem<String> root = new TreeItem<>("Tables");
-            root.setExpanded(true);
-
-            DatabaseMetaData meta = conn.getMetaData();
-            ResultSet rs = meta.getTables(null, null, "%", new String[] { "TABLE" });
-            while (rs.next()) {
-                String tableName = rs.getString("TABLE_NAME");
-                TreeItem<String> tableItem = new TreeItem<>(tableName);
-                root.getChildren().add(tableItem);
+    private String formatTableLabel(String tableName) {
+        TableStatsCatalog.TableStats stats = tableStats.get(tableName);
+        if (stats == null)
+            return tableName;
+        return String.format("%s — %,d rows · %d facilities", tableName, stats.rows, stats.rowsByFacility.size());
+    }
+
+    /**
+     * Backfills stats, the ID search index and period sketches for tables
+     * imported before they existed, and rebuilds stale sketches.
+     */
+    private void refreshStatsInBackground() {
+        if (sqliteConnection == null)
+            return;
+        final Connection conn = sqliteConnection;
+        javafx.concurrent.Task<Integer> task = new javafx.concurrent.Task<>() {
+            @Override
+            protected Integer call() throws Exception {
+                synchronized (conn) {
+                    int changed = TableStatsCatalog.backfillMissing(conn) + TableStatsCatalog.rebuildStaleSketches(conn);
+                    SearchIndex.backfillMissing(conn);
+                    PeriodSketches.backfillMissing(conn);
+                    return changed;
+                }
             }
+        };
+        task.setOnSucceeded(ev -> {
+            if (task.getValue() > 0 && conn == sqliteConnection)
+                reloadCatalog();
+        });
+        task.setOnFailed(ev -> {
+            if (task.getException() != null)
+                task.getException().printStackTrace();
+        });
+        Thread t = new Thread(task, "table-stats");
+        t.setDaemon(true);
+        t.start();
+    }
 
-            tableTreeView.setRoot(root);
+    private void autoQueryTable(String tableName) {
+        if (deferredTables.contains(tableName)) {
+            importDeferredTable(tableName);
+            return;
+        }
+        // Bounded sample: browsing the schema never scans a whole table
+        String query = "SELECT * FROM \"" + tableName + "\" LIMIT " + PREVIEW_ROWS;
+        queryArea.setText(query);
+        currentResultName = tableName;
+        executeQueryAndDisplay(query);
+        TableStatsCatalog.TableStats stats = tableStats.get(tableName);
+        if (stats != null && stats.rows > PREVIEW_ROWS)
+            statusLabel.setText(String.format("Previewing first %,d of %,d rows in %s.", PREVIEW_ROWS, stats.rows,
+                    tableName));
+    }
 
-            tableTreeView.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
-                if (newVal != null && newVal.isLeaf()) {
-                    String selectedTable = newVal.getValue();
-                    autoQueryTable(selectedTable);
+    private void importDeferredTable(String tableName) {
+        if (openSnapshot != null) {
+            statusLabel.setText("Snapshots are read-only – go back to the live database to import " + tableName
+                    + ".");
+            return;
+        }
+        statusLabel.setText("Importing " + tableName + " from source MDBs…");
+        importProgress.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+
+        javafx.concurrent.Task<Integer> task = new javafx.concurrent.Task<>() {
+            @Override
+            protected Integer call() throws Exception {
+                synchronized (sqliteConnection) {
+                    return MdbRecordManager.importDeferredTable(sqliteConnection, tableName);
                 }
-            });
+            }
+        };
+
+        task.setOnSucceeded(ev -> {
+            importProgress.setProgress(1.0);
+            deferredTables.remove(tableName);
+            reloadCatalog();
+            statusLabel.setText("✅ Imported " + tableName + " from " + task.getValue() + " MDB(s).");
+            autoQueryTable(tableName);
+        });
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-            showAlert("Error", "Failed to load table list: " + e.getMessage());
-        }
+        task.setOnFailed(ev -> {
+            importProgress.setProgress(0);
+            Throwable ex = task.getException();
+            reloadCatalog();
+            showAlert("Import Error", "Failed to import " + tableName + ": "
+                    + (ex != null ? ex.getMessage() : "Unknown error"));
+        });
+
+        new Thread(task, "deferred-import-" + tableName).start();
     }
 
-    private void loadMdbSourcesList(Connection conn) {
-        try {
-            ObservableList<String> sources = FXCollections.observableArrayList();
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(
-                    "SELECT DISTINCT hfr_code, source_mdb FROM SecurityUsers ORDER BY hfr_code");
-            while (rs.next()) {
-                String hfr = rs.getString("hfr_code");
-                String src = rs.getString("source_mdb");
-                if (hfr != null && src != null) {
-                    sources.add(hfr + " [ " + src + " ] ");
+    /** Evaluates the selected indicator for every month in the range, per facility. */
+    @FXML
+    public void onTrendClicked() {
+        if (sqliteConnection == null) {
+            showAlert("No Database", "Open or import a database first.");
+            return;
+        }
+        CohortTimeline.Indicator indicator = trendIndicatorChoice.getValue();
+        LocalDate end = trendEndPicker.getValue() != null ? trendEndPicker.getValue() : LocalDate.now();
+        List<CohortTimeline.Period> periods = CohortTimeline.Period.months(java.time.YearMonth.from(end),
+                trendMonthsSpinner.getValue());
+
+        statusLabel.setText(cohortTimeline == null ? "Loading visit timelines…" : "Computing trend…");
+        importProgress.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        final Connection conn = sqliteConnection;
+        final CohortTimeline cached = cohortTimeline;
+
+        javafx.concurrent.Task<CohortTimeline.Matrix> task = new javafx.concurrent.Task<>() {
+            private CohortTimeline timeline;
+
+            @Override
+            protected CohortTimeline.Matrix call() throws Exception {
+                timeline = cached;
+                if (timeline == null) {
+                    synchronized (conn) {
+                        timeline = CohortTimeline.load(conn);
+                    }
                 }
+                return timeline.evaluate(indicator, periods);
             }
 
-            Platform.runLater(() -> allMdbSources.setAll(sources)); // ✅ update source list
+            @Override
+            protected void succeeded() {
+                if (conn == sqliteConnection)
+                    cohortTimeline = timeline;
+                super.succeeded();
+            }
+        };
+
+        final long started = System.nanoTime();
+        task.setOnSucceeded(ev -> {
+            CohortTimeline.Matrix matrix = task.getValue();
+            showTrend(matrix);
+            importProgress.setProgress(1.0);
+            statusLabel.setText(String.format("%s for %d months across %d facilities in %d ms.", indicator,
+                    periods.size(), matrix.facilities.size(), (System.nanoTime() - started) / 1_000_000));
+        });
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-            showAlert("Error", "Failed to load imported MDB sources: " + e.getMessage());
+        task.setOnFailed(ev -> {
+            importProgress.setProgress(0);
+            Throwable ex = task.getException();
+            showAlert("Trend Error", ex != null ? ex.getMessage() : "Unknown error");
+        });
+
+        new Thread(task, "cohort-trend").start();
+    }
+
+    // Total plus the facilities with the most patients over the range
+    private void showTrend(CohortTimeline.Matrix matrix) {
+        trendChart.getData().clear();
+        javafx.scene.chart.XYChart.Series<String, Number> total = new javafx.scene.chart.XYChart.Series<>();
+        total.setName("All facilities");
+        for (int p = 0; p < matrix.periods.size(); p++)
+            total.getData().add(new javafx.scene.chart.XYChart.Data<>(matrix.periods.get(p).label, matrix.total(p)));
+        trendChart.getData().add(total);
+
+        Integer[] order = new Integer[matrix.facilities.size()];
+        long[] sums = new long[order.length];
+        for (int f = 0; f < order.length; f++) {
+            order[f] = f;
+            for (long[] row : matrix.counts)
+                sums[f] += row[f];
         }
+        Arrays.sort(order, (a, b) -> Long.compare(sums[b], sums[a]));
+        for (int k = 0; k < Math.min(TREND_SERIES, order.length) && order.length > 1; k++) {
+            int f = order[k];
+            javafx.scene.chart.XYChart.Series<String, Number> series = new javafx.scene.chart.XYChart.Series<>();
+            series.setName(matrix.facilities.get(f));
+            for (int p = 0; p < matrix.periods.size(); p++)
+                series.getData().add(new javafx.scene.chart.XYChart.Data<>(matrix.periods.get(p).label,
+                        matrix.counts[p][f]));
+            trendChart.getData().add(series);
+        }
+        trendChart.setTitle(matrix.indicator + " by month");
+
+        PredefinedQueryController.showRows(trendTable, "trend/" + matrix.indicator, matrix.headers(),
+                matrix.rows());
     }
 
-    private void autoQueryTable(String tableName) {
-        String query = "SELECT * FROM \"" + tableName + "\"";
+    /** Looks up IDs and names across every facility through the FTS index. */
+    @FXML
+    public void onIdSearch() {
+        if (sqliteConnection == null) {
+            showAlert("No Database", "Open or import a database first.");
+            return;
+        }
+        String text = idSearchField.getText() == null ? "" : idSearchField.getText().trim();
+        if (text.length() < SearchIndex.MIN_QUERY_LENGTH) {
+            statusLabel.setText("Type at least " + SearchIndex.MIN_QUERY_LENGTH + " characters to search IDs.");
+            return;
+        }
+
+        final Connection conn = sqliteConnection;
+        javafx.concurrent.Task<List<SearchIndex.Hit>> task = new javafx.concurrent.Task<>() {
+            @Override
+            protected List<SearchIndex.Hit> call() throws Exception {
+                synchronized (conn) {
+                    return SearchIndex.search(conn, text, SEARCH_LIMIT);
+                }
+            }
+        };
+
+        task.setOnSucceeded(ev -> {
+            List<List<String>> rows = new ArrayList<>();
+            for (SearchIndex.Hit hit : task.getValue())
+                rows.add(List.of(hit.term, hit.table, hit.hfrCode, Long.toString(hit.rowId)));
+            currentResultName = SEARCH_RESULT_NAME;
+            currentResults = PredefinedQueryController.showRows(resultTable, SEARCH_RESULT_NAME,
+                    List.of("match", "table", "hfr_code", "rowid"), rows);
+            exportButton.setVisible(!rows.isEmpty());
+            shardExportButton.setVisible(!rows.isEmpty());
+            statusLabel.setText(rows.size() >= SEARCH_LIMIT
+                    ? "Showing the first " + SEARCH_LIMIT + " matches for \"" + text + "\" – refine the search."
+                    : rows.size() + " match(es) for \"" + text + "\". Double-click a row to open it.");
+        });
+
+        task.setOnFailed(ev -> {
+            Throwable ex = task.getException();
+            showAlert("Search Error", ex != null ? ex.getMessage() : "Unknown error");
+        });
+
+        new Thread(task, "id-search").start();
+    }
+
+    private void openSearchHit(List<String> hit) {
+        String query = "SELECT * FROM \"" + hit.get(1) + "\" WHERE rowid = " + Long.parseLong(hit.get(3));
         queryArea.setText(query);
+        currentResultName = hit.get(1);
         executeQueryAndDisplay(query);
     }
 
@@ -530,32 +1380,87 @@ public class MainController {
             return;
 
         List<TableColumn<ObservableList<String>, ?>> cols = new ArrayList<>(resultTable.getColumns());
-        String header = cols.stream().map(c -> csvEscape(c.getText()))
+        String header = cols.stream().map(c -> Csv.escape(c.getText()))
                 .collect(java.util.stream.Collectors.joining(","));
-
-        try (java.io.PrintWriter out = new java.io.PrintWriter(file, java.nio.charset.StandardCharsets.UTF_8)) {
-            out.println(header);
-            for (ObservableList<String> row : resultTable.getItems()) {
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < cols.size(); i++) {
-                    String val = (i < row.size() && row.get(i) != null) ? row.get(i) : "";
-                    if (i > 0)
-                        sb.append(',');
-                    sb.append(csvEscape(val));
+        List<ObservableList<String>> rows = new ArrayList<>(resultTable.getItems());
+        final String resultName = currentResultName;
+        final int columnCount = cols.size();
+
+        statusLabel.setText("Exporting " + rows.size() + " rows…");
+        // Batch work: waits behind any interactive query that is queued
+        queryScheduler.submit(null, QueryScheduler.Priority.BATCH, () -> {
+            PerfEvents.CsvExport event = new PerfEvents.CsvExport();
+            event.queryKey = resultName;
+            event.path = file.getAbsolutePath();
+            event.begin();
+            try (java.io.PrintWriter out = new java.io.PrintWriter(file, java.nio.charset.StandardCharsets.UTF_8)) {
+                out.println(header);
+                for (ObservableList<String> row : rows) {
+                    out.println(Csv.line(row, columnCount));
                 }
-                out.println(sb.toString());
+                if (out.checkError())
+                    throw new IOException("Could not write " + file);
             }
-        } catch (Exception e) {
-            showAlert("Export Error", e.getMessage());
-        }
+            event.rows = rows.size();
+            event.bytes = file.length();
+            event.commit();
+            return rows.size();
+        }).whenComplete((written, ex) -> Platform.runLater(() -> {
+            if (ex != null) {
+                Throwable cause = ex instanceof java.util.concurrent.CompletionException && ex.getCause() != null
+                        ? ex.getCause()
+                        : ex;
+                showAlert("Export Error", cause.getMessage() != null ? cause.getMessage() : "Unknown error");
+                return;
+            }
+            statusLabel.setText("✅ Exported " + written + " rows to " + file.getName());
+        }));
     }
 
-    private static String csvEscape(String s) {
-        String v = (s == null) ? "" : s;
-        if (v.contains("\"") || v.contains(",") || v.contains("\n") || v.contains("\r")) {
-            v = "\"" + v.replace("\"", "\"\"") + "\"";
+    /** Splits the current result into one CSV per hfr_code plus an index named after the result. */
+    @FXML
+    public void onShardExportClicked() {
+        if (resultTable.getItems() == null || resultTable.getItems().isEmpty()) {
+            showAlert("No Data", "There are no query results to export.");
+            return;
         }
-        return v;
+
+        List<String> headers = new ArrayList<>();
+        for (TableColumn<ObservableList<String>, ?> c : resultTable.getColumns())
+            headers.add(c.getText());
+        if (FacilityShardExporter.facilityColumnIndex(headers) < 0) {
+            showAlert("Export Error", "This result has no hfr_code column, so it cannot be split per facility.");
+            return;
+        }
+
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Select Output Folder");
+        File dir = chooser.showDialog(resultTable.getScene().getWindow());
+        if (dir == null)
+            return;
+
+        List<ObservableList<String>> rows = new ArrayList<>(resultTable.getItems());
+        String baseName = currentResultName.replaceAll("[^A-Za-z0-9._-]", "_");
+        Path outDir = dir.toPath();
+
+        statusLabel.setText("Exporting per facility…");
+        importProgress.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+
+        // Batch work: waits behind any interactive query that is queued
+        queryScheduler.submit(null, QueryScheduler.Priority.BATCH,
+                () -> FacilityShardExporter.withDefaults().export(headers, rows, outDir, baseName))
+                .whenComplete((summary, ex) -> Platform.runLater(() -> {
+                    if (ex != null) {
+                        importProgress.setProgress(0);
+                        Throwable cause = ex instanceof java.util.concurrent.CompletionException
+                                && ex.getCause() != null ? ex.getCause() : ex;
+                        showAlert("Export Error", cause.getMessage() != null ? cause.getMessage() : "Unknown error");
+                        return;
+                    }
+                    importProgress.setProgress(1.0);
+                    statusLabel.setText("✅ Exported " + summary.totalRows() + " rows into "
+                            + summary.rowsByFacility.size() + " facility files in " + outDir);
+                }));
     }
 
     public void onPredefinedQueryDialogClicked() {
@@ -575,7 +1480,7 @@ public class MainController {
             dialogScene.getStylesheets().add(getClass().getResource("/dialog.css").toExternalForm());
             dialogStage.setScene(dialogScene);
             dialogStage.setWidth(300);
-            dialogStage.setHeight(275);
+            dialogStage.setHeight(455);
             dialogStage.setResizable(false);
             dialogStage.centerOnScreen();
 
@@ -596,27 +1501,42 @@ public class MainController {
                     return;
                 }
 
-                queryController.setSqliteConnection(this.sqliteConnection);
+                Snapshots.Info snapshot = openSnapshot;
+                queryController.setSqliteConnection(this.sqliteConnection,
+                        snapshot == null ? dbPath.toString() : snapshot.file.toString());
+                queryController.setScheduler(queryScheduler);
+                if (queryReaders == null)
+                    queryReaders = new ReadOnlyPool(dbPath, storageProfile, QUERY_WORKERS);
+                // A snapshot has no writers, so its own connection is safe to read
+                queryController.setReaders(snapshot == null ? queryReaders : null);
+                if (facilityFanout == null)
+                    facilityFanout = new FacilityFanout(dbPath, storageProfile,
+                            Runtime.getRuntime().availableProcessors());
+                // The fan-out reads converted.db, so a snapshot always runs on one connection
+                queryController.setFacilityFanout(facilityFanout, controller.isByFacility() && snapshot == null);
                 queryController.setQueryDisplay(this.queryArea, this.resultTable, this.exportButton);
+                queryController.setShardExportButton(this.shardExportButton);
+                queryController.setPivotDisplay(this.pivotTable, controller.getAgeBands());
+                queryController.setDedupeTransfers(controller.isDedupeTransfers());
+                if (controller.isApproximate()) {
+                    currentResultName = queryType + "_estimate";
+                    statusLabel.setText("Estimating distinct counts…");
+                    queryController.runApproximatePreview(queryType, startDate, endDate,
+                            () -> statusLabel.setText("Estimate ready; untick Quick estimate for the exact list."));
+                    return;
+                }
+                currentResultName = queryType;
 
                 statusLabel.setText("Running query...");
                 importProgress.setProgress(0);
 
-                new Thread(() -> {
-                    try {
-                        this.startSimulatedProgress();
-                        queryController.runPredefiendQuery(queryType, startDate, endDate, () -> {
-                            if (progressTask != null)
-                                progressTask.cancel(true);
-                            Platform.runLater(() -> {
-                                importProgress.setProgress(1.0);
-                                statusLabel.setText("Query complete.");
-                            });
-                        });
-                    } catch (Exception e) {
-                        Platform.runLater(() -> showAlert("Query Error", e.getMessage()));
-                    }
-                }, "predefined-query-thread").start();
+                this.startSimulatedProgress();
+                queryController.runPredefiendQuery(queryType, startDate, endDate, () -> {
+                    if (progressTask != null)
+                        progressTask.cancel(true);
+                    importProgress.setProgress(1.0);
+                    statusLabel.setText("Query complete.");
+                });
             }
 
         } catch (IOException e) {
@@ -651,6 +1571,28 @@ public class MainController {
         currentResults = data;
     }
 
+    private Connection openDatabase() throws SQLException {
+        return SqliteConnections.open(dbPath, storageProfile);
+    }
+
+    private void deleteDatabaseFiles() throws IOException {
+        if (indicatorServer != null)
+            indicatorServer.resetConnections();
+        if (facilityFanout != null)
+            facilityFanout.resetConnections();
+        if (queryReaders != null)
+            queryReaders.reset();
+        try {
+            if (sqliteConnection != null)
+                sqliteConnection.close();
+        } catch (SQLException ignored) {
+        }
+        Files.deleteIfExists(dbPath);
+        Files.deleteIfExists(Paths.get(dbPath + "-wal"));
+        Files.deleteIfExists(Paths.get(dbPath + "-shm"));
+        Files.deleteIfExists(appDataDir.resolve(CatalogSnapshot.FILE_NAME));
+    }
+
     /** resolve generated sqlite database paths */
     private void initStorage() {
         appDataDir = getAppDataDir("IDS Analytics");
@@ -2,82 +2,86 @@ package com.ids;
 
 import com.healthmarketscience.jackcess.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 public class MdbRecordManager {
 
+    /** Prefix for the app's own bookkeeping tables; these are not facility data. */
+    public static final String INTERNAL_PREFIX = "ids_";
+
+    // Derived data maintained alongside every import and removal
+    private static final List<ImportListener> LISTENERS = List.of(new TableStatsCatalog(), new SearchIndex(),
+            new PatientLinkage(), new PeriodSketches(), new DatabaseMaintenance());
+
+    public static boolean isInternalTable(String tableName) {
+        return tableName != null && tableName.toLowerCase().startsWith(INTERNAL_PREFIX);
+    }
+
     public static void mergeMdbToSqlite(Connection sqliteConnection, Database mdb, String hfrCode, String sourceFile)
             throws SQLException, IOException {
+        mergeMdbToSqlite(sqliteConnection, mdb, hfrCode, sourceFile, null, ImportProfile.FULL);
+    }
+
+    public static void mergeMdbToSqlite(Connection sqliteConnection, Database mdb, String hfrCode, String sourceFile,
+            String sourcePath, ImportProfile profile) throws SQLException, IOException {
+        mergeMdbToSqlite(sqliteConnection, mdb, hfrCode, sourceFile, sourcePath, profile, false);
+    }
+
+    /**
+     * With {@code replaceExisting}, the facility's current rows are deleted in
+     * the same transaction that copies the new ones. Readers on their own
+     * read-only connections (predefined queries, the fan-out, the indicator
+     * API) and readers that lock {@code sqliteConnection} therefore never see
+     * the facility missing or doubled; an unlocked read of
+     * {@code sqliteConnection} itself would see the open transaction.
+     */
+    public static void mergeMdbToSqlite(Connection sqliteConnection, Database mdb, String hfrCode, String sourceFile,
+            String sourcePath, ImportProfile profile, boolean replaceExisting) throws SQLException, IOException {
         // (PrintWriter logWriter = new PrintWriter(new BufferedWriter(new
         // FileWriter("import_stats.log", true))))
         try {
+            ensureCatalogTables(sqliteConnection);
             sqliteConnection.setAutoCommit(false);
+            if (replaceExisting)
+                removeRecordsBySource(sqliteConnection, hfrCode);
 
+            PerfEvents.BatchCommit commitEvent = new PerfEvents.BatchCommit();
+            commitEvent.hfrCode = hfrCode;
+            List<String> deferred = new ArrayList<>();
             for (String tableName : mdb.getTableNames()) {
                 Table mdbTable = mdb.getTable(tableName);
-                // long sourceCount = mdbTable.getRowCount();
-
-                // Prepare columns
-                List<String> columnNames = new ArrayList<>();
-                for (Column col : mdbTable.getColumns()) {
-                    columnNames.add(col.getName());
-                }
-                columnNames.add("hfr_code");
-                columnNames.add("source_mdb");
-
-                // Create table if not exists
-                StringBuilder createSql = new StringBuilder("CREATE TABLE IF NOT EXISTS \"")
-                        .append(tableName).append("\" (");
-                for (String col : columnNames) {
-                    createSql.append("\"").append(col).append("\" TEXT, ");
-                }
-                createSql.delete(createSql.length() - 2, createSql.length()).append(")");
-                sqliteConnection.createStatement().execute(createSql.toString());
-
-                // Prepare insert
-                String placeholders = columnNames.stream().map(c -> "?").collect(Collectors.joining(", "));
-                String insertSql = "INSERT INTO \"" + tableName + "\" (" +
-                        columnNames.stream().map(c -> "\"" + c + "\"").collect(Collectors.joining(", ")) +
-                        ") VALUES (" + placeholders + ")";
-                PreparedStatement insertStmt = sqliteConnection.prepareStatement(insertSql);
-
-                int batchSize = 500;
-                int count = 0;
-
-                for (Row row : mdbTable) {
-                    for (int i = 0; i < columnNames.size() - 2; i++) {
-                        Object val = row.get(columnNames.get(i));
-                        insertStmt.setString(i + 1, val != null ? val.toString() : null);
-                    }
-                    insertStmt.setString(columnNames.size() - 1, hfrCode);
-                    insertStmt.setString(columnNames.size(), sourceFile);
-                    insertStmt.addBatch();
-
-                    if (++count % batchSize == 0) {
-                        insertStmt.executeBatch();
-                    }
+                List<Column> columns = profile.includesTable(tableName) ? profile.selectColumns(mdbTable)
+                        : List.of();
+                if (columns.isEmpty()) {
+                    deferred.add(tableName);
+                    continue;
                 }
 
-                insertStmt.executeBatch(); // Final batch
-                insertStmt.close();
-                sqliteConnection.commit();
-
-                // ResultSet rs = sqliteConnection.createStatement()
-                // .executeQuery("SELECT COUNT(*) FROM \"" + tableName + "\" where hfr_code=\""
-                // + hfrCode + "\"");
-                // rs.next();
-                // long destinationCount = rs.getLong(1);
-
-                // String logLine = String.format("File %s Table %s - Access Rows: %d -> SQLite
-                // Rows: %d",
-                // sourceFile, tableName, sourceCount, destinationCount);
-                // System.out.println(logLine);
-                // logWriter.println(logLine);
+                PerfEvents.TableTransfer transfer = copyTable(sqliteConnection, mdbTable, columns, hfrCode,
+                        sourceFile);
+                commitEvent.tables++;
+                commitEvent.rows += transfer.rows;
+                commitEvent.bytes += transfer.bytes;
             }
+
+            // One transaction per file: a crash never leaves a half-imported
+            // facility, and the journal entry flips to DONE with the data
+            recordSource(sqliteConnection, hfrCode, sourceFile, sourcePath, profile, deferred);
+            for (ImportListener listener : LISTENERS)
+                listener.onSourceImported(sqliteConnection, hfrCode);
+            ImportJournal.mark(sqliteConnection, sourcePath, ImportJournal.DONE, hfrCode, null);
+            commitEvent.begin();
+            sqliteConnection.commit();
+            commitEvent.commit();
         } catch (Exception ex) {
             sqliteConnection.rollback();
             throw ex;
@@ -86,6 +90,313 @@ public class MdbRecordManager {
         }
     }
 
+    /** Outcome of {@link #importMdbFile}; {@code status} is one of the ImportJournal states. */
+    public static class ImportResult {
+        public final String status;
+        public final String hfrCode;
+        public final String message;
+
+        ImportResult(String status, String hfrCode, String message) {
+            this.status = status;
+            this.hfrCode = hfrCode;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Imports one MDB file unless its facility is already in the database, and
+     * records the outcome in the import journal. Never throws; failures are
+     * returned as FAILED with the error message.
+     */
+    public static ImportResult importMdbFile(Connection conn, File file, ImportProfile profile) {
+        return importMdbFile(conn, file, profile, false);
+    }
+
+    /**
+     * As {@link #importMdbFile(Connection, File, ImportProfile)}; with
+     * {@code replaceExisting} an already imported facility is re-imported from
+     * this file instead of skipped.
+     */
+    public static ImportResult importMdbFile(Connection conn, File file, ImportProfile profile,
+            boolean replaceExisting) {
+        String path = file.getAbsolutePath();
+        String hfrCode = null;
+        PerfEvents.MdbOpen openEvent = new PerfEvents.MdbOpen();
+        openEvent.begin();
+        try (Database mdb = DatabaseBuilder.open(file)) {
+            hfrCode = readHfrCode(mdb);
+            openEvent.file = file.getName();
+            openEvent.hfrCode = hfrCode;
+            openEvent.bytes = file.length();
+            openEvent.commit();
+            synchronized (conn) {
+                ensureCatalogTables(conn);
+                boolean imported = isImported(conn, hfrCode);
+                if (imported && !replaceExisting) {
+                    ImportJournal.mark(conn, path, ImportJournal.SKIPPED, hfrCode, "already imported");
+                    return new ImportResult(ImportJournal.SKIPPED, hfrCode, "already imported");
+                }
+                mergeMdbToSqlite(conn, mdb, hfrCode, file.getName(), path, profile, imported);
+            }
+            return new ImportResult(ImportJournal.DONE, hfrCode, null);
+        } catch (Exception ex) {
+            synchronized (conn) {
+                try {
+                    ImportJournal.ensureTable(conn);
+                    ImportJournal.mark(conn, path, ImportJournal.FAILED, hfrCode, ex.getMessage());
+                } catch (SQLException ignored) {
+                    // the failure itself is what gets reported
+                }
+            }
+            return new ImportResult(ImportJournal.FAILED, hfrCode, ex.getMessage());
+        }
+    }
+
+    /** Most frequent HFRCode in tblConfig, or "UNKNOWN". */
+    static String readHfrCode(Database mdb) throws IOException {
+        Table configTable = mdb.getTable("tblConfig");
+        if (configTable == null)
+            throw new IOException("No tblConfig table; not a facility database");
+        Map<String, Integer> hfrCount = new HashMap<>();
+        for (Row row : configTable) {
+            Object v = row.get("HFRCode");
+            if (v != null)
+                hfrCount.merge(v.toString(), 1, Integer::sum);
+        }
+        return hfrCount.entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse("UNKNOWN");
+    }
+
+    /** True if the facility was imported before, including databases from before the catalog existed. */
+    static boolean isImported(Connection conn, String hfrCode) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM ids_import_sources WHERE hfr_code = ? LIMIT 1")) {
+            ps.setString(1, hfrCode);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next())
+                    return true;
+            }
+        }
+        try (ResultSet tables = conn.getMetaData().getTables(null, null, "SecurityUsers", null)) {
+            if (!tables.next())
+                return false;
+        }
+        try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM SecurityUsers WHERE hfr_code = ? LIMIT 1")) {
+            ps.setString(1, hfrCode);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /** Copies the rows of {@code mdbTable}; the returned (committed) event carries the row and byte counts. */
+    private static PerfEvents.TableTransfer copyTable(Connection sqliteConnection, Table mdbTable,
+            List<Column> columns, String hfrCode, String sourceFile) throws SQLException, IOException {
+        String tableName = mdbTable.getName();
+        PerfEvents.TableTransfer event = new PerfEvents.TableTransfer();
+        event.begin();
+        event.table = tableName;
+        event.hfrCode = hfrCode;
+        // long sourceCount = mdbTable.getRowCount();
+
+        // Prepare columns
+        List<String> columnNames = new ArrayList<>();
+        for (Column col : columns) {
+            columnNames.add(col.getName());
+        }
+        columnNames.add("hfr_code");
+        columnNames.add("source_mdb");
+
+        // Create table if not exists
+        StringBuilder createSql = new StringBuilder("CREATE TABLE IF NOT EXISTS \"")
+                .append(tableName).append("\" (");
+        for (String col : columnNames) {
+            createSql.append("\"").append(col).append("\" TEXT, ");
+        }
+        createSql.delete(createSql.length() - 2, createSql.length()).append(")");
+        try (Statement create = sqliteConnection.createStatement()) {
+            create.execute(createSql.toString());
+        }
+        // An earlier import may have used a narrower profile
+        ensureColumns(sqliteConnection, tableName, columnNames);
+
+        List<ImportListener.TableSink> sinks = new ArrayList<>();
+        for (ImportListener listener : LISTENERS) {
+            ImportListener.TableSink sink = listener.onTable(sqliteConnection, tableName,
+                    columnNames.subList(0, columnNames.size() - 2), hfrCode);
+            if (sink != null)
+                sinks.add(sink);
+        }
+
+        // Prepare insert
+        String placeholders = columnNames.stream().map(c -> "?").collect(Collectors.joining(", "));
+        String insertSql = "INSERT INTO \"" + tableName + "\" (" +
+                columnNames.stream().map(c -> "\"" + c + "\"").collect(Collectors.joining(", ")) +
+                ") VALUES (" + placeholders + ")";
+
+        try (PreparedStatement insertStmt = sqliteConnection.prepareStatement(insertSql)) {
+            int batchSize = 500;
+            int count = 0;
+
+            int dataColumns = columnNames.size() - 2;
+            for (Row row : mdbTable) {
+                String[] values = new String[dataColumns];
+                for (int i = 0; i < dataColumns; i++) {
+                    Object val = row.get(columnNames.get(i));
+                    values[i] = val != null ? val.toString() : null;
+                    insertStmt.setString(i + 1, values[i]);
+                }
+                for (ImportListener.TableSink sink : sinks)
+                    sink.accept(values);
+                event.bytes += PerfEvents.sizeOf(values);
+                insertStmt.setString(columnNames.size() - 1, hfrCode);
+                insertStmt.setString(columnNames.size(), sourceFile);
+                insertStmt.addBatch();
+
+                if (++count % batchSize == 0) {
+                    insertStmt.executeBatch();
+                }
+            }
+
+            insertStmt.executeBatch(); // Final batch
+            event.rows = count;
+        }
+        for (ImportListener.TableSink sink : sinks)
+            sink.finish(sqliteConnection);
+
+        // ResultSet rs = sqliteConnection.createStatement()
+        // .executeQuery("SELECT COUNT(*) FROM \"" + tableName + "\" where hfr_code=\""
+        // + hfrCode + "\"");
+        // rs.next();
+        // long destinationCount = rs.getLong(1);
+
+        // String logLine = String.format("File %s Table %s - Access Rows: %d -> SQLite
+        // Rows: %d",
+        // sourceFile, tableName, sourceCount, destinationCount);
+        // System.out.println(logLine);
+        // logWriter.println(logLine);
+        event.commit();
+        return event;
+    }
+
+    private static void ensureColumns(Connection conn, String tableName, List<String> columnNames)
+            throws SQLException {
+        Set<String> existing = new HashSet<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA table_info(\"" + tableName + "\")")) {
+            while (rs.next())
+                existing.add(rs.getString("name").toLowerCase());
+        }
+        try (Statement stmt = conn.createStatement()) {
+            for (String col : columnNames) {
+                if (!existing.contains(col.toLowerCase()))
+                    stmt.execute("ALTER TABLE \"" + tableName + "\" ADD COLUMN \"" + col + "\" TEXT");
+            }
+        }
+    }
+
+    static void ensureCatalogTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_import_sources (hfr_code TEXT, source_mdb TEXT, "
+                    + "source_path TEXT, profile TEXT, imported_at TEXT)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_deferred_tables (table_name TEXT, hfr_code TEXT, "
+                    + "source_mdb TEXT, source_path TEXT)");
+        }
+        ImportJournal.ensureTable(conn);
+        for (ImportListener listener : LISTENERS)
+            listener.ensureTables(conn);
+    }
+
+    private static void recordSource(Connection conn, String hfrCode, String sourceFile, String sourcePath,
+            ImportProfile profile, List<String> deferred) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO ids_import_sources (hfr_code, source_mdb, source_path, profile, imported_at) "
+                        + "VALUES (?, ?, ?, ?, datetime('now'))")) {
+            ps.setString(1, hfrCode);
+            ps.setString(2, sourceFile);
+            ps.setString(3, sourcePath);
+            ps.setString(4, profile.getName());
+            ps.executeUpdate();
+        }
+        if (deferred.isEmpty() || sourcePath == null)
+            return;
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO ids_deferred_tables (table_name, hfr_code, source_mdb, source_path) VALUES (?, ?, ?, ?)")) {
+            for (String table : deferred) {
+                ps.setString(1, table);
+                ps.setString(2, hfrCode);
+                ps.setString(3, sourceFile);
+                ps.setString(4, sourcePath);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /** Tables skipped by an import profile that can still be pulled from their source MDBs. */
+    public static List<String> listDeferredTables(Connection conn) throws SQLException {
+        ensureCatalogTables(conn);
+        List<String> tables = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(
+                        "SELECT DISTINCT table_name FROM ids_deferred_tables ORDER BY table_name")) {
+            while (rs.next())
+                tables.add(rs.getString(1));
+        }
+        return tables;
+    }
+
+    /**
+     * Imports a deferred table, all columns, from every source MDB it was skipped in.
+     * Sources whose file has since moved are left deferred and reported.
+     */
+    public static int importDeferredTable(Connection conn, String tableName) throws SQLException, IOException {
+        ensureCatalogTables(conn);
+        List<String[]> pending = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT hfr_code, source_mdb, source_path FROM ids_deferred_tables WHERE table_name = ?")) {
+            ps.setString(1, tableName);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next())
+                    pending.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3) });
+            }
+        }
+
+        int imported = 0;
+        List<String> missing = new ArrayList<>();
+        for (String[] src : pending) {
+            File file = new File(src[2]);
+            if (!file.isFile()) {
+                missing.add(src[1]);
+                continue;
+            }
+            try (Database mdb = DatabaseBuilder.open(file)) {
+                conn.setAutoCommit(false);
+                Table mdbTable = mdb.getTable(tableName);
+                if (mdbTable != null)
+                    copyTable(conn, mdbTable, new ArrayList<>(mdbTable.getColumns()), src[0], src[1]);
+                try (PreparedStatement del = conn.prepareStatement(
+                        "DELETE FROM ids_deferred_tables WHERE table_name = ? AND hfr_code = ?")) {
+                    del.setString(1, tableName);
+                    del.setString(2, src[0]);
+                    del.executeUpdate();
+                }
+                conn.commit();
+                imported++;
+            } catch (Exception ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+
+        if (!missing.isEmpty())
+            throw new IOException("Source MDBs no longer available: " + String.join(", ", missing));
+        return imported;
+    }
+
     public static void removeRecordsBySource(Connection conn, String hfrCode) throws SQLException {
         DatabaseMetaData meta = conn.getMetaData();
         ResultSet rs = meta.getTables(null, null, "%", new String[] { "TABLE" });
@@ -93,10 +404,20 @@ public class MdbRecordManager {
 
         while (rs.next()) {
             String tableName = rs.getString("TABLE_NAME");
-            if (tableName != null && !tableName.isEmpty()) {
+            if (tableName != null && !tableName.isEmpty() && !isInternalTable(tableName)) {
                 String deleteSQL = "DELETE FROM \"" + tableName + "\" WHERE hfr_code = '" + hfrCode + "'";
                 stmt.executeUpdate(deleteSQL);
             }
         }
+
+        ensureCatalogTables(conn);
+        for (String bookkeeping : new String[] { "ids_import_sources", "ids_deferred_tables" }) {
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM " + bookkeeping + " WHERE hfr_code = ?")) {
+                ps.setString(1, hfrCode);
+                ps.executeUpdate();
+            }
+        }
+        for (ImportListener listener : LISTENERS)
+            listener.onSourceRemoved(conn, hfrCode);
     }
 }
\ No newline at end of file
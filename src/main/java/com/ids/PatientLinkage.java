@@ -0,0 +1,331 @@
+package com.ids;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Candidate links between patients registered at several facilities (transfers).
+ *
+ * While tblPatients is copied, each patient gets normalized blocking keys: the
+ * digits of the CTC PatientID and, when names were imported, DOB + sex + name
+ * fragments. Only their 64-bit hashes are stored in ids_link_keys, indexed by
+ * hash, so matching a newly imported facility is an index join on its own keys
+ * instead of a self-join of tblPatients. Patients sharing a key across
+ * facilities end up in the same row group of ids_link_clusters.
+ */
+public class PatientLinkage implements ImportListener {
+
+    static final String PATIENT_TABLE = "tblPatients";
+
+    /** Shorter digit runs (facility-local serials) would link unrelated patients. */
+    static final int MIN_ID_DIGITS = 8;
+
+    private static final List<String> FIRST_NAME_COLUMNS = List.of("firstname");
+    private static final List<String> LAST_NAME_COLUMNS = List.of("lastname", "surname", "familyname");
+    private static final int BATCH_SIZE = 500;
+    private static final char SEP = '\u001f';
+
+    @Override
+    public void ensureTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_link_keys (key_hash INTEGER, hfr_code TEXT, patient_id TEXT)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS ids_link_keys_hash ON ids_link_keys (key_hash)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS ids_link_keys_hfr ON ids_link_keys (hfr_code)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_link_clusters (cluster_id INTEGER, hfr_code TEXT, "
+                    + "patient_id TEXT, PRIMARY KEY (hfr_code, patient_id))");
+            stmt.execute("CREATE INDEX IF NOT EXISTS ids_link_clusters_id ON ids_link_clusters (cluster_id)");
+        }
+    }
+
+    @Override
+    public TableSink onTable(Connection conn, String tableName, List<String> columnNames, String hfrCode)
+            throws SQLException {
+        if (!PATIENT_TABLE.equalsIgnoreCase(tableName))
+            return null;
+        int id = indexOf(columnNames, List.of("patientid"));
+        if (id < 0)
+            return null;
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM ids_link_keys WHERE hfr_code = ?")) {
+            ps.setString(1, hfrCode);
+            ps.executeUpdate();
+        }
+        return new KeySink(conn, hfrCode, id, indexOf(columnNames, List.of("dateofbirth", "dob")),
+                indexOf(columnNames, List.of("sex", "gender")), indexOf(columnNames, FIRST_NAME_COLUMNS),
+                indexOf(columnNames, LAST_NAME_COLUMNS));
+    }
+
+    @Override
+    public void onSourceRemoved(Connection conn, String hfrCode) throws SQLException {
+        // Clusters the facility took part in are dissolved and rebuilt from the
+        // remaining facilities' keys, since it may have been the only bridge
+        Set<String> relink = new TreeSet<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT DISTINCT hfr_code FROM ids_link_clusters "
+                + "WHERE cluster_id IN (SELECT cluster_id FROM ids_link_clusters WHERE hfr_code = ?)")) {
+            ps.setString(1, hfrCode);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next())
+                    relink.add(rs.getString(1));
+            }
+        }
+        relink.remove(hfrCode);
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM ids_link_clusters WHERE cluster_id IN "
+                + "(SELECT cluster_id FROM ids_link_clusters WHERE hfr_code = ?)")) {
+            ps.setString(1, hfrCode);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM ids_link_keys WHERE hfr_code = ?")) {
+            ps.setString(1, hfrCode);
+            ps.executeUpdate();
+        }
+        for (String hfr : relink)
+            relink(conn, hfr);
+    }
+
+    private static int indexOf(List<String> columns, List<String> candidates) {
+        for (String c : candidates) {
+            for (int i = 0; i < columns.size(); i++) {
+                if (c.equalsIgnoreCase(columns.get(i)))
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Normalized blocking keys for one patient; empty when nothing is reliable enough. */
+    static List<String> blockingKeys(String patientId, String dob, String sex, String firstName, String lastName) {
+        List<String> keys = new ArrayList<>(2);
+        String digits = patientId == null ? "" : patientId.replaceAll("[^0-9]", "");
+        if (digits.length() >= MIN_ID_DIGITS)
+            keys.add("id" + SEP + digits);
+
+        LocalDate birth = dob == null ? null : DateValues.parseDate(dob);
+        int sexCode = DisaggregationEngine.sexOf(sex);
+        String a = nameFragment(firstName);
+        String b = nameFragment(lastName);
+        if (birth != null && sexCode != DisaggregationEngine.UNKNOWN_SEX && !(a.isEmpty() && b.isEmpty())) {
+            // Order-independent so swapped first/last names still block together
+            String names = a.compareTo(b) <= 0 ? a + SEP + b : b + SEP + a;
+            keys.add("dsn" + SEP + birth + SEP + sexCode + SEP + names);
+        }
+        return keys;
+    }
+
+    private static String nameFragment(String name) {
+        if (name == null)
+            return "";
+        String letters = name.toUpperCase(Locale.ROOT).replaceAll("[^A-Z]", "");
+        return letters.length() > 3 ? letters.substring(0, 3) : letters;
+    }
+
+    private static class KeySink implements TableSink {
+        private final Connection conn;
+        private final String hfrCode;
+        private final int id, dob, sex, first, last;
+        private final PreparedStatement insert;
+        private int pending;
+
+        KeySink(Connection conn, String hfrCode, int id, int dob, int sex, int first, int last) throws SQLException {
+            this.conn = conn;
+            this.hfrCode = hfrCode;
+            this.id = id;
+            this.dob = dob;
+            this.sex = sex;
+            this.first = first;
+            this.last = last;
+            this.insert = conn.prepareStatement(
+                    "INSERT INTO ids_link_keys (key_hash, hfr_code, patient_id) VALUES (?, ?, ?)");
+        }
+
+        private static String at(String[] values, int i) {
+            return i < 0 ? null : values[i];
+        }
+
+        @Override
+        public void accept(String[] values) throws SQLException {
+            String patientId = values[id];
+            if (patientId == null || patientId.isBlank())
+                return;
+            for (String key : blockingKeys(patientId, at(values, dob), at(values, sex), at(values, first),
+                    at(values, last))) {
+                insert.setLong(1, HyperLogLog.hash64(key));
+                insert.setString(2, hfrCode);
+                insert.setString(3, patientId);
+                insert.addBatch();
+                if (++pending >= BATCH_SIZE) {
+                    insert.executeBatch();
+                    pending = 0;
+                }
+            }
+        }
+
+        @Override
+        public void finish(Connection ignored) throws SQLException {
+            try {
+                insert.executeBatch();
+            } finally {
+                insert.close();
+            }
+            relink(conn, hfrCode);
+        }
+    }
+
+    /**
+     * Links one facility's keys against every other facility and merges the
+     * matches into existing clusters. Cluster ids of untouched clusters stay put.
+     */
+    static int relink(Connection conn, String hfrCode) throws SQLException {
+        UnionFind uf = new UnionFind();
+        Set<String> touched = new HashSet<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT a.patient_id, b.hfr_code, b.patient_id "
+                + "FROM ids_link_keys a JOIN ids_link_keys b ON b.key_hash = a.key_hash "
+                + "WHERE a.hfr_code = ? AND b.hfr_code <> a.hfr_code")) {
+            ps.setString(1, hfrCode);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String a = node(hfrCode, rs.getString(1));
+                    String b = node(rs.getString(2), rs.getString(3));
+                    uf.union(a, b);
+                    touched.add(a);
+                }
+            }
+        }
+        if (touched.isEmpty())
+            return 0;
+
+        // Existing clusters only hold linked patients, so they stay small
+        Map<String, Long> existing = new HashMap<>();
+        Map<Long, String> firstMember = new HashMap<>();
+        long maxId = 0;
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT cluster_id, hfr_code, patient_id FROM ids_link_clusters")) {
+            while (rs.next()) {
+                long cluster = rs.getLong(1);
+                String n = node(rs.getString(2), rs.getString(3));
+                existing.put(n, cluster);
+                String head = firstMember.putIfAbsent(cluster, n);
+                if (head != null)
+                    uf.union(head, n);
+                maxId = Math.max(maxId, cluster);
+            }
+        }
+
+        Map<String, List<String>> components = new HashMap<>();
+        for (String n : uf.nodes())
+            components.computeIfAbsent(uf.find(n), k -> new ArrayList<>()).add(n);
+
+        int changed = 0;
+        try (PreparedStatement upsert = conn.prepareStatement(
+                "INSERT OR REPLACE INTO ids_link_clusters (cluster_id, hfr_code, patient_id) VALUES (?, ?, ?)")) {
+            for (List<String> members : components.values()) {
+                if (members.stream().noneMatch(touched::contains))
+                    continue;
+                long target = Long.MAX_VALUE;
+                for (String m : members) {
+                    Long c = existing.get(m);
+                    if (c != null)
+                        target = Math.min(target, c);
+                }
+                if (target == Long.MAX_VALUE)
+                    target = ++maxId;
+                for (String m : members) {
+                    if (Objects.equals(existing.get(m), target))
+                        continue;
+                    int cut = m.indexOf(SEP);
+                    upsert.setLong(1, target);
+                    upsert.setString(2, m.substring(0, cut));
+                    upsert.setString(3, m.substring(cut + 1));
+                    upsert.addBatch();
+                    changed++;
+                }
+            }
+            upsert.executeBatch();
+        }
+        return changed;
+    }
+
+    private static String node(String hfrCode, String patientId) {
+        return hfrCode + SEP + patientId;
+    }
+
+    /** Cluster id per "hfr_code␟PatientID" for every linked patient. */
+    public static Map<String, Long> loadClusters(Connection conn) throws SQLException {
+        Map<String, Long> clusters = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT cluster_id, hfr_code, patient_id FROM ids_link_clusters")) {
+            while (rs.next())
+                clusters.put(node(rs.getString(2), rs.getString(3)), rs.getLong(1));
+        } catch (SQLException e) {
+            // Database imported before linkage existed
+            if (e.getMessage() == null || !e.getMessage().contains("no such table"))
+                throw e;
+        }
+        return clusters;
+    }
+
+    /**
+     * Keeps one row per linked patient cluster, preferring the row with the
+     * latest visit date. Rows of unlinked patients pass through unchanged, in
+     * their original order. Returns the rows unchanged if the result has no
+     * PatientID or hfr_code column.
+     */
+    public static List<List<String>> deduplicate(List<String> headers, List<List<String>> rows,
+            Map<String, Long> clusters) {
+        int id = indexOf(headers, List.of("patientid"));
+        int hfr = indexOf(headers, List.of("hfr_code"));
+        if (id < 0 || hfr < 0 || clusters.isEmpty())
+            return rows;
+        int date = indexOf(headers, List.of("visitdate", "maxvdate", "lastbefore", "lastvisitdate"));
+
+        Map<Long, Integer> best = new HashMap<>();
+        boolean[] keep = new boolean[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            List<String> row = rows.get(i);
+            Long cluster = clusters.get(node(row.get(hfr), row.get(id)));
+            if (cluster == null) {
+                keep[i] = true;
+                continue;
+            }
+            Integer current = best.get(cluster);
+            if (current == null || (date >= 0 && DateValues.epochSecond(row.get(date))
+                    > DateValues.epochSecond(rows.get(current).get(date)))) {
+                if (current != null)
+                    keep[current] = false;
+                best.put(cluster, i);
+                keep[i] = true;
+            }
+        }
+        List<List<String>> out = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            if (keep[i])
+                out.add(rows.get(i));
+        }
+        return out;
+    }
+
+    private static class UnionFind {
+        private final Map<String, String> parent = new HashMap<>();
+
+        Set<String> nodes() {
+            return parent.keySet();
+        }
+
+        String find(String n) {
+            String root = n;
+            for (String p = parent.computeIfAbsent(root, k -> k); !p.equals(root); p = parent.get(root))
+                root = p;
+            while (!n.equals(root)) { // path compression
+                String next = parent.get(n);
+                parent.put(n, root);
+                n = next;
+            }
+            return root;
+        }
+
+        void union(String a, String b) {
+            String ra = find(a), rb = find(b);
+            if (!ra.equals(rb))
+                parent.put(ra, rb);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.ids;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.util.List;
+
+/**
+ * Flight Recorder events for the slow paths users notice: MDB import, queries,
+ * exports and filling result tables. They cost next to nothing unless a
+ * recording is running (see {@link FlightRecording}); open the dumped
+ * {@code .jfr} file in JDK Mission Control or with {@code jfr print}.
+ *
+ * Byte counts of text are character counts, which match UTF-8 bytes for the
+ * mostly ASCII data in facility databases.
+ */
+public final class PerfEvents {
+
+    private PerfEvents() {
+    }
+
+    /** Approximate size of a row of text values. */
+    static long sizeOf(List<String> row) {
+        long n = 0;
+        for (String v : row)
+            n += v == null ? 0 : v.length();
+        return n;
+    }
+
+    static long sizeOf(String[] row) {
+        long n = 0;
+        for (String v : row)
+            n += v == null ? 0 : v.length();
+        return n;
+    }
+
+    @Name("com.ids.MdbOpen")
+    @Label("MDB Open")
+    @Category({ "IDS Analytics", "Import" })
+    @Description("Opening a facility MDB and reading its HFR code")
+    public static class MdbOpen extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("HFR Code")
+        public String hfrCode;
+
+        @Label("File Size")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.ids.TableTransfer")
+    @Label("Table Transfer")
+    @Category({ "IDS Analytics", "Import" })
+    @Description("Copying one MDB table into converted.db")
+    public static class TableTransfer extends Event {
+        @Label("Table")
+        public String table;
+
+        @Label("HFR Code")
+        public String hfrCode;
+
+        @Label("Rows")
+        public long rows;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.ids.BatchCommit")
+    @Label("Batch Commit")
+    @Category({ "IDS Analytics", "Import" })
+    @Description("Committing the transaction that holds one facility's import")
+    public static class BatchCommit extends Event {
+        @Label("HFR Code")
+        public String hfrCode;
+
+        @Label("Tables")
+        public int tables;
+
+        @Label("Rows")
+        public long rows;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.ids.QueryExecute")
+    @Label("Query Execute")
+    @Category({ "IDS Analytics", "Query" })
+    @Description("Preparing and executing a query up to its first row")
+    public static class QueryExecute extends Event {
+        @Label("Query Key")
+        public String queryKey;
+
+        @Label("HFR Code")
+        @Description("Set for per-facility slices")
+        public String hfrCode;
+    }
+
+    @Name("com.ids.QueryFetch")
+    @Label("Query Fetch")
+    @Category({ "IDS Analytics", "Query" })
+    @Description("Reading a query's rows")
+    public static class QueryFetch extends Event {
+        @Label("Query Key")
+        public String queryKey;
+
+        @Label("HFR Code")
+        @Description("Set for per-facility slices")
+        public String hfrCode;
+
+        @Label("Rows")
+        public long rows;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.ids.CsvExport")
+    @Label("CSV Export")
+    @Category({ "IDS Analytics", "Export" })
+    @Description("Writing a result to CSV")
+    public static class CsvExport extends Event {
+        @Label("Query Key")
+        public String queryKey;
+
+        @Label("Path")
+        public String path;
+
+        @Label("Rows")
+        public long rows;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.ids.TablePopulate")
+    @Label("TableView Populate")
+    @Category({ "IDS Analytics", "UI" })
+    @Description("Building the columns and items of a result table on the FX thread")
+    public static class TablePopulate extends Event {
+        @Label("Query Key")
+        public String queryKey;
+
+        @Label("Rows")
+        public long rows;
+
+        @Label("Columns")
+        public int columns;
+    }
+}
@@ -0,0 +1,274 @@
+package com.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * HyperLogLog sketches of key columns per (table, facility, month), built while
+ * a source is imported. Distinct patients or clients for any set of months and
+ * facilities are then a union of small sketches instead of a scan, which backs
+ * the approximate preview in {@link PredefinedQueryController}.
+ *
+ * Sketches are kept per facility, so removing a facility just deletes its rows
+ * (unlike the table-wide sketches of {@link TableStatsCatalog}). Registers are
+ * deflated on disk; a facility-month sketch is mostly empty registers.
+ */
+public class PeriodSketches implements ImportListener {
+
+    /** A sketched key column and the date column that assigns rows to months. */
+    public static class Target {
+        public final String table;
+        public final String dateColumn;
+        public final String keyColumn;
+        public final String noun;
+
+        Target(String table, String dateColumn, String keyColumn, String noun) {
+            this.table = table;
+            this.dateColumn = dateColumn;
+            this.keyColumn = keyColumn;
+            this.noun = noun;
+        }
+    }
+
+    public static final Target VISIT_PATIENTS = new Target("tblVisits", "VisitDate", "PatientID", "patients");
+    public static final Target TESTED_CLIENTS = new Target("tblCT", "visitDate", "ClientCode", "clients");
+    static final List<Target> TARGETS = List.of(VISIT_PATIENTS, TESTED_CLIENTS);
+
+    /** Distinct estimate for one facility (or all, with {@code hfrCode} null). */
+    public static class Estimate {
+        public final String hfrCode;
+        public final long distinct;
+        /** Approximate 95% bound (two standard errors), in the same unit as {@link #distinct}. */
+        public final long errorBound;
+
+        Estimate(String hfrCode, long distinct, long errorBound) {
+            this.hfrCode = hfrCode;
+            this.distinct = distinct;
+            this.errorBound = errorBound;
+        }
+    }
+
+    @Override
+    public void ensureTables(Connection conn) throws SQLException {
+        ensureSketchTable(conn);
+    }
+
+    static void ensureSketchTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_period_sketches (table_name TEXT, hfr_code TEXT, "
+                    + "month TEXT, column_name TEXT, registers BLOB, "
+                    + "PRIMARY KEY (table_name, column_name, month, hfr_code))");
+        }
+    }
+
+    @Override
+    public TableSink onTable(Connection conn, String tableName, List<String> columnNames, String hfrCode) {
+        for (Target t : TARGETS) {
+            if (!t.table.equalsIgnoreCase(tableName))
+                continue;
+            int date = indexOf(columnNames, t.dateColumn);
+            int key = indexOf(columnNames, t.keyColumn);
+            if (date >= 0 && key >= 0)
+                return new MonthSink(t, hfrCode, date, key);
+        }
+        return null;
+    }
+
+    @Override
+    public void onSourceRemoved(Connection conn, String hfrCode) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM ids_period_sketches WHERE hfr_code = ?")) {
+            ps.setString(1, hfrCode);
+            ps.executeUpdate();
+        }
+    }
+
+    private static int indexOf(List<String> columns, String name) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Collects one sketch per month for one table and facility. */
+    private static class MonthSink implements TableSink {
+        private final Target target;
+        private final String hfrCode;
+        private final int dateIndex;
+        private final int keyIndex;
+        private final Map<String, HyperLogLog> months = new TreeMap<>();
+
+        MonthSink(Target target, String hfrCode, int dateIndex, int keyIndex) {
+            this.target = target;
+            this.hfrCode = hfrCode;
+            this.dateIndex = dateIndex;
+            this.keyIndex = keyIndex;
+        }
+
+        @Override
+        public void accept(String[] values) {
+            String key = values[keyIndex];
+            String month = monthOf(values[dateIndex]);
+            if (key == null || key.isEmpty() || month == null)
+                return;
+            months.computeIfAbsent(month, m -> new HyperLogLog()).add(key);
+        }
+
+        @Override
+        public void finish(Connection conn) throws SQLException {
+            for (Map.Entry<String, HyperLogLog> e : months.entrySet())
+                merge(conn, target, hfrCode, e.getKey(), e.getValue());
+        }
+    }
+
+    private static String monthOf(String date) {
+        long day = SqlFunctions.epochDay(date);
+        return day == Long.MIN_VALUE ? null : YearMonth.from(LocalDate.ofEpochDay(day)).toString();
+    }
+
+    private static void merge(Connection conn, Target target, String hfrCode, String month, HyperLogLog sketch)
+            throws SQLException {
+        try (PreparedStatement read = conn.prepareStatement("SELECT registers FROM ids_period_sketches "
+                + "WHERE table_name = ? AND column_name = ? AND month = ? AND hfr_code = ?")) {
+            read.setString(1, target.table);
+            read.setString(2, target.keyColumn);
+            read.setString(3, month);
+            read.setString(4, hfrCode);
+            try (ResultSet rs = read.executeQuery()) {
+                if (rs.next() && rs.getBytes(1) != null)
+                    sketch.merge(HyperLogLog.fromBytes(inflate(rs.getBytes(1))));
+            }
+        }
+        try (PreparedStatement write = conn.prepareStatement("INSERT OR REPLACE INTO ids_period_sketches "
+                + "(table_name, hfr_code, month, column_name, registers) VALUES (?, ?, ?, ?, ?)")) {
+            write.setString(1, target.table);
+            write.setString(2, hfrCode);
+            write.setString(3, month);
+            write.setString(4, target.keyColumn);
+            write.setBytes(5, deflate(sketch.toBytes()));
+            write.executeUpdate();
+        }
+    }
+
+    /**
+     * Estimates distinct keys per facility over the whole months from
+     * {@code start} to {@code end}; the last entry (hfrCode null) is the union
+     * over all facilities. Only reads ids_period_sketches.
+     */
+    public static List<Estimate> estimate(Connection conn, Target target, LocalDate start, LocalDate end)
+            throws SQLException {
+        ensureSketchTable(conn);
+        Map<String, HyperLogLog> byFacility = new TreeMap<>();
+        HyperLogLog all = new HyperLogLog();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT hfr_code, registers FROM ids_period_sketches "
+                + "WHERE table_name = ? AND column_name = ? AND month BETWEEN ? AND ?")) {
+            ps.setString(1, target.table);
+            ps.setString(2, target.keyColumn);
+            ps.setString(3, YearMonth.from(start).toString());
+            ps.setString(4, YearMonth.from(end).toString());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    HyperLogLog h = HyperLogLog.fromBytes(inflate(rs.getBytes(2)));
+                    byFacility.computeIfAbsent(String.valueOf(rs.getString(1)), k -> new HyperLogLog()).merge(h);
+                    all.merge(h);
+                }
+            }
+        }
+        List<Estimate> out = new ArrayList<>();
+        for (Map.Entry<String, HyperLogLog> e : byFacility.entrySet())
+            out.add(toEstimate(e.getKey(), e.getValue()));
+        out.add(toEstimate(null, all));
+        return out;
+    }
+
+    private static Estimate toEstimate(String hfrCode, HyperLogLog h) {
+        long n = h.estimate();
+        return new Estimate(hfrCode, n, Math.round(2 * h.relativeError() * n));
+    }
+
+    /** The sketched column a predefined query's preview counts: clients for HTS, patients otherwise. */
+    public static Target targetFor(String queryType) {
+        return queryType != null && queryType.startsWith("HTS_") ? TESTED_CLIENTS : VISIT_PATIENTS;
+    }
+
+    /** Builds sketches for target tables that have data but none yet (older databases). */
+    public static int backfillMissing(Connection conn) throws SQLException {
+        ensureSketchTable(conn);
+        Set<String> tables = new HashSet<>();
+        for (String t : TableStatsCatalog.dataTables(conn))
+            tables.add(t.toLowerCase(Locale.ROOT));
+
+        int built = 0;
+        PeriodSketches listener = new PeriodSketches();
+        for (Target target : TARGETS) {
+            if (!tables.contains(target.table.toLowerCase(Locale.ROOT)) || hasSketches(conn, target))
+                continue;
+            List<String> columns = List.of(target.dateColumn, target.keyColumn);
+            Map<String, TableSink> sinks = new HashMap<>();
+            String sql = "SELECT hfr_code, \"" + target.dateColumn + "\", \"" + target.keyColumn + "\" FROM \""
+                    + target.table + "\"";
+            try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    TableSink sink = sinks.computeIfAbsent(String.valueOf(rs.getString(1)),
+                            hfr -> listener.onTable(conn, target.table, columns, hfr));
+                    sink.accept(new String[] { rs.getString(2), rs.getString(3) });
+                }
+            } catch (SQLException e) {
+                continue; // table without the sketched columns (e.g. a narrow import profile)
+            }
+            for (TableSink sink : sinks.values())
+                sink.finish(conn);
+            built++;
+        }
+        return built;
+    }
+
+    private static boolean hasSketches(Connection conn, Target target) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT 1 FROM ids_period_sketches WHERE table_name = ? AND column_name = ? LIMIT 1")) {
+            ps.setString(1, target.table);
+            ps.setString(2, target.keyColumn);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    static byte[] deflate(byte[] raw) {
+        Deflater d = new Deflater(Deflater.BEST_SPEED);
+        d.setInput(raw);
+        d.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4);
+        byte[] buf = new byte[1024];
+        while (!d.finished())
+            out.write(buf, 0, d.deflate(buf));
+        d.end();
+        return out.toByteArray();
+    }
+
+    static byte[] inflate(byte[] packed) throws SQLException {
+        Inflater inf = new Inflater();
+        inf.setInput(packed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << HyperLogLog.DEFAULT_PRECISION);
+        byte[] buf = new byte[1024];
+        try {
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0 && (inf.needsInput() || inf.needsDictionary()))
+                    throw new SQLException("truncated sketch");
+                out.write(buf, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new SQLException("corrupt sketch", e);
+        } finally {
+            inf.end();
+        }
+        return out.toByteArray();
+    }
+}
@@ -24,11 +24,76 @@ public class PredefinedQueryController {
     private TextArea queryArea;
     @FXML
     private Button exportButton;
+    private Button shardExportButton;
+    private TableView<ObservableList<String>> pivotTable;
+    private AgeBands ageBands = AgeBands.MER_FINE;
+    private boolean dedupeTransfers;
 
     private Connection sqliteConnection;
+    private String databaseId = "";
+    private ReadOnlyPool readers;
+    private QueryScheduler scheduler;
+    private FacilityFanout fanout;
+    private boolean byFacility;
 
-    public void setSqliteConnection(Connection connection) {
+    /**
+     * @param databaseId names the database behind {@code connection} (converted.db or a snapshot) so that
+     *                   identical runs against different databases never share one execution
+     */
+    public void setSqliteConnection(Connection connection, String databaseId) {
         this.sqliteConnection = connection;
+        this.databaseId = databaseId != null ? databaseId : "";
+    }
+
+    /**
+     * Read-only converted.db connections for the queries, so they never see an import's uncommitted rows and
+     * never wait for it; null reads through the main connection under its lock (e.g. a snapshot).
+     */
+    public void setReaders(ReadOnlyPool readers) {
+        this.readers = readers;
+    }
+
+    /** Work that reads the database through the connection it is given. */
+    private interface Read<T> {
+        T apply(Connection conn) throws SQLException;
+    }
+
+    private static final long BORROW_TIMEOUT_MS = 30_000;
+
+    /**
+     * Runs {@code work} in one read transaction, on a pooled read-only connection when there is a pool,
+     * so everything it reads comes from the same committed state.
+     */
+    private <T> T read(Read<T> work) throws SQLException {
+        if (readers == null) {
+            synchronized (sqliteConnection) {
+                return work.apply(sqliteConnection);
+            }
+        }
+        ReadOnlyPool.Lease lease;
+        try {
+            lease = readers.borrow(BORROW_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Query interrupted", e);
+        }
+        if (lease == null)
+            throw new SQLException("The database is busy; try again in a moment.");
+        try (lease) {
+            Connection conn = lease.conn;
+            conn.setAutoCommit(false);
+            try {
+                return work.apply(conn);
+            } finally {
+                conn.rollback(); // read-only; just ends the transaction
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /** Worker pool the queries run on; identical in-flight runs share one execution. */
+    public void setScheduler(QueryScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
     public void setQueryDisplay(TextArea area, TableView<ObservableList<String>> table, Button export) {
@@ -37,71 +102,162 @@ public class PredefinedQueryController {
         this.exportButton = export;
     }
 
+    public void setShardExportButton(Button shardExport) {
+        this.shardExportButton = shardExport;
+    }
+
+    /** Table that receives the age/sex disaggregation of each line list. */
+    public void setPivotDisplay(TableView<ObservableList<String>> pivot, AgeBands bands) {
+        this.pivotTable = pivot;
+        this.ageBands = bands != null ? bands : AgeBands.MER_FINE;
+    }
+
+    /** Runs the next queries as parallel per-facility slices when {@code fanout} is set. */
+    public void setFacilityFanout(FacilityFanout fanout, boolean enabled) {
+        this.fanout = fanout;
+        this.byFacility = enabled && fanout != null;
+    }
+
+    /** Keep one row per patient cluster from {@link PatientLinkage} in the next runs. */
+    public void setDedupeTransfers(boolean dedupe) {
+        this.dedupeTransfers = dedupe;
+    }
+
     // Put this in QueryController
     public void runPredefiendQuery(String queryType, LocalDate start, LocalDate end, Runnable onComplete) {
         Objects.requireNonNull(sqliteConnection, "sqliteConnection is null");
+        Objects.requireNonNull(scheduler, "scheduler is null");
         Objects.requireNonNull(start, "start date is null");
         Objects.requireNonNull(end, "end date is null");
 
-        final String startStr = start.toString();
-        final String endStr = end.toString();
-
-        // Use a Task so we can keep UI responsive
-        javafx.concurrent.Task<QueryPayload> task = new javafx.concurrent.Task<>() {
-            @Override
-            protected QueryPayload call() throws Exception {
-                return buildPayload(startStr, endStr, queryType); // DB work only
-            }
-        };
-
-        // Optional: show a spinner / disable export while running
-        task.setOnRunning(e -> {
-            if (exportButton != null)
-                exportButton.setVisible(false);
-            // If you have a status/progress in Main, you can call Platform.runLater to
-            // update it
-        });
+        final boolean dedupe = dedupeTransfers;
+        final AgeBands bands = ageBands;
+        // Only queries that keep every join within a facility give the same rows when split
+        final boolean split = byFacility && FacilityFanout.splitBlocker(QueryLoader.getQuery(queryType)) == null;
+        final String key = String.join("|", "predefined", databaseId, queryType, start.toString(), end.toString(),
+                String.valueOf(dedupe), bands.getName(), split ? "by-facility" : "single");
 
-        // On success -> update UI
-        task.setOnSucceeded(e -> {
-            QueryPayload payload = task.getValue();
+        if (exportButton != null)
+            exportButton.setVisible(false);
+        if (shardExportButton != null)
+            shardExportButton.setVisible(false);
 
+        // DB work only on the scheduler; a second click on the same run joins the first
+        schedule(key, () -> buildPayload(start, end, queryType, bands, dedupe, split), payload -> {
             // Show the SQL text, if you store it
             if (queryArea != null && payload.sql != null) {
                 queryArea.setText(payload.sql);
             }
 
-            // Rebuild columns
-            resultTable.getColumns().clear();
-            for (int i = 0; i < payload.headers.size(); i++) {
-                final int colIndex = i;
-                TableColumn<ObservableList<String>, String> col = new TableColumn<>(payload.headers.get(i));
-                col.setCellValueFactory(data -> new ReadOnlyStringWrapper(data.getValue().get(colIndex)));
-                resultTable.getColumns().add(col);
+            ObservableList<ObservableList<String>> items = showRows(resultTable, queryType, payload.headers,
+                    payload.rows);
+            if (pivotTable != null) {
+                if (payload.pivot != null)
+                    showRows(pivotTable, queryType + "/pivot", payload.pivot.headers,
+                            payload.pivot.rows);
+                else
+                    clearTable(pivotTable);
             }
 
-            // Set rows
-            ObservableList<ObservableList<String>> items = FXCollections.observableArrayList();
-            for (java.util.List<String> r : payload.rows) {
-                items.add(FXCollections.observableArrayList(r));
-            }
-            resultTable.setItems(items);
-
             if (exportButton != null)
                 exportButton.setVisible(!items.isEmpty());
+            if (shardExportButton != null)
+                shardExportButton.setVisible(!items.isEmpty());
 
             if (onComplete != null)
                 onComplete.run(); // <- signal finished
-        });
+        }, "Query failed.");
+    }
 
-        task.setOnFailed(e -> {
-            Throwable ex = task.getException();
-            showError(ex != null ? ex.getMessage() : "Query failed.");
+    /** Runs {@code work} as interactive work and hands the result to {@code onSuccess} on the FX thread. */
+    private <T> void schedule(String key, java.util.concurrent.Callable<T> work,
+            java.util.function.Consumer<T> onSuccess, String failure) {
+        scheduler.submit(key, QueryScheduler.Priority.INTERACTIVE, work).whenComplete((value, ex) -> {
+            if (ex != null) {
+                Throwable cause = ex instanceof java.util.concurrent.CompletionException && ex.getCause() != null
+                        ? ex.getCause()
+                        : ex;
+                showError(cause.getMessage() != null ? cause.getMessage() : failure);
+            } else {
+                javafx.application.Platform.runLater(() -> onSuccess.accept(value));
+            }
         });
+    }
+
+    /**
+     * Fast path beside {@link #runPredefiendQuery}: distinct patients (clients
+     * for HTS queries) per facility over the whole months of the range, from
+     * {@link PeriodSketches}. Answers in milliseconds with a stated error bound
+     * instead of producing the line list.
+     */
+    public void runApproximatePreview(String queryType, LocalDate start, LocalDate end, Runnable onComplete) {
+        Objects.requireNonNull(sqliteConnection, "sqliteConnection is null");
+        Objects.requireNonNull(scheduler, "scheduler is null");
+        final PeriodSketches.Target target = PeriodSketches.targetFor(queryType);
+        final String key = String.join("|", "estimate", databaseId, queryType, start.toString(), end.toString());
+
+        schedule(key, () -> {
+            java.util.List<PeriodSketches.Estimate> estimates = read(
+                    conn -> PeriodSketches.estimate(conn, target, start, end));
+            java.util.List<java.util.List<String>> rows = new java.util.ArrayList<>();
+            for (PeriodSketches.Estimate e : estimates)
+                rows.add(java.util.List.of(e.hfrCode == null ? "All facilities" : e.hfrCode,
+                        String.valueOf(e.distinct), "±" + e.errorBound));
+            String note = String.format(
+                    "-- Approximate preview for %s: distinct %s.%s with a %s in %s..%s (whole months),%n"
+                            + "-- estimated from HyperLogLog sketches; the ± column is an approximate 95%% bound.%n"
+                            + "-- Untick \"Quick estimate\" for the exact line list.",
+                    queryType, target.table, target.keyColumn, target.dateColumn,
+                    java.time.YearMonth.from(start), java.time.YearMonth.from(end));
+            return new QueryPayload(java.util.List.of("hfr_code", "Distinct " + target.noun + " (approx.)",
+                    "Error (95%)"), rows, note);
+        }, payload -> {
+            if (queryArea != null)
+                queryArea.setText(payload.sql);
+            ObservableList<ObservableList<String>> items = showRows(resultTable, queryType, payload.headers,
+                    payload.rows);
+            if (pivotTable != null)
+                clearTable(pivotTable);
+            if (exportButton != null)
+                exportButton.setVisible(!items.isEmpty());
+            if (shardExportButton != null)
+                shardExportButton.setVisible(false);
+            if (onComplete != null)
+                onComplete.run();
+        }, "Preview failed.");
+    }
 
-        Thread t = new Thread(task, "predef-query-" + queryType);
-        t.setDaemon(true);
-        t.start();
+    /**
+     * Rebuilds the columns of {@code table} and fills it; must run on the FX
+     * thread. {@code queryKey} only labels the TablePopulate JFR event.
+     */
+    static ObservableList<ObservableList<String>> showRows(TableView<ObservableList<String>> table, String queryKey,
+            java.util.List<String> headers, java.util.List<java.util.List<String>> rows) {
+        PerfEvents.TablePopulate event = new PerfEvents.TablePopulate();
+        event.begin();
+        table.getColumns().clear();
+        for (int i = 0; i < headers.size(); i++) {
+            final int colIndex = i;
+            TableColumn<ObservableList<String>, String> col = new TableColumn<>(headers.get(i));
+            col.setCellValueFactory(data -> new ReadOnlyStringWrapper(data.getValue().get(colIndex)));
+            table.getColumns().add(col);
+        }
+
+        ObservableList<ObservableList<String>> items = FXCollections.observableArrayList();
+        for (java.util.List<String> r : rows) {
+            items.add(FXCollections.observableArrayList(r));
+        }
+        table.setItems(items);
+        event.queryKey = queryKey;
+        event.rows = items.size();
+        event.columns = headers.size();
+        event.commit();
+        return items;
+    }
+
+    static void clearTable(TableView<ObservableList<String>> table) {
+        table.getColumns().clear();
+        table.setItems(FXCollections.observableArrayList());
     }
 
     /*
@@ -110,16 +266,23 @@ public class PredefinedQueryController {
      * ------------------------------------------
      */
 
-    // Holds headers, rows, and (optionally) the SQL used
+    // Holds headers, rows, (optionally) the SQL used and the age/sex pivot
     static class QueryPayload {
         final java.util.List<String> headers;
         final java.util.List<java.util.List<String>> rows;
         final String sql;
+        final QueryPayload pivot;
 
         QueryPayload(java.util.List<String> headers, java.util.List<java.util.List<String>> rows, String sql) {
+            this(headers, rows, sql, null);
+        }
+
+        QueryPayload(java.util.List<String> headers, java.util.List<java.util.List<String>> rows, String sql,
+                QueryPayload pivot) {
             this.headers = headers;
             this.rows = rows;
             this.sql = sql;
+            this.pivot = pivot;
         }
     }
 
@@ -130,34 +293,90 @@ public class PredefinedQueryController {
      * - read ResultSet into plain lists (NO JavaFX classes)
      * - return new QueryPayload(headers, rows, sql)
      */
-    private QueryPayload buildPayload(String startStr, String endStr, String queryType) throws SQLException {
-        String sqlTemplate = QueryLoader.getQuery(queryType);
-
-        String sql = sqlTemplate
-                .replace(":STARTDATE", "'" + startStr + "'")
-                .replace(":ENDDATE", "'" + endStr + "'");
-
-        try (PreparedStatement ps = sqliteConnection.prepareStatement(sql)) {
-            // ps.setString(1, startStr);
-            // ps.setString(2, endStr);
-            try (ResultSet rs = ps.executeQuery()) {
-                java.util.List<String> headers = new java.util.ArrayList<>();
-                java.util.List<java.util.List<String>> rows = new java.util.ArrayList<>();
-                ResultSetMetaData md = rs.getMetaData();
-                int cols = md.getColumnCount();
-                for (int i = 1; i <= cols; i++)
-                    headers.add(md.getColumnLabel(i));
-                while (rs.next()) {
-                    java.util.List<String> row = new java.util.ArrayList<>(cols);
+    private QueryPayload buildPayload(LocalDate start, LocalDate end, String queryType, AgeBands bands,
+            boolean dedupe, boolean split)
+            throws SQLException {
+        String sql = QueryLoader.render(queryType, start, end);
+        if (split)
+            return finishPayload(sql, runByFacility(queryType, sql), bands, dedupe);
+
+        // The line list and the clusters that dedupe it come from one read transaction
+        return read(conn -> {
+            PerfEvents.QueryExecute execute = new PerfEvents.QueryExecute();
+            execute.queryKey = queryType;
+            execute.begin();
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // ps.setString(1, startStr);
+                // ps.setString(2, endStr);
+                try (ResultSet rs = ps.executeQuery()) {
+                    execute.commit();
+                    PerfEvents.QueryFetch fetch = new PerfEvents.QueryFetch();
+                    fetch.queryKey = queryType;
+                    fetch.begin();
+                    java.util.List<String> headers = new java.util.ArrayList<>();
+                    java.util.List<java.util.List<String>> rows = new java.util.ArrayList<>();
+                    ResultSetMetaData md = rs.getMetaData();
+                    int cols = md.getColumnCount();
                     for (int i = 1; i <= cols; i++)
-                        row.add(rs.getString(i));
-                    rows.add(row);
+                        headers.add(md.getColumnLabel(i));
+                    // Disaggregate in the same pass over the ResultSet, unless rows
+                    // still have to be deduplicated
+                    DisaggregationEngine pivot = DisaggregationEngine.forHeaders(headers, bands);
+                    while (rs.next()) {
+                        java.util.List<String> row = new java.util.ArrayList<>(cols);
+                        for (int i = 1; i <= cols; i++)
+                            row.add(rs.getString(i));
+                        rows.add(row);
+                        fetch.bytes += PerfEvents.sizeOf(row);
+                        if (pivot != null && !dedupe)
+                            pivot.accept(row);
+                    }
+                    fetch.rows = rows.size();
+                    fetch.commit();
+                    if (dedupe) {
+                        rows = PatientLinkage.deduplicate(headers, rows, PatientLinkage.loadClusters(conn));
+                        if (pivot != null)
+                            rows.forEach(pivot::accept);
+                    }
+                    QueryPayload pivotPayload = pivot == null ? null
+                            : new QueryPayload(pivot.pivotHeaders(), pivot.pivotRows(), null);
+                    return new QueryPayload(headers, rows, sql, pivotPayload);
                 }
-                return new QueryPayload(headers, rows, sql);
             }
+        });
+    }
+
+    /** Headers and merged rows of a {@link FacilityFanout} run. */
+    private QueryPayload runByFacility(String queryType, String sql) throws SQLException {
+        // Index creation writes, so it goes through the main connection
+        synchronized (sqliteConnection) {
+            FacilityFanout.ensureFacilityIndexes(sqliteConnection, sql);
+        }
+        java.util.List<java.util.List<String>> rows = new java.util.ArrayList<>();
+        try {
+            // Imports write through the main connection under its lock; pinning under it gives every
+            // slice the same committed state
+            java.util.List<String> headers = fanout.run(queryType, sql, rows::add, sqliteConnection);
+            return new QueryPayload(headers, rows, sql);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Query interrupted", e);
         }
     }
 
+    private QueryPayload finishPayload(String sql, QueryPayload merged, AgeBands bands, boolean dedupe)
+            throws SQLException {
+        java.util.List<java.util.List<String>> rows = merged.rows;
+        if (dedupe)
+            rows = PatientLinkage.deduplicate(merged.headers, rows, read(PatientLinkage::loadClusters));
+        DisaggregationEngine pivot = DisaggregationEngine.forHeaders(merged.headers, bands);
+        if (pivot != null)
+            rows.forEach(pivot::accept);
+        QueryPayload pivotPayload = pivot == null ? null
+                : new QueryPayload(pivot.pivotHeaders(), pivot.pivotRows(), null);
+        return new QueryPayload(merged.headers, rows, sql, pivotPayload);
+    }
+
     // Show errors on FX thread
     private void showError(String msg) {
         javafx.application.Platform.runLater(() -> {
@@ -19,9 +19,28 @@ public class PredefinedQueryDialogController {
     @FXML
     private DatePicker endDatePicker;
 
+    @FXML
+    private ComboBox<String> ageBandsComboBox;
+
+    @FXML
+    private CheckBox dedupeTransfersCheckBox;
+
+    @FXML
+    private CheckBox approximateCheckBox;
+
+    @FXML
+    private CheckBox byFacilityCheckBox;
+
+    @FXML
+    private Label byFacilityNote;
+
     private String selectedQueryType;
     private LocalDate selectedStartDate;
     private LocalDate selectedEndDate;
+    private AgeBands ageBands = AgeBands.MER_FINE;
+    private boolean dedupeTransfers;
+    private boolean approximate;
+    private boolean byFacility;
 
     private Stage dialogStage;
     private boolean confirmed = false;
@@ -40,7 +59,34 @@ public class PredefinedQueryDialogController {
                 "TX_CURR_HVL_OTHER_CONTACTS",
                 "TX_RTT",
                 "TX_RTT_CONT_OFF_ACC");
+        queryTypeComboBox.valueProperty().addListener((obs, old, type) -> updateByFacility(type));
         queryTypeComboBox.getSelectionModel().selectFirst();
+        updateByFacility(queryTypeComboBox.getValue());
+
+        // Same order as the schemes in selectedAgeBands()
+        ageBandsComboBox.getItems().addAll(
+                "Fine age bands (<1, 1-4, … 65+)",
+                "Coarse age bands (<15, 15+)");
+        ageBandsComboBox.getSelectionModel().selectFirst();
+    }
+
+    /**
+     * Offers the per-facility run only for queries whose joins stay within one facility; the others would
+     * return fewer rows split than whole.
+     */
+    private void updateByFacility(String queryType) {
+        String blocker = queryType == null ? null : FacilityFanout.splitBlocker(QueryLoader.getQuery(queryType));
+        byFacilityCheckBox.setDisable(blocker != null);
+        if (blocker != null)
+            byFacilityCheckBox.setSelected(false);
+        // A disabled control shows no tooltip, so the reason goes in a label
+        byFacilityNote.setText(blocker == null ? "" : "Not per facility: " + blocker + ".");
+        byFacilityNote.setVisible(blocker != null);
+    }
+
+    private AgeBands selectedAgeBands() {
+        return ageBandsComboBox.getSelectionModel().getSelectedIndex() == 1 ? AgeBands.MER_COARSE
+                : AgeBands.MER_FINE;
     }
 
     @FXML
@@ -48,6 +94,10 @@ public class PredefinedQueryDialogController {
         selectedQueryType = queryTypeComboBox.getValue();
         selectedStartDate = startDatePicker.getValue();
         selectedEndDate = endDatePicker.getValue();
+        ageBands = selectedAgeBands();
+        dedupeTransfers = dedupeTransfersCheckBox.isSelected();
+        approximate = approximateCheckBox.isSelected();
+        byFacility = byFacilityCheckBox.isSelected();
         confirmed = true;
 
         if (dialogStage != null) {
@@ -83,12 +133,36 @@ public class PredefinedQueryDialogController {
         return selectedEndDate;
     }
 
+    /** Age band scheme for the age/sex disaggregation. */
+    public AgeBands getAgeBands() {
+        return ageBands;
+    }
+
+    /** Whether patients linked across facilities should appear only once. */
+    public boolean isDedupeTransfers() {
+        return dedupeTransfers;
+    }
+
+    /** Whether only approximate distinct counts were asked for, not the line list. */
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    /** Whether the query should run as parallel per-facility slices. */
+    public boolean isByFacility() {
+        return byFacility;
+    }
+
     // Optional: return all selections as a Map
     public Map<String, Object> getSelection() {
         Map<String, Object> map = new HashMap<>();
         map.put("queryType", selectedQueryType);
         map.put("startDate", selectedStartDate);
         map.put("endDate", selectedEndDate);
+        map.put("ageBands", ageBands.getName());
+        map.put("dedupeTransfers", dedupeTransfers);
+        map.put("approximate", approximate);
+        map.put("byFacility", byFacility);
         return map;
     }
 }
\ No newline at end of file
@@ -5,6 +5,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.LocalDate;
+import java.util.Collections;
 import java.util.Map;
 
 public class QueryLoader {
@@ -29,4 +31,15 @@ public class QueryLoader {
         }
         throw new IllegalArgumentException("Query key not found: " + key);
     }
-}
+
+    /** The query for {@code key} with its :STARTDATE and :ENDDATE placeholders filled in. */
+    public static String render(String key, LocalDate start, LocalDate end) {
+        return getQuery(key)
+                .replace(":STARTDATE", "'" + start + "'")
+                .replace(":ENDDATE", "'" + end + "'");
+    }
+
+    public static Map<String, String> getAllQueries() {
+        return Collections.unmodifiableMap(queries);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,148 @@
+package com.ids;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs database work on a fixed number of workers instead of a thread per
+ * request. Queued interactive work starts before queued batch work (FIFO
+ * within a class), and a request whose key matches one already queued or
+ * running shares that execution rather than starting a second one.
+ */
+public class QueryScheduler {
+
+    public enum Priority {
+        /** Someone is waiting on the screen: predefined queries, estimates. */
+        INTERACTIVE,
+        /** Exports and other bulk work that may wait. */
+        BATCH
+    }
+
+    /** Snapshot of the queue, reported whenever work is queued, started or finished. */
+    public static class Stats {
+        public final int running;
+        public final int queued;
+        /** How long the most recently started job waited in the queue. */
+        public final long lastWaitMs;
+
+        Stats(int running, int queued, long lastWaitMs) {
+            this.running = running;
+            this.queued = queued;
+            this.lastWaitMs = lastWaitMs;
+        }
+
+        public String summary() {
+            if (running == 0 && queued == 0)
+                return "";
+            return String.format("⏳ %d running · %d queued · last wait %.1f s", running, queued, lastWaitMs / 1000.0);
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final Consumer<Stats> listener;
+    private final Map<String, CompletableFuture<?>> inFlight = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile long lastWaitMs;
+
+    public QueryScheduler(int workers, Consumer<Stats> listener) {
+        AtomicInteger n = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "query-worker-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.listener = listener;
+    }
+
+    /**
+     * Queues {@code work} under {@code key}. If work with the same key is still
+     * queued or running, its future is returned and {@code work} is dropped.
+     * A null key never coalesces.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(String key, Priority priority, Callable<T> work) {
+        CompletableFuture<T> result;
+        synchronized (inFlight) {
+            if (key != null && inFlight.containsKey(key))
+                return (CompletableFuture<T>) inFlight.get(key);
+            result = new CompletableFuture<>();
+            if (key != null)
+                inFlight.put(key, result);
+        }
+        pool.execute(new Job<>(key, priority, sequence.incrementAndGet(), work, result));
+        report();
+        return result;
+    }
+
+    /** Number of jobs waiting for a worker. */
+    public int queued() {
+        return pool.getQueue().size();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private void report() {
+        if (listener != null)
+            listener.accept(new Stats(running.get(), pool.getQueue().size(), lastWaitMs));
+    }
+
+    private class Job<T> implements Runnable, Comparable<Job<?>> {
+        private final String key;
+        private final Priority priority;
+        private final long seq;
+        private final Callable<T> work;
+        private final CompletableFuture<T> result;
+        private final long queuedAt = System.nanoTime();
+
+        Job(String key, Priority priority, long seq, Callable<T> work, CompletableFuture<T> result) {
+            this.key = key;
+            this.priority = priority;
+            this.seq = seq;
+            this.work = work;
+            this.result = result;
+        }
+
+        @Override
+        public int compareTo(Job<?> o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+
+        @Override
+        public void run() {
+            lastWaitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt);
+            running.incrementAndGet();
+            report();
+            T value = null;
+            Throwable failure = null;
+            try {
+                value = work.call();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            // Leave the in-flight map first: a request that arrives from now on runs afresh
+            synchronized (inFlight) {
+                if (key != null)
+                    inFlight.remove(key, result);
+            }
+            running.decrementAndGet();
+            report();
+            if (failure != null)
+                result.completeExceptionally(failure);
+            else
+                result.complete(value);
+        }
+    }
+}
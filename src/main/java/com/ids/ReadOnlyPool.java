@@ -0,0 +1,106 @@
+package com.ids;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small bounded pool of read-only converted.db connections. Connections are
+ * opened lazily and kept open; {@link #reset()} drops them so a deleted or
+ * replaced database file is not held open (connections in use are closed when
+ * they come back).
+ */
+final class ReadOnlyPool implements AutoCloseable {
+
+    private final Path db;
+    private final StorageProfile profile;
+    private final Semaphore permits;
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private int generation;
+    private boolean closed;
+
+    ReadOnlyPool(Path db, StorageProfile profile, int size) {
+        this.db = db;
+        this.profile = profile;
+        this.permits = new Semaphore(size, true);
+    }
+
+    /** A borrowed connection; closing the lease returns it to the pool. */
+    final class Lease implements AutoCloseable {
+        final Connection conn;
+        private final int generation;
+
+        private Lease(Connection conn, int generation) {
+            this.conn = conn;
+            this.generation = generation;
+        }
+
+        @Override
+        public void close() {
+            release(conn, generation);
+        }
+    }
+
+    /** Waits up to {@code timeoutMs} for a free connection; null on timeout. */
+    Lease borrow(long timeoutMs) throws SQLException, InterruptedException {
+        if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS))
+            return null;
+        try {
+            int gen;
+            synchronized (this) {
+                if (closed)
+                    throw new SQLException("Connection pool is closed");
+                gen = generation;
+                Connection c = idle.pollFirst();
+                if (c != null)
+                    return new Lease(c, gen);
+            }
+            return new Lease(SqliteConnections.openReadOnly(db, profile), gen);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(Connection c, int borrowedGeneration) {
+        boolean keep;
+        synchronized (this) {
+            keep = !closed && borrowedGeneration == generation;
+            if (keep)
+                idle.addFirst(c);
+        }
+        if (!keep)
+            closeQuietly(c);
+        permits.release();
+    }
+
+    /** Closes idle connections; borrowed ones are closed on release. */
+    void reset() {
+        Deque<Connection> drop;
+        synchronized (this) {
+            generation++;
+            drop = new ArrayDeque<>(idle);
+            idle.clear();
+        }
+        drop.forEach(ReadOnlyPool::closeQuietly);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        reset();
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
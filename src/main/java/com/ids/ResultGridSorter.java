@@ -0,0 +1,139 @@
+package com.ids;
+
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Replaces the TableView's default FX-thread string sort with
+ * {@link ResultSortEngine}: header clicks and filter text are turned into a
+ * new index order in the background, and the grid only swaps rows once that
+ * order is ready. A new result (a new items list) resets the engine.
+ */
+public class ResultGridSorter {
+
+    private final TableView<ObservableList<String>> table;
+    private final Consumer<String> status;
+
+    private List<ObservableList<String>> baseRows = new ArrayList<>();
+    private ResultSortEngine engine;
+    private int[] typeHints;
+    private int[] currentHints;
+    private boolean applying;
+    private String filterText = "";
+    private long generation;
+
+    private ResultGridSorter(TableView<ObservableList<String>> table, Consumer<String> status) {
+        this.table = table;
+        this.status = status;
+    }
+
+    public static ResultGridSorter attach(TableView<ObservableList<String>> table, TextField filterField,
+            Consumer<String> status) {
+        ResultGridSorter sorter = new ResultGridSorter(table, status);
+        table.itemsProperty().addListener((obs, oldItems, newItems) -> sorter.reset(newItems));
+        table.setSortPolicy(tv -> {
+            if (!sorter.applying)
+                sorter.refresh();
+            return true;
+        });
+        if (filterField != null) {
+            filterField.setOnAction(e -> sorter.setFilter(filterField.getText()));
+            filterField.textProperty().addListener((obs, o, n) -> {
+                if (n == null || n.isBlank())
+                    sorter.setFilter("");
+            });
+        }
+        return sorter;
+    }
+
+    /** JDBC column types for the next result; consumed by the next items change. */
+    public void setTypeHints(int[] sqlTypes) {
+        this.typeHints = sqlTypes;
+    }
+
+    public void setFilter(String text) {
+        filterText = text == null ? "" : text;
+        refresh();
+    }
+
+    private void reset(ObservableList<ObservableList<String>> items) {
+        generation++;
+        baseRows = items == null ? new ArrayList<>() : new ArrayList<>(items);
+        engine = null;
+        currentHints = typeHints;
+        typeHints = null;
+        if (!filterText.isBlank())
+            refresh();
+    }
+
+    private void refresh() {
+        if (table.getItems() == null || baseRows.isEmpty())
+            return;
+
+        List<ResultSortEngine.SortKey> keys = new ArrayList<>();
+        for (TableColumn<ObservableList<String>, ?> col : table.getSortOrder()) {
+            int index = table.getColumns().indexOf(col);
+            if (index >= 0)
+                keys.add(new ResultSortEngine.SortKey(index, col.getSortType() == TableColumn.SortType.ASCENDING));
+        }
+        List<String> headers = new ArrayList<>();
+        for (TableColumn<ObservableList<String>, ?> col : table.getColumns())
+            headers.add(col.getText());
+
+        final long gen = ++generation;
+        final List<ObservableList<String>> rows = baseRows;
+        final ResultSortEngine existing = engine;
+        final String filter = filterText;
+        final int columns = headers.size();
+        final int[] hints = currentHints;
+        final ResultSortEngine[] built = new ResultSortEngine[1];
+
+        Task<int[]> task = new Task<>() {
+            @Override
+            protected int[] call() {
+                ResultSortEngine e = existing != null ? existing
+                        : new ResultSortEngine(rows, ResultSortEngine.inferTypes(columns, hints, rows));
+                built[0] = e;
+                IntPredicate p = e.predicate(filter, headers);
+                return e.sort(e.filter(e.identity(), p), keys);
+            }
+        };
+
+        task.setOnSucceeded(ev -> {
+            if (gen != generation)
+                return; // superseded by a newer sort, filter or result
+            engine = built[0]; // keeps extracted sort keys for the next click
+            int[] order = task.getValue();
+            List<ObservableList<String>> view = new ArrayList<>(order.length);
+            for (int i : order)
+                view.add(rows.get(i));
+            applying = true;
+            try {
+                table.getItems().setAll(view);
+            } finally {
+                applying = false;
+            }
+            if (status != null && !filter.isBlank())
+                status.accept("Showing " + order.length + " of " + rows.size() + " rows.");
+        });
+
+        task.setOnFailed(ev -> {
+            if (status != null && task.getException() != null)
+                status.accept("⚠️ Sort failed: " + task.getException().getMessage());
+        });
+
+        if (status != null && rows.size() > 50_000)
+            status.accept("Sorting " + rows.size() + " rows…");
+        Thread t = new Thread(task, "result-sort");
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,397 @@
+package com.ids;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/**
+ * Sorts and filters a materialised result by index permutation, without touching
+ * the row lists themselves. Column types come from JDBC metadata where it is
+ * specific and otherwise from a sample of values, so numbers and dates compare
+ * by value rather than lexically. Missing values always sort last.
+ */
+public class ResultSortEngine {
+
+    public enum ColumnType {
+        NUMBER, DATE, TEXT
+    }
+
+    /** One sort criterion: a column index and a direction. */
+    public static class SortKey {
+        final int column;
+        final boolean ascending;
+
+        public SortKey(int column, boolean ascending) {
+            this.column = column;
+            this.ascending = ascending;
+        }
+    }
+
+    private static final int SAMPLE_SIZE = 200;
+    private static final int SEQUENTIAL_THRESHOLD = 8192;
+    private static final int INSERTION_THRESHOLD = 24;
+    private static final Pattern CONDITION = Pattern.compile("^\\s*([^:<>=!]+?)\\s*(<=|>=|!=|=|<|>|:)\\s*(.*)$");
+
+    private final List<? extends List<String>> rows;
+    private final ColumnType[] types;
+    // Lazily extracted per-column sort keys
+    private final Object[] keys;
+
+    public ResultSortEngine(List<? extends List<String>> rows, ColumnType[] types) {
+        this.rows = rows;
+        this.types = types;
+        this.keys = new Object[types.length];
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public ColumnType typeOf(int column) {
+        return types[column];
+    }
+
+    /**
+     * Infers column types. {@code sqlTypes} may be null or hold
+     * {@link Types#OTHER} for columns whose declared type says nothing useful,
+     * which is the norm for imported TEXT tables.
+     */
+    public static ColumnType[] inferTypes(int columns, int[] sqlTypes, List<? extends List<String>> rows) {
+        ColumnType[] out = new ColumnType[columns];
+        int step = Math.max(1, rows.size() / SAMPLE_SIZE);
+        for (int c = 0; c < columns; c++) {
+            ColumnType hinted = sqlTypes == null || c >= sqlTypes.length ? null : fromSqlType(sqlTypes[c]);
+            if (hinted != null) {
+                out[c] = hinted;
+                continue;
+            }
+            boolean allNumbers = true, allDates = true, any = false;
+            for (int r = 0; r < rows.size() && (allNumbers || allDates); r += step) {
+                String v = cell(rows.get(r), c);
+                if (v == null || v.isBlank())
+                    continue;
+                any = true;
+                if (allNumbers && Double.isNaN(toNumber(v)))
+                    allNumbers = false;
+                if (allDates && DateValues.epochSecond(v) == DateValues.NOT_A_DATE)
+                    allDates = false;
+            }
+            out[c] = !any ? ColumnType.TEXT : allNumbers ? ColumnType.NUMBER : allDates ? ColumnType.DATE
+                    : ColumnType.TEXT;
+        }
+        return out;
+    }
+
+    private static ColumnType fromSqlType(int sqlType) {
+        switch (sqlType) {
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return ColumnType.NUMBER;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return ColumnType.DATE;
+            default:
+                return null;
+        }
+    }
+
+    private static String cell(List<String> row, int column) {
+        return column < row.size() ? row.get(column) : null;
+    }
+
+    static double toNumber(String v) {
+        if (v == null)
+            return Double.NaN;
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** Identity permutation 0..size-1. */
+    public int[] identity() {
+        return IntStream.range(0, rows.size()).toArray();
+    }
+
+    /** Returns {@code order} stably sorted by the given keys, using a parallel merge sort. */
+    public int[] sort(int[] order, List<SortKey> sortKeys) {
+        int[] a = order.clone();
+        if (sortKeys.isEmpty() || a.length < 2)
+            return a;
+        IndexComparator cmp = comparator(sortKeys);
+        int[] tmp = new int[a.length];
+        if (a.length <= SEQUENTIAL_THRESHOLD)
+            mergeSort(a, tmp, 0, a.length, cmp);
+        else
+            ForkJoinPool.commonPool().invoke(new SortTask(a, tmp, 0, a.length, cmp));
+        return a;
+    }
+
+    /** Keeps the indices of {@code order} that match, preserving their order. */
+    public int[] filter(int[] order, IntPredicate predicate) {
+        if (predicate == null)
+            return order;
+        return IntStream.of(order).parallel().filter(predicate).toArray();
+    }
+
+    /**
+     * Builds a row predicate from filter text. Supports {@code column=value},
+     * {@code column!=value}, {@code column>value} (and {@code <, >=, <=}) compared by
+     * column type, {@code column:text} for a substring match, and plain text for a
+     * substring match in any column. Conditions are separated by {@code ;}.
+     * Returns null for blank text.
+     */
+    public IntPredicate predicate(String text, List<String> headers) {
+        if (text == null || text.isBlank())
+            return null;
+        List<IntPredicate> parts = new ArrayList<>();
+        for (String part : text.split(";")) {
+            if (part.isBlank())
+                continue;
+            Matcher m = CONDITION.matcher(part);
+            int column = m.matches() ? indexOfHeader(headers, m.group(1)) : -1;
+            if (column < 0)
+                parts.add(anyColumnContains(part.trim().toLowerCase(Locale.ROOT)));
+            else
+                parts.add(condition(column, m.group(2), m.group(3).trim()));
+        }
+        return row -> {
+            for (IntPredicate p : parts) {
+                if (!p.test(row))
+                    return false;
+            }
+            return true;
+        };
+    }
+
+    private static int indexOfHeader(List<String> headers, String name) {
+        for (int i = 0; i < headers.size(); i++) {
+            if (headers.get(i) != null && headers.get(i).trim().equalsIgnoreCase(name.trim()))
+                return i;
+        }
+        return -1;
+    }
+
+    private IntPredicate anyColumnContains(String needle) {
+        return row -> {
+            for (String v : rows.get(row)) {
+                if (v != null && v.toLowerCase(Locale.ROOT).contains(needle))
+                    return true;
+            }
+            return false;
+        };
+    }
+
+    private IntPredicate condition(int column, String op, String value) {
+        if (op.equals(":")) {
+            String needle = value.toLowerCase(Locale.ROOT);
+            return row -> {
+                String v = cell(rows.get(row), column);
+                return v != null && v.toLowerCase(Locale.ROOT).contains(needle);
+            };
+        }
+        // Compares a row's value to the target; MIN_VALUE when either side is missing
+        IntUnaryOperator byValue;
+        switch (types[column]) {
+            case NUMBER: {
+                double[] k = numberKeys(column);
+                double target = toNumber(value);
+                byValue = row -> Double.isNaN(k[row]) || Double.isNaN(target) ? Integer.MIN_VALUE
+                        : Double.compare(k[row], target);
+                break;
+            }
+            case DATE: {
+                long[] k = dateKeys(column);
+                long target = DateValues.epochSecond(value);
+                byValue = row -> k[row] == DateValues.NOT_A_DATE || target == DateValues.NOT_A_DATE
+                        ? Integer.MIN_VALUE
+                        : Long.compare(k[row], target);
+                break;
+            }
+            default:
+                byValue = row -> {
+                    String v = cell(rows.get(row), column);
+                    return v == null ? Integer.MIN_VALUE : v.compareToIgnoreCase(value);
+                };
+        }
+        return row -> {
+            int c = byValue.applyAsInt(row);
+            if (c == Integer.MIN_VALUE)
+                return op.equals("!=");
+            switch (op) {
+                case "=":
+                    return c == 0;
+                case "!=":
+                    return c != 0;
+                case "<":
+                    return c < 0;
+                case "<=":
+                    return c <= 0;
+                case ">":
+                    return c > 0;
+                default:
+                    return c >= 0;
+            }
+        };
+    }
+
+    @FunctionalInterface
+    interface IndexComparator {
+        int compare(int a, int b);
+    }
+
+    private IndexComparator comparator(List<SortKey> sortKeys) {
+        IndexComparator[] parts = new IndexComparator[sortKeys.size()];
+        for (int i = 0; i < parts.length; i++) {
+            SortKey key = sortKeys.get(i);
+            parts[i] = columnComparator(key.column, key.ascending);
+        }
+        return (a, b) -> {
+            for (IndexComparator c : parts) {
+                int r = c.compare(a, b);
+                if (r != 0)
+                    return r;
+            }
+            return 0;
+        };
+    }
+
+    // Direction applies to present values only; missing values stay last
+    private IndexComparator columnComparator(int column, boolean ascending) {
+        int dir = ascending ? 1 : -1;
+        switch (types[column]) {
+            case NUMBER: {
+                double[] k = numberKeys(column);
+                return (a, b) -> {
+                    boolean na = Double.isNaN(k[a]), nb = Double.isNaN(k[b]);
+                    if (na || nb)
+                        return na == nb ? 0 : na ? 1 : -1;
+                    return dir * Double.compare(k[a], k[b]);
+                };
+            }
+            case DATE: {
+                long[] k = dateKeys(column);
+                return (a, b) -> {
+                    boolean na = k[a] == DateValues.NOT_A_DATE, nb = k[b] == DateValues.NOT_A_DATE;
+                    if (na || nb)
+                        return na == nb ? 0 : na ? 1 : -1;
+                    return dir * Long.compare(k[a], k[b]);
+                };
+            }
+            default: {
+                String[] k = textKeys(column);
+                return (a, b) -> {
+                    if (k[a] == null || k[b] == null)
+                        return k[a] == k[b] ? 0 : k[a] == null ? 1 : -1;
+                    return dir * k[a].compareTo(k[b]);
+                };
+            }
+        }
+    }
+
+    private synchronized double[] numberKeys(int column) {
+        if (keys[column] == null) {
+            double[] k = new double[rows.size()];
+            IntStream.range(0, k.length).parallel().forEach(i -> k[i] = toNumber(cell(rows.get(i), column)));
+            keys[column] = k;
+        }
+        return (double[]) keys[column];
+    }
+
+    private synchronized long[] dateKeys(int column) {
+        if (keys[column] == null) {
+            long[] k = new long[rows.size()];
+            IntStream.range(0, k.length).parallel()
+                    .forEach(i -> k[i] = DateValues.epochSecond(cell(rows.get(i), column)));
+            keys[column] = k;
+        }
+        return (long[]) keys[column];
+    }
+
+    // Case-insensitive collation key; null stays null
+    private synchronized String[] textKeys(int column) {
+        if (keys[column] == null) {
+            String[] k = new String[rows.size()];
+            IntStream.range(0, k.length).parallel().forEach(i -> {
+                String v = cell(rows.get(i), column);
+                k[i] = v == null || v.isEmpty() ? null : v.toLowerCase(Locale.ROOT);
+            });
+            keys[column] = k;
+        }
+        return (String[]) keys[column];
+    }
+
+    private static class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] a, tmp;
+        private final int lo, hi;
+        private final IndexComparator cmp;
+
+        SortTask(int[] a, int[] tmp, int lo, int hi, IndexComparator cmp) {
+            this.a = a;
+            this.tmp = tmp;
+            this.lo = lo;
+            this.hi = hi;
+            this.cmp = cmp;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= SEQUENTIAL_THRESHOLD) {
+                mergeSort(a, tmp, lo, hi, cmp);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new SortTask(a, tmp, lo, mid, cmp), new SortTask(a, tmp, mid, hi, cmp));
+            merge(a, tmp, lo, mid, hi, cmp);
+        }
+    }
+
+    private static void mergeSort(int[] a, int[] tmp, int lo, int hi, IndexComparator cmp) {
+        if (hi - lo <= INSERTION_THRESHOLD) {
+            for (int i = lo + 1; i < hi; i++) {
+                int v = a[i];
+                int j = i - 1;
+                while (j >= lo && cmp.compare(a[j], v) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = v;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(a, tmp, lo, mid, cmp);
+        mergeSort(a, tmp, mid, hi, cmp);
+        merge(a, tmp, lo, mid, hi, cmp);
+    }
+
+    private static void merge(int[] a, int[] tmp, int lo, int mid, int hi, IndexComparator cmp) {
+        if (cmp.compare(a[mid - 1], a[mid]) <= 0)
+            return; // already ordered
+        System.arraycopy(a, lo, tmp, lo, hi - lo);
+        int i = lo, j = mid, k = lo;
+        while (i < mid && j < hi)
+            a[k++] = cmp.compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+        while (i < mid)
+            a[k++] = tmp[i++];
+        while (j < hi)
+            a[k++] = tmp[j++];
+    }
+}
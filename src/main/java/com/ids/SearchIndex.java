@@ -0,0 +1,257 @@
+package com.ids;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Cross-facility lookup of patient and client identifiers and names, backed by
+ * an SQLite FTS5 table with the trigram tokenizer so any 3+ character fragment
+ * matches without scanning the data tables.
+ *
+ * Each indexed row stores the data table, hfr_code and the data row's rowid.
+ * Index rows for one table/facility occupy a contiguous rowid range recorded in
+ * ids_search_ranges, so removing a facility deletes by rowid.
+ */
+public class SearchIndex implements ImportListener {
+
+    public static final int MIN_QUERY_LENGTH = 3;
+
+    /** Lower-case column names worth indexing, in the order they form the term. */
+    static final List<String> KEY_COLUMNS = List.of("patientid", "clientcode", "ctcid", "ctcnumber", "uniqueid",
+            "indexclientpatientid", "firstname", "middlename", "lastname", "surname", "familyname", "clientname");
+
+    private static final int BATCH_SIZE = 500;
+
+    /** One search result. */
+    public static class Hit {
+        public final String table;
+        public final String hfrCode;
+        public final long rowId;
+        public final String term;
+
+        Hit(String table, String hfrCode, long rowId, String term) {
+            this.table = table;
+            this.hfrCode = hfrCode;
+            this.rowId = rowId;
+            this.term = term;
+        }
+    }
+
+    @Override
+    public void ensureTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE VIRTUAL TABLE IF NOT EXISTS ids_search USING fts5("
+                    + "term, table_name UNINDEXED, hfr_code UNINDEXED, row_id UNINDEXED, tokenize = 'trigram')");
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_search_ranges (table_name TEXT, hfr_code TEXT, "
+                    + "lo INTEGER, hi INTEGER)");
+        }
+    }
+
+    @Override
+    public TableSink onTable(Connection conn, String tableName, List<String> columnNames, String hfrCode)
+            throws SQLException {
+        int[] keys = keyColumnIndexes(columnNames);
+        if (keys.length == 0)
+            return null;
+        // Rows are appended, so the n-th copied row gets rowid max + n
+        long firstDataRowId = maxRowId(conn, "\"" + tableName + "\"") + 1;
+        return new Sink(conn, tableName, hfrCode, keys, firstDataRowId);
+    }
+
+    @Override
+    public void onSourceRemoved(Connection conn, String hfrCode) throws SQLException {
+        try (PreparedStatement ranges = conn.prepareStatement("SELECT lo, hi FROM ids_search_ranges WHERE hfr_code = ?");
+                PreparedStatement del = conn.prepareStatement("DELETE FROM ids_search WHERE rowid BETWEEN ? AND ?")) {
+            ranges.setString(1, hfrCode);
+            try (ResultSet rs = ranges.executeQuery()) {
+                while (rs.next()) {
+                    del.setLong(1, rs.getLong(1));
+                    del.setLong(2, rs.getLong(2));
+                    del.addBatch();
+                }
+            }
+            del.executeBatch();
+        }
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM ids_search_ranges WHERE hfr_code = ?")) {
+            ps.setString(1, hfrCode);
+            ps.executeUpdate();
+        }
+    }
+
+    static int[] keyColumnIndexes(List<String> columnNames) {
+        List<Integer> found = new ArrayList<>();
+        for (String key : KEY_COLUMNS) {
+            for (int i = 0; i < columnNames.size(); i++) {
+                if (key.equalsIgnoreCase(columnNames.get(i)))
+                    found.add(i);
+            }
+        }
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static long maxRowId(Connection conn, String table) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(rowid), 0) FROM " + table)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    static String termOf(String[] values, int[] keys) {
+        StringBuilder term = new StringBuilder();
+        for (int k : keys) {
+            String v = values[k];
+            if (v == null || v.isBlank())
+                continue;
+            if (term.length() > 0)
+                term.append(" | ");
+            term.append(v.trim());
+        }
+        return term.toString();
+    }
+
+    /** Writes index rows for one table/facility with consecutive explicit rowids. */
+    private static class Sink implements TableSink {
+        private final Connection conn;
+        private final String table;
+        private final String hfrCode;
+        private final int[] keys;
+        private long dataRowId;
+        private long firstIndexRowId = -1;
+        private long nextIndexRowId;
+        private PreparedStatement insert;
+        private int pending;
+
+        Sink(Connection conn, String table, String hfrCode, int[] keys, long firstDataRowId) {
+            this.conn = conn;
+            this.table = table;
+            this.hfrCode = hfrCode;
+            this.keys = keys;
+            this.dataRowId = firstDataRowId;
+        }
+
+        @Override
+        public void accept(String[] values) throws SQLException {
+            long rowId = dataRowId++;
+            String term = termOf(values, keys);
+            if (term.isEmpty())
+                return;
+            if (insert == null) {
+                firstIndexRowId = maxRowId(conn, "ids_search") + 1;
+                nextIndexRowId = firstIndexRowId;
+                insert = conn.prepareStatement(
+                        "INSERT INTO ids_search (rowid, term, table_name, hfr_code, row_id) VALUES (?, ?, ?, ?, ?)");
+            }
+            insert.setLong(1, nextIndexRowId++);
+            insert.setString(2, term);
+            insert.setString(3, table);
+            insert.setString(4, hfrCode);
+            insert.setLong(5, rowId);
+            insert.addBatch();
+            if (++pending >= BATCH_SIZE) {
+                insert.executeBatch();
+                pending = 0;
+            }
+        }
+
+        @Override
+        public void finish(Connection ignored) throws SQLException {
+            if (insert == null)
+                return;
+            try {
+                insert.executeBatch();
+            } finally {
+                insert.close();
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO ids_search_ranges (table_name, hfr_code, lo, hi) VALUES (?, ?, ?, ?)")) {
+                ps.setString(1, table);
+                ps.setString(2, hfrCode);
+                ps.setLong(3, firstIndexRowId);
+                ps.setLong(4, nextIndexRowId - 1);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    /** Finds rows whose identifiers or names contain {@code text} (at least 3 characters). */
+    public static List<Hit> search(Connection conn, String text, int limit) throws SQLException {
+        String q = text == null ? "" : text.trim();
+        if (q.length() < MIN_QUERY_LENGTH)
+            throw new IllegalArgumentException("Type at least " + MIN_QUERY_LENGTH + " characters to search.");
+
+        List<Hit> hits = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT table_name, hfr_code, row_id, term FROM ids_search "
+                + "WHERE ids_search MATCH ? ORDER BY rank LIMIT ?")) {
+            ps.setString(1, "\"" + q.replace("\"", "\"\"") + "\"");
+            ps.setInt(2, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next())
+                    hits.add(new Hit(rs.getString(1), rs.getString(2), rs.getLong(3), rs.getString(4)));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Indexes table/facility pairs that have data but no index rows yet, e.g. in a
+     * database imported before the index existed. One scan per table that needs it.
+     */
+    public static int backfillMissing(Connection conn) throws SQLException {
+        Map<String, Set<String>> indexed = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT DISTINCT table_name, hfr_code FROM ids_search_ranges")) {
+            while (rs.next())
+                indexed.computeIfAbsent(rs.getString(1).toLowerCase(Locale.ROOT), k -> new HashSet<>())
+                        .add(rs.getString(2));
+        }
+        Map<String, Set<String>> present = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT table_name, hfr_code FROM ids_table_stats WHERE row_count > 0")) {
+            while (rs.next())
+                present.computeIfAbsent(rs.getString(1), k -> new HashSet<>()).add(rs.getString(2));
+        }
+
+        int tables = 0;
+        for (Map.Entry<String, Set<String>> e : present.entrySet()) {
+            String table = e.getKey();
+            Set<String> missing = new HashSet<>(e.getValue());
+            missing.removeAll(indexed.getOrDefault(table.toLowerCase(Locale.ROOT), Set.of()));
+            List<String> columns = TableStatsCatalog.dataColumns(conn, table);
+            if (missing.isEmpty() || columns == null)
+                continue;
+            int[] keys = keyColumnIndexes(columns);
+            if (keys.length == 0)
+                continue;
+
+            StringBuilder sql = new StringBuilder("SELECT rowid, hfr_code");
+            for (int k : keys)
+                sql.append(", \"").append(columns.get(k)).append('"');
+            sql.append(" FROM \"").append(table).append("\" ORDER BY hfr_code, rowid");
+
+            // Rows arrive grouped by facility. Each sink takes its first index rowid from MAX(rowid), so the
+            // previous facility's batch must be written before the next sink starts
+            Sink sink = null;
+            String[] values = new String[columns.size()];
+            try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql.toString())) {
+                while (rs.next()) {
+                    String hfr = rs.getString(2);
+                    if (!missing.contains(hfr))
+                        continue;
+                    if (sink == null || !sink.hfrCode.equals(hfr)) {
+                        if (sink != null)
+                            sink.finish(conn);
+                        sink = new Sink(conn, table, hfr, keys, 0);
+                    }
+                    for (int i = 0; i < keys.length; i++)
+                        values[keys[i]] = rs.getString(i + 3);
+                    sink.dataRowId = rs.getLong(1);
+                    sink.accept(values);
+                }
+            }
+            if (sink != null)
+                sink.finish(conn);
+            tables++;
+        }
+        return tables;
+    }
+}
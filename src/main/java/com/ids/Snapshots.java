@@ -0,0 +1,150 @@
+package com.ids;
+
+import org.sqlite.SQLiteConnection;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.DoubleConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Frozen copies of converted.db for a reporting period, taken with SQLite's
+ * online backup API while the app keeps running.
+ *
+ * The copy reads through its own read-only connection inside one read
+ * transaction, so under WAL it sees a single committed state while imports
+ * and queries carry on; it never restarts and never locks writers out. Pages
+ * are copied a slice at a time with a short pause between slices. Each
+ * snapshot is {@code snapshots/<label>-v<N>.db} in the app data directory,
+ * switched to a rollback journal and marked read-only on disk once complete.
+ */
+public final class Snapshots {
+
+    static final String DIR_NAME = "snapshots";
+    static final int PAGES_PER_STEP = 256;
+    private static final int PAUSE_MS = 5;
+    private static final Pattern FILE = Pattern.compile("(.+)-v(\\d+)\\.db");
+
+    private Snapshots() {
+    }
+
+    /** One snapshot file. */
+    public static class Info {
+        public final String label;
+        public final int version;
+        public final Path file;
+
+        Info(String label, int version, Path file) {
+            this.label = label;
+            this.version = version;
+            this.file = file;
+        }
+
+        @Override
+        public String toString() {
+            return label + " v" + version;
+        }
+    }
+
+    /** {@code label} reduced to characters that are safe in a file name. */
+    static String safeLabel(String label) {
+        String s = label == null ? "" : label.trim().replaceAll("[^A-Za-z0-9._-]", "_");
+        return s.isEmpty() ? "snapshot" : s;
+    }
+
+    /** Snapshots in the app data directory, by label, then version. */
+    public static List<Info> list(Path appDataDir) throws IOException {
+        List<Info> out = new ArrayList<>();
+        Path dir = appDataDir.resolve(DIR_NAME);
+        if (!Files.isDirectory(dir))
+            return out;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.db")) {
+            for (Path p : files) {
+                Matcher m = FILE.matcher(p.getFileName().toString());
+                if (m.matches())
+                    out.add(new Info(m.group(1), Integer.parseInt(m.group(2)), p));
+            }
+        }
+        out.sort(Comparator.comparing((Info i) -> i.label).thenComparingInt(i -> i.version));
+        return out;
+    }
+
+    /**
+     * Copies {@code db} to the next version of {@code label}. Safe to call
+     * while other connections read and write {@code db}; {@code progress}
+     * receives the fraction copied after every step.
+     */
+    public static Info take(Path db, StorageProfile profile, Path appDataDir, String label, DoubleConsumer progress)
+            throws SQLException, IOException {
+        String name = safeLabel(label);
+        int version = 1;
+        for (Info existing : list(appDataDir)) {
+            if (existing.label.equals(name))
+                version = Math.max(version, existing.version + 1);
+        }
+        Path dir = Files.createDirectories(appDataDir.resolve(DIR_NAME));
+        Path target = dir.resolve(name + "-v" + version + ".db");
+        Path partial = dir.resolve(target.getFileName() + ".part");
+        Files.deleteIfExists(partial);
+
+        try (Connection source = SqliteConnections.openReadOnly(db, profile)) {
+            // Pin one snapshot of the WAL for the whole copy
+            source.setAutoCommit(false);
+            try (Statement stmt = source.createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master")) {
+                rs.next();
+            }
+            int rc = ((SQLiteConnection) source).getDatabase().backup("main", partial.toString(),
+                    (remaining, total) -> {
+                        if (progress != null && total > 0)
+                            progress.accept((double) (total - remaining) / total);
+                        try {
+                            Thread.sleep(PAUSE_MS); // leave the disk to interactive queries
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }, 100, 50, PAGES_PER_STEP);
+            source.commit();
+            if (rc != 0)
+                throw new SQLException("Snapshot copy failed (SQLite code " + rc + ")");
+
+            seal(partial, name, version, db);
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (SQLException | IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        target.toFile().setReadOnly();
+        return new Info(name, version, target);
+    }
+
+    /** Records what the copy is and leaves it a self-contained, single-file database. */
+    private static void seal(Path file, String label, int version, Path source) throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+                Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = DELETE");
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_snapshot_info (label TEXT, version INTEGER, "
+                    + "source_path TEXT, created_at TEXT)");
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO ids_snapshot_info VALUES (?, ?, ?, datetime('now'))")) {
+                ps.setString(1, label);
+                ps.setInt(2, version);
+                ps.setString(3, source.toAbsolutePath().toString());
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    /** A read-only connection to {@code snapshot}, with the app's SQL functions. */
+    public static Connection open(Info snapshot, StorageProfile profile) throws SQLException {
+        return SqliteConnections.openReadOnly(snapshot.file, profile);
+    }
+}
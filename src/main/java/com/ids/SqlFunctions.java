@@ -0,0 +1,106 @@
+package com.ids;
+
+import org.sqlite.Function;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Date and age functions for SQL, registered on every converted.db connection
+ * by {@link SqliteConnections}. Dates are parsed with {@link DateValues} (the
+ * formats the MDB import produces) and cached, so a column of repeated birth
+ * dates is parsed once instead of once per strftime() call per row.
+ *
+ * <ul>
+ * <li>{@code epoch_day(text)}: days since 1970-01-01, or NULL</li>
+ * <li>{@code age_at(dob, ref)}: whole years on {@code ref}, or NULL</li>
+ * <li>{@code age_band(dob, ref [, scheme])}: {@link AgeBands} label</li>
+ * </ul>
+ * {@code ref} may be a date or {@code 'now'} (today, local time).
+ */
+public final class SqlFunctions {
+
+    static final int CACHE_LIMIT = 65_536;
+
+    private static final Long NOT_A_DAY = Long.MIN_VALUE;
+    private static final ConcurrentHashMap<String, Long> EPOCH_DAYS = new ConcurrentHashMap<>();
+
+    private SqlFunctions() {
+    }
+
+    public static void register(Connection conn) throws SQLException {
+        Function.create(conn, "epoch_day", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                if (args() != 1)
+                    throw new SQLException("epoch_day(text) takes one argument");
+                long day = epochDay(value_text(0));
+                if (day == NOT_A_DAY)
+                    result();
+                else
+                    result(day);
+            }
+        }, 1, Function.FLAG_DETERMINISTIC);
+
+        Function.create(conn, "age_at", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                if (args() != 2)
+                    throw new SQLException("age_at(dob, ref) takes two arguments");
+                Integer age = ageAt(value_text(0), value_text(1));
+                if (age == null)
+                    result();
+                else
+                    result(age);
+            }
+        }, 2, 0);
+
+        Function.create(conn, "age_band", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                if (args() != 2 && args() != 3)
+                    throw new SQLException("age_band(dob, ref [, scheme]) takes two or three arguments");
+                result(ageBand(value_text(0), value_text(1), args() == 3 ? value_text(2) : null));
+            }
+        }, -1, 0);
+    }
+
+    /** Days since the epoch, or {@link Long#MIN_VALUE} when {@code text} is not a date. */
+    static long epochDay(String text) {
+        if (text == null)
+            return NOT_A_DAY;
+        Long cached = EPOCH_DAYS.get(text);
+        if (cached == null) {
+            LocalDate d = DateValues.parseDate(text);
+            cached = d == null ? NOT_A_DAY : d.toEpochDay();
+            if (EPOCH_DAYS.size() >= CACHE_LIMIT)
+                EPOCH_DAYS.clear(); // crude bound; a batch of queries refills it quickly
+            EPOCH_DAYS.put(text, cached);
+        }
+        return cached;
+    }
+
+    /** Age in whole (birthday-aware) years on {@code ref}, or null if either date is unusable. */
+    static Integer ageAt(String dob, String ref) {
+        long birth = epochDay(dob);
+        long on = referenceDay(ref);
+        if (birth == NOT_A_DAY || on == NOT_A_DAY)
+            return null;
+        return Period.between(LocalDate.ofEpochDay(birth), LocalDate.ofEpochDay(on)).getYears();
+    }
+
+    static String ageBand(String dob, String ref, String scheme) {
+        Integer age = ageAt(dob, ref);
+        AgeBands bands = AgeBands.byName(scheme);
+        return age == null ? AgeBands.UNKNOWN_LABEL : bands.label(bands.indexOf(age));
+    }
+
+    private static long referenceDay(String ref) {
+        if (ref != null && "now".equalsIgnoreCase(ref.trim()))
+            return LocalDate.now().toEpochDay();
+        return epochDay(ref);
+    }
+}
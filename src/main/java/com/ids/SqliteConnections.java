@@ -0,0 +1,69 @@
+package com.ids;
+
+import org.sqlite.SQLiteConfig;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/** The one place converted.db connections are opened and configured. */
+public final class SqliteConnections {
+
+    private SqliteConnections() {
+    }
+
+    /**
+     * Opens {@code db} with WAL and synchronous=NORMAL (each committed import is
+     * durable, an interrupted one rolls back on the next open) and the cache
+     * settings of {@code profile}. A new file also gets the profile's page size
+     * and incremental auto-vacuum; both must be set before the first table.
+     * Every connection also gets the {@link SqlFunctions}.
+     */
+    public static Connection open(Path db, StorageProfile profile) throws SQLException {
+        boolean created = !Files.exists(db);
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db);
+        try (Statement pragma = conn.createStatement()) {
+            if (created) {
+                pragma.execute("PRAGMA page_size = " + profile.pageSize);
+                pragma.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            }
+            pragma.execute("PRAGMA journal_mode = WAL");
+            pragma.execute("PRAGMA synchronous = NORMAL");
+            pragma.execute("PRAGMA cache_size = -" + profile.cacheSizeKb);
+            if (profile.mmapSize > 0)
+                pragma.execute("PRAGMA mmap_size = " + profile.mmapSize);
+            SqlFunctions.register(conn);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    /**
+     * Opens {@code db} read-only for readers that run beside the main connection
+     * (the local API). WAL lets them read the last committed state while an
+     * import writes; the file must already exist.
+     */
+    public static Connection openReadOnly(Path db, StorageProfile profile) throws SQLException {
+        if (!Files.exists(db))
+            throw new SQLException("Database not found: " + db);
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        Connection conn = config.createConnection("jdbc:sqlite:" + db);
+        try (Statement pragma = conn.createStatement()) {
+            pragma.execute("PRAGMA query_only = 1");
+            pragma.execute("PRAGMA cache_size = -" + profile.cacheSizeKb);
+            if (profile.mmapSize > 0)
+                pragma.execute("PRAGMA mmap_size = " + profile.mmapSize);
+            SqlFunctions.register(conn);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+}
@@ -0,0 +1,85 @@
+package com.ids;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * SQLite storage and maintenance settings, read from {@code storage.properties}
+ * in the app data dir. Missing keys keep their defaults, e.g.
+ *
+ * <pre>
+ * page_size=8192
+ * cache_size_kb=131072
+ * </pre>
+ */
+public class StorageProfile {
+
+    static final String FILE_NAME = "storage.properties";
+
+    /** Only applies to new databases, or after a full VACUUM. */
+    public final int pageSize;
+    /** Page cache per connection, in KiB. */
+    public final int cacheSizeKb;
+    public final long mmapSize;
+    /** Rows sampled per index by ANALYZE; bounds how long a stats refresh takes. */
+    public final int analysisLimit;
+    /** Free pages returned to the OS per maintenance slice. */
+    public final int vacuumPagesPerSlice;
+    /** Minutes without user input before idle maintenance runs. */
+    public final int idleMinutes;
+
+    StorageProfile(int pageSize, int cacheSizeKb, long mmapSize, int analysisLimit, int vacuumPagesPerSlice,
+            int idleMinutes) {
+        this.pageSize = pageSize;
+        this.cacheSizeKb = cacheSizeKb;
+        this.mmapSize = mmapSize;
+        this.analysisLimit = analysisLimit;
+        this.vacuumPagesPerSlice = vacuumPagesPerSlice;
+        this.idleMinutes = idleMinutes;
+    }
+
+    public static StorageProfile defaults() {
+        return new StorageProfile(4096, 65_536, 0, 1000, 2048, 3);
+    }
+
+    public static StorageProfile load(Path appDataDir) {
+        StorageProfile d = defaults();
+        Path file = appDataDir == null ? null : appDataDir.resolve(FILE_NAME);
+        if (file == null || !Files.isRegularFile(file))
+            return d;
+
+        Properties p = new Properties();
+        try (Reader in = Files.newBufferedReader(file)) {
+            p.load(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return d;
+        }
+        return new StorageProfile(
+                intOf(p, "page_size", d.pageSize),
+                intOf(p, "cache_size_kb", d.cacheSizeKb),
+                longOf(p, "mmap_size", d.mmapSize),
+                intOf(p, "analysis_limit", d.analysisLimit),
+                intOf(p, "vacuum_pages_per_slice", d.vacuumPagesPerSlice),
+                intOf(p, "idle_minutes", d.idleMinutes));
+    }
+
+    private static int intOf(Properties p, String key, int fallback) {
+        return (int) longOf(p, key, fallback);
+    }
+
+    private static long longOf(Properties p, String key, long fallback) {
+        String v = p.getProperty(key);
+        if (v == null || v.isBlank())
+            return fallback;
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring " + FILE_NAME + " " + key + "=" + v);
+            return fallback;
+        }
+    }
+}
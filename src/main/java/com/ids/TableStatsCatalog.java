@@ -0,0 +1,315 @@
+package com.ids;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Row counts per table and facility, column null counts and approximate distinct
+ * counts, kept in converted.db and maintained as sources are imported or removed.
+ * Reading the catalog only touches these small ids_ tables, never the data.
+ *
+ * Distinct counts are HyperLogLog sketches merged across facilities. A removal
+ * cannot be subtracted from a sketch, so the affected sketches are marked stale
+ * until {@link #rebuildStaleSketches} runs.
+ */
+public class TableStatsCatalog implements ImportListener {
+
+    /** Statistics for one column across all facilities. */
+    public static class ColumnStats {
+        public final String column;
+        public final double nullFraction;
+        public final long approxDistinct;
+        public final boolean stale;
+
+        ColumnStats(String column, double nullFraction, long approxDistinct, boolean stale) {
+            this.column = column;
+            this.nullFraction = nullFraction;
+            this.approxDistinct = approxDistinct;
+            this.stale = stale;
+        }
+    }
+
+    /** Statistics for one table. */
+    public static class TableStats {
+        public final String table;
+        public long rows;
+        public final Map<String, Long> rowsByFacility = new TreeMap<>();
+        public final List<ColumnStats> columns = new ArrayList<>();
+
+        TableStats(String table) {
+            this.table = table;
+        }
+    }
+
+    @Override
+    public void ensureTables(Connection conn) throws SQLException {
+        ensureCatalogTables(conn);
+    }
+
+    static void ensureCatalogTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_table_stats (table_name TEXT, hfr_code TEXT, "
+                    + "row_count INTEGER, PRIMARY KEY (table_name, hfr_code))");
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_column_stats (table_name TEXT, hfr_code TEXT, "
+                    + "column_name TEXT, null_count INTEGER, PRIMARY KEY (table_name, hfr_code, column_name))");
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_column_sketches (table_name TEXT, column_name TEXT, "
+                    + "registers BLOB, stale INTEGER DEFAULT 0, PRIMARY KEY (table_name, column_name))");
+        }
+    }
+
+    @Override
+    public TableSink onTable(Connection conn, String tableName, List<String> columnNames, String hfrCode) {
+        return new Collector(tableName, columnNames, hfrCode);
+    }
+
+    @Override
+    public void onSourceRemoved(Connection conn, String hfrCode) throws SQLException {
+        try (PreparedStatement stale = conn.prepareStatement("UPDATE ids_column_sketches SET stale = 1 "
+                + "WHERE table_name IN (SELECT table_name FROM ids_table_stats WHERE hfr_code = ? AND row_count > 0)");
+                PreparedStatement delTables = conn.prepareStatement("DELETE FROM ids_table_stats WHERE hfr_code = ?");
+                PreparedStatement delColumns = conn
+                        .prepareStatement("DELETE FROM ids_column_stats WHERE hfr_code = ?")) {
+            stale.setString(1, hfrCode);
+            stale.executeUpdate();
+            delTables.setString(1, hfrCode);
+            delTables.executeUpdate();
+            delColumns.setString(1, hfrCode);
+            delColumns.executeUpdate();
+        }
+    }
+
+    /** Accumulates one table/facility worth of statistics during a single pass. */
+    private static class Collector implements TableSink {
+        private final String table;
+        private final List<String> columns;
+        private final String hfrCode;
+        private final long[] nulls;
+        private final HyperLogLog[] sketches;
+        private long rows;
+
+        Collector(String table, List<String> columns, String hfrCode) {
+            this.table = table;
+            this.columns = columns;
+            this.hfrCode = hfrCode;
+            this.nulls = new long[columns.size()];
+            this.sketches = new HyperLogLog[columns.size()];
+            for (int i = 0; i < sketches.length; i++)
+                sketches[i] = new HyperLogLog();
+        }
+
+        @Override
+        public void accept(String[] values) {
+            rows++;
+            for (int i = 0; i < nulls.length; i++) {
+                String v = values[i];
+                if (v == null || v.isEmpty())
+                    nulls[i]++;
+                else
+                    sketches[i].add(v);
+            }
+        }
+
+        @Override
+        public void finish(Connection conn) throws SQLException {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO ids_table_stats (table_name, hfr_code, row_count) VALUES (?, ?, ?) "
+                            + "ON CONFLICT (table_name, hfr_code) DO UPDATE SET row_count = row_count + excluded.row_count")) {
+                ps.setString(1, table);
+                ps.setString(2, hfrCode);
+                ps.setLong(3, rows);
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO ids_column_stats (table_name, hfr_code, column_name, null_count) VALUES (?, ?, ?, ?) "
+                            + "ON CONFLICT (table_name, hfr_code, column_name) "
+                            + "DO UPDATE SET null_count = null_count + excluded.null_count")) {
+                for (int i = 0; i < nulls.length; i++) {
+                    ps.setString(1, table);
+                    ps.setString(2, hfrCode);
+                    ps.setString(3, columns.get(i));
+                    ps.setLong(4, nulls[i]);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            for (int i = 0; i < sketches.length; i++)
+                mergeSketch(conn, table, columns.get(i), sketches[i]);
+        }
+    }
+
+    private static void mergeSketch(Connection conn, String table, String column, HyperLogLog sketch)
+            throws SQLException {
+        try (PreparedStatement read = conn.prepareStatement(
+                "SELECT registers FROM ids_column_sketches WHERE table_name = ? AND column_name = ?")) {
+            read.setString(1, table);
+            read.setString(2, column);
+            try (ResultSet rs = read.executeQuery()) {
+                if (rs.next() && rs.getBytes(1) != null)
+                    sketch.merge(HyperLogLog.fromBytes(rs.getBytes(1)));
+            }
+        }
+        try (PreparedStatement write = conn.prepareStatement(
+                "INSERT INTO ids_column_sketches (table_name, column_name, registers, stale) VALUES (?, ?, ?, 0) "
+                        + "ON CONFLICT (table_name, column_name) DO UPDATE SET registers = excluded.registers")) {
+            write.setString(1, table);
+            write.setString(2, column);
+            write.setBytes(3, sketch.toBytes());
+            write.executeUpdate();
+        }
+    }
+
+    /** Reads the whole catalog; cheap, it only touches the ids_ statistics tables. */
+    public static Map<String, TableStats> load(Connection conn) throws SQLException {
+        ensureCatalogTables(conn);
+        Map<String, TableStats> stats = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT table_name, hfr_code, row_count FROM ids_table_stats")) {
+                while (rs.next()) {
+                    TableStats t = stats.computeIfAbsent(rs.getString(1), TableStats::new);
+                    t.rows += rs.getLong(3);
+                    t.rowsByFacility.merge(String.valueOf(rs.getString(2)), rs.getLong(3), Long::sum);
+                }
+            }
+
+            Map<String, Map<String, long[]>> nulls = new HashMap<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT table_name, column_name, SUM(null_count) "
+                    + "FROM ids_column_stats GROUP BY table_name, column_name")) {
+                while (rs.next())
+                    nulls.computeIfAbsent(rs.getString(1).toLowerCase(Locale.ROOT), k -> new LinkedHashMap<>())
+                            .put(rs.getString(2), new long[] { rs.getLong(3) });
+            }
+
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT table_name, column_name, registers, stale FROM ids_column_sketches ORDER BY rowid")) {
+                while (rs.next()) {
+                    TableStats t = stats.get(rs.getString(1));
+                    if (t == null)
+                        continue;
+                    String column = rs.getString(2);
+                    byte[] registers = rs.getBytes(3);
+                    long distinct = registers == null ? 0 : HyperLogLog.fromBytes(registers).estimate();
+                    long[] n = nulls.getOrDefault(t.table.toLowerCase(Locale.ROOT), Map.of()).get(column);
+                    double nullFraction = t.rows == 0 || n == null ? 0 : (double) n[0] / t.rows;
+                    t.columns.add(new ColumnStats(column, nullFraction, distinct, rs.getInt(4) != 0));
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Builds statistics for data tables that have none yet (databases imported
+     * before the catalog existed). Scans each such table once.
+     */
+    public static int backfillMissing(Connection conn) throws SQLException {
+        ensureCatalogTables(conn);
+        Set<String> known = new HashSet<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT DISTINCT lower(table_name) FROM ids_table_stats")) {
+            while (rs.next())
+                known.add(rs.getString(1));
+        }
+
+        int built = 0;
+        for (String table : dataTables(conn)) {
+            if (known.contains(table.toLowerCase(Locale.ROOT)))
+                continue;
+            List<String> columns = dataColumns(conn, table);
+            if (columns == null)
+                continue;
+            Map<String, Collector> byFacility = new HashMap<>();
+            scan(conn, table, columns, (hfr, values) -> byFacility
+                    .computeIfAbsent(hfr, h -> new Collector(table, columns, h)).accept(values));
+            for (Collector c : byFacility.values())
+                c.finish(conn);
+            built++;
+        }
+        return built;
+    }
+
+    /** Recomputes sketches marked stale by a removal; one scan per affected table. */
+    public static int rebuildStaleSketches(Connection conn) throws SQLException {
+        ensureCatalogTables(conn);
+        Set<String> tables = new TreeSet<>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT DISTINCT table_name FROM ids_column_sketches WHERE stale = 1")) {
+            while (rs.next())
+                tables.add(rs.getString(1));
+        }
+
+        Set<String> existing = new HashSet<>();
+        for (String t : dataTables(conn))
+            existing.add(t.toLowerCase(Locale.ROOT));
+
+        for (String table : tables) {
+            try (PreparedStatement del = conn.prepareStatement("DELETE FROM ids_column_sketches WHERE table_name = ?")) {
+                del.setString(1, table);
+                del.executeUpdate();
+            }
+            List<String> columns = existing.contains(table.toLowerCase(Locale.ROOT)) ? dataColumns(conn, table) : null;
+            if (columns == null)
+                continue;
+            HyperLogLog[] sketches = new HyperLogLog[columns.size()];
+            for (int i = 0; i < sketches.length; i++)
+                sketches[i] = new HyperLogLog();
+            scan(conn, table, columns, (hfr, values) -> {
+                for (int i = 0; i < sketches.length; i++) {
+                    if (values[i] != null && !values[i].isEmpty())
+                        sketches[i].add(values[i]);
+                }
+            });
+            for (int i = 0; i < sketches.length; i++)
+                mergeSketch(conn, table, columns.get(i), sketches[i]);
+        }
+        return tables.size();
+    }
+
+    private interface RowConsumer {
+        void accept(String hfrCode, String[] values);
+    }
+
+    private static void scan(Connection conn, String table, List<String> columns, RowConsumer consumer)
+            throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT hfr_code");
+        for (String c : columns)
+            sql.append(", \"").append(c).append('"');
+        sql.append(" FROM \"").append(table).append('"');
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql.toString())) {
+            while (rs.next()) {
+                String[] values = new String[columns.size()];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = rs.getString(i + 2);
+                consumer.accept(rs.getString(1), values);
+            }
+        }
+    }
+
+    static List<String> dataTables(Connection conn) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (ResultSet rs = conn.getMetaData().getTables(null, null, "%", new String[] { "TABLE" })) {
+            while (rs.next()) {
+                String name = rs.getString("TABLE_NAME");
+                if (name != null && !MdbRecordManager.isInternalTable(name))
+                    tables.add(name);
+            }
+        }
+        return tables;
+    }
+
+    /** Imported columns of a data table, or null when it has no hfr_code column. */
+    static List<String> dataColumns(Connection conn, String table) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        boolean hasFacility = false;
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA table_info(\"" + table + "\")")) {
+            while (rs.next()) {
+                String name = rs.getString("name");
+                if ("hfr_code".equalsIgnoreCase(name))
+                    hasFacility = true;
+                else if (!"source_mdb".equalsIgnoreCase(name))
+                    columns.add(name);
+            }
+        }
+        return hasFacility ? columns : null;
+    }
+}
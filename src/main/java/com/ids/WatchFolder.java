@@ -0,0 +1,321 @@
+package com.ids;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Imports MDB files dropped into (or replaced in) a watched folder. File
+ * events only mark a file as pending; a low-priority thread imports it once it
+ * has stopped changing, so a copy still in progress is never read. A file
+ * whose size, timestamp or checksum matches what was imported last time is
+ * skipped; a changed file replaces its facility in one transaction.
+ */
+public class WatchFolder implements AutoCloseable {
+
+    static final String FILE_NAME = "watch.properties";
+
+    /** A file is imported once it has been quiet this long. */
+    static final long QUIET_MS = 10_000;
+    private static final long POLL_MS = 2_000;
+
+    /** What was imported, reported after each file. */
+    public static class Change {
+        public final File file;
+        public final MdbRecordManager.ImportResult result;
+
+        Change(File file, MdbRecordManager.ImportResult result) {
+            this.file = file;
+            this.result = result;
+        }
+    }
+
+    private final Path folder;
+    private final Supplier<Connection> connection;
+    private final BooleanSupplier busy;
+    private final Consumer<Change> onImported;
+    private volatile ImportProfile profile;
+    private final long quietMs;
+
+    /** Pending files and the time of their last event or observed change. */
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    private WatchService watcher;
+    private Thread eventThread;
+    private Thread importThread;
+    private volatile boolean running;
+
+    private static class Pending {
+        long lastChange;
+        long size = -1;
+        long modified = -1;
+
+        Pending(long lastChange) {
+            this.lastChange = lastChange;
+        }
+    }
+
+    /**
+     * @param connection the current writable connection (may be null while none is open)
+     * @param busy       true while a manual import runs; the watcher waits for it
+     */
+    public WatchFolder(Path folder, Supplier<Connection> connection, BooleanSupplier busy, ImportProfile profile,
+            Consumer<Change> onImported) {
+        this(folder, connection, busy, profile, onImported, QUIET_MS);
+    }
+
+    WatchFolder(Path folder, Supplier<Connection> connection, BooleanSupplier busy, ImportProfile profile,
+            Consumer<Change> onImported, long quietMs) {
+        this.folder = folder;
+        this.connection = connection;
+        this.busy = busy;
+        this.profile = profile;
+        this.onImported = onImported;
+        this.quietMs = quietMs;
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    public void setProfile(ImportProfile profile) {
+        this.profile = profile;
+    }
+
+    /** Registers the folder, queues the MDBs already in it and starts both threads. */
+    public void start() throws IOException {
+        watcher = folder.getFileSystem().newWatchService();
+        folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        running = true;
+        rescan();
+
+        eventThread = new Thread(this::watchEvents, "watch-folder-events");
+        eventThread.setDaemon(true);
+        eventThread.start();
+
+        // Imports compete with the UI for CPU and disk; let them lose
+        importThread = new Thread(this::importLoop, "watch-folder-import");
+        importThread.setDaemon(true);
+        importThread.setPriority(Thread.MIN_PRIORITY);
+        importThread.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (importThread != null)
+            importThread.interrupt();
+        try {
+            if (watcher != null)
+                watcher.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static boolean isMdb(Path p) {
+        return p.getFileName() != null && p.getFileName().toString().toLowerCase().endsWith(".mdb");
+    }
+
+    /** Queues every MDB currently in the folder. */
+    void rescan() throws IOException {
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path p : files) {
+                if (isMdb(p) && Files.isRegularFile(p))
+                    pending.putIfAbsent(p, new Pending(now));
+            }
+        }
+    }
+
+    private void watchEvents() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    try {
+                        rescan(); // events were lost; the folder listing is the truth
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
+                Path p = folder.resolve((Path) event.context());
+                if (isMdb(p))
+                    pending.computeIfAbsent(p, x -> new Pending(now)).lastChange = now;
+            }
+            if (!key.reset())
+                return; // folder deleted or unmounted
+        }
+    }
+
+    private void importLoop() {
+        while (running) {
+            try {
+                Thread.sleep(POLL_MS);
+                pollOnce();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Imports every pending file that has settled. Package-private for tests. */
+    void pollOnce() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Path, Pending> e : pending.entrySet()) {
+            if (Thread.currentThread().isInterrupted() || busy.getAsBoolean() || connection.get() == null)
+                return;
+            Path p = e.getKey();
+            Pending state = e.getValue();
+            if (!Files.isRegularFile(p)) {
+                pending.remove(p);
+                continue;
+            }
+            long size, modified;
+            try {
+                size = Files.size(p);
+                modified = Files.getLastModifiedTime(p).toMillis();
+            } catch (IOException ex) {
+                continue; // still being moved in; try again next poll
+            }
+            // Still growing or touched since the last poll: restart the quiet period
+            if (size != state.size || modified != state.modified) {
+                state.size = size;
+                state.modified = modified;
+                state.lastChange = now;
+            }
+            if (now - state.lastChange < quietMs)
+                continue;
+            pending.remove(p, state);
+            process(p, size, modified);
+        }
+    }
+
+    private void process(Path p, long size, long modified) {
+        Connection conn = connection.get();
+        File file = p.toFile();
+        try {
+            String path = file.getAbsolutePath();
+            long checksum;
+            synchronized (conn) {
+                ensureTable(conn);
+                long[] seen = lastSeen(conn, path);
+                if (seen != null && seen[0] == size && seen[1] == modified)
+                    return; // unchanged since the last import
+            }
+            checksum = checksum(p);
+            synchronized (conn) {
+                long[] seen = lastSeen(conn, path);
+                if (seen != null && seen[2] == checksum) {
+                    record(conn, path, size, modified, checksum, null); // touched, same content
+                    return;
+                }
+                ImportJournal.enqueue(conn, List.of(file));
+            }
+            MdbRecordManager.ImportResult result = MdbRecordManager.importMdbFile(conn, file, profile, true);
+            if (ImportJournal.DONE.equals(result.status)) {
+                synchronized (conn) {
+                    record(conn, path, size, modified, checksum, result.hfrCode);
+                }
+            }
+            onImported.accept(new Change(file, result));
+        } catch (IOException | SQLException ex) {
+            onImported.accept(new Change(file,
+                    new MdbRecordManager.ImportResult(ImportJournal.FAILED, null, ex.getMessage())));
+        }
+    }
+
+    static void ensureTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS ids_watch_files (path TEXT PRIMARY KEY, size INTEGER, "
+                    + "modified INTEGER, checksum INTEGER, hfr_code TEXT, imported_at TEXT)");
+        }
+    }
+
+    /** {size, modified, checksum} of the last import of {@code path}, or null. */
+    private static long[] lastSeen(Connection conn, String path) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT size, modified, checksum FROM ids_watch_files WHERE path = ?")) {
+            ps.setString(1, path);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new long[] { rs.getLong(1), rs.getLong(2), rs.getLong(3) } : null;
+            }
+        }
+    }
+
+    private static void record(Connection conn, String path, long size, long modified, long checksum,
+            String hfrCode) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO ids_watch_files "
+                + "(path, size, modified, checksum, hfr_code, imported_at) VALUES (?, ?, ?, ?, ?, datetime('now')) "
+                + "ON CONFLICT(path) DO UPDATE SET size = excluded.size, modified = excluded.modified, "
+                + "checksum = excluded.checksum, hfr_code = COALESCE(excluded.hfr_code, hfr_code)")) {
+            ps.setString(1, path);
+            ps.setLong(2, size);
+            ps.setLong(3, modified);
+            ps.setLong(4, checksum);
+            ps.setString(5, hfrCode);
+            ps.executeUpdate();
+        }
+    }
+
+    static long checksum(Path p) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(p)) {
+            int n;
+            while ((n = in.read(buf)) > 0)
+                crc.update(buf, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /** The folder saved in {@code watch.properties}, or null. */
+    public static Path savedFolder(Path appDataDir) {
+        Path file = appDataDir.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file))
+            return null;
+        Properties p = new Properties();
+        try (Reader in = Files.newBufferedReader(file)) {
+            p.load(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        String folder = p.getProperty("folder");
+        return folder == null || folder.isBlank() ? null : Paths.get(folder);
+    }
+
+    /** Saves {@code folder} for the next start; null forgets it. */
+    public static void saveFolder(Path appDataDir, Path folder) throws IOException {
+        Path file = appDataDir.resolve(FILE_NAME);
+        if (folder == null) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Properties p = new Properties();
+        p.setProperty("folder", folder.toAbsolutePath().toString());
+        try (Writer out = Files.newBufferedWriter(file)) {
+            p.store(out, "Watched MDB folder");
+        }
+    }
+}
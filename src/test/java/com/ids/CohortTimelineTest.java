@@ -0,0 +1,51 @@
+package com.ids;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.YearMonth;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CohortTimelineTest {
+
+    private static final List<CohortTimeline.Period> Q1 = CohortTimeline.Period.months(YearMonth.of(2024, 3), 3);
+
+    private static CohortTimeline sample() {
+        CohortTimeline.Builder b = new CohortTimeline.Builder();
+        // Started in January, then monthly refills; rows arrive unsorted
+        b.visit("HF1", "A", "2024-03-05", "3");
+        b.visit("HF1", "A", "2024-01-10", "2");
+        b.visit("HF1", "A", "2024-02-07", "3");
+        // Same PatientID at another facility is another patient
+        b.visit("HF2", "A", "2024-02-20", "2");
+        // Out of care in December, back in March after a long gap
+        b.visit("HF2", "B", "2023-11-01", "3");
+        b.status("HF2", "B", "2023-12-15", "Lost to follow-up");
+        b.visit("HF2", "B", "2024-03-12", "3");
+        // Bad dates are skipped
+        b.visit("HF2", "C", "not a date", "3");
+        return b.build();
+    }
+
+    @Test
+    public void countsPerMonthAndFacility() {
+        CohortTimeline timeline = sample();
+        assertEquals(3, Q1.size());
+        assertEquals("2024-01", Q1.get(0).label);
+
+        CohortTimeline.Matrix curr = timeline.evaluate(CohortTimeline.Indicator.TX_CURR, Q1);
+        assertEquals(List.of("HF1", "HF2"), curr.facilities);
+        assertArrayEquals(new long[] { 0, 0 }, curr.counts[0]);
+        assertArrayEquals(new long[] { 1, 0 }, curr.counts[1]);
+        assertArrayEquals(new long[] { 1, 1 }, curr.counts[2]);
+
+        CohortTimeline.Matrix news = timeline.evaluate(CohortTimeline.Indicator.TX_NEW, Q1);
+        assertEquals(List.of(1L, 1L, 0L), List.of(news.total(0), news.total(1), news.total(2)));
+
+        CohortTimeline.Matrix rtt = timeline.evaluate(CohortTimeline.Indicator.TX_RTT, Q1);
+        assertArrayEquals(new long[] { 0, 1 }, rtt.counts[2]);
+        assertEquals(1, rtt.total(2));
+        assertEquals(List.of("2024-03", "0", "1", "1"), rtt.rows().get(2));
+    }
+}
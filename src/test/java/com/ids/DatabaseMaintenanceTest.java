@@ -0,0 +1,79 @@
+package com.ids;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DatabaseMaintenanceTest {
+
+    @TempDir
+    Path dir;
+
+    private static void fillAndDrop(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("CREATE TABLE junk (payload BLOB)");
+            st.execute("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < 4000) "
+                    + "INSERT INTO junk SELECT randomblob(300) FROM n");
+            st.execute("DROP TABLE junk");
+        }
+    }
+
+    private static long pragma(Connection conn, String name) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("PRAGMA " + name)) {
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void slicesReclaimBoundedPagesAndAnalyzeOnlyAfterChanges() throws Exception {
+        Path db = dir.resolve("converted.db");
+        StorageProfile profile = new StorageProfile(4096, 2048, 0, 100, 50, 3);
+        try (Connection conn = SqliteConnections.open(db, profile)) {
+            assertEquals(2, pragma(conn, "auto_vacuum"));
+            fillAndDrop(conn);
+            long free = pragma(conn, "freelist_count");
+            assertTrue(free > 50);
+
+            DatabaseMaintenance.Report first = DatabaseMaintenance.runSlice(conn, profile);
+            assertEquals(50 * 4096, first.reclaimedBytes);
+            // ANALYZE and the bookkeeping row may reuse a few free pages
+            assertTrue(first.freeBytes > 0 && first.freeBytes <= (free - 50) * 4096);
+            assertTrue(first.analyzed, "never analyzed before");
+            assertNotNull(first.analyzedAt);
+
+            DatabaseMaintenance.Report second = DatabaseMaintenance.runSlice(conn, profile);
+            assertFalse(second.analyzed);
+
+            new DatabaseMaintenance().onSourceImported(conn, "HF1");
+            assertTrue(DatabaseMaintenance.runSlice(conn, profile).analyzed);
+        }
+    }
+
+    @Test
+    public void fullRunConvertsOlderDatabases() throws Exception {
+        Path db = dir.resolve("old.db");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db)) {
+            fillAndDrop(conn);
+        }
+        long before = Files.size(db);
+        StorageProfile profile = StorageProfile.defaults();
+        try (Connection conn = SqliteConnections.open(db, profile)) {
+            assertEquals(0, pragma(conn, "auto_vacuum"));
+            DatabaseMaintenance.Report report = DatabaseMaintenance.runFull(conn, profile);
+            assertTrue(report.converted);
+            assertTrue(report.reclaimedBytes > 0);
+            assertEquals(0, report.freeBytes);
+            assertEquals(2, pragma(conn, "auto_vacuum"));
+        }
+        assertTrue(Files.size(db) < before);
+    }
+}
@@ -0,0 +1,43 @@
+package com.ids;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DisaggregationEngineTest {
+
+    @Test
+    public void countsAgeBandBySexPerFacility() {
+        DisaggregationEngine engine = DisaggregationEngine.forHeaders(
+                List.of("PatientID", "sex", "AGE", "hfr_code"), AgeBands.MER_COARSE);
+        assertNotNull(engine);
+        engine.accept(Arrays.asList("1", "Female", "9", "HF1"));
+        engine.accept(Arrays.asList("2", "F", "30", "HF1"));
+        engine.accept(Arrays.asList("3", "ME", "40", "HF1"));
+        engine.accept(Arrays.asList("4", "KE", null, "HF2"));
+
+        assertEquals(List.of("hfr_code", "Sex", "<15", "15+", "Unknown age", "Total"), engine.pivotHeaders());
+        List<List<String>> rows = engine.pivotRows();
+        assertEquals(List.of("HF1", "Female", "1", "1", "0", "2"), rows.get(0));
+        assertEquals(List.of("HF1", "Male", "0", "1", "0", "1"), rows.get(1));
+        assertEquals(List.of("HF2", "Female", "0", "0", "1", "1"), rows.get(2));
+        assertEquals(3, rows.size());
+        assertEquals(4, engine.getRowCount());
+    }
+
+    @Test
+    public void needsAgeAndSexColumns() {
+        assertNull(DisaggregationEngine.forHeaders(List.of("PatientID", "hfr_code"), AgeBands.MER_FINE));
+    }
+
+    @Test
+    public void fineBandsMatchMerLabels() {
+        assertEquals("<1", AgeBands.MER_FINE.label(AgeBands.MER_FINE.indexOf(0)));
+        assertEquals("1-4", AgeBands.MER_FINE.label(AgeBands.MER_FINE.indexOf(4)));
+        assertEquals("15-19", AgeBands.MER_FINE.label(AgeBands.MER_FINE.indexOf(15)));
+        assertEquals("65+", AgeBands.MER_FINE.label(AgeBands.MER_FINE.indexOf(90)));
+    }
+}
@@ -0,0 +1,185 @@
+package com.ids;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FacilityFanoutTest {
+
+    /** TX_CURR with every join and GROUP BY kept within one facility, so it can be split. */
+    private static final String FACILITY_TX_CURR = "WITH last_visit AS (SELECT hfr_code, PatientID,"
+            + " MAX(VisitDate) AS maxVdate FROM tblVisits WHERE ARVStatusCode IN (3,6,8,9,10)"
+            + " AND VisitDate BETWEEN '2024-01-01' AND '2024-03-31' GROUP BY hfr_code, PatientID)"
+            + " SELECT p.PatientID, p.Sex, v.VisitDate, v.ARVStatusCode, p.hfr_code FROM tblPatients p"
+            + " JOIN last_visit lv ON lv.PatientID = p.PatientID AND lv.hfr_code = p.hfr_code"
+            + " JOIN tblVisits v ON v.PatientID = lv.PatientID AND v.hfr_code = lv.hfr_code"
+            + " AND v.VisitDate = lv.maxVdate ORDER BY p.PatientID";
+
+    @TempDir
+    Path dir;
+
+    private Connection conn;
+    private FacilityFanout fanout;
+
+    @BeforeEach
+    public void open() throws Exception {
+        Path db = dir.resolve("converted.db");
+        conn = SqliteConnections.open(db, StorageProfile.defaults());
+        TableStatsCatalog.ensureCatalogTables(conn);
+        TestSchemas.createPatientTables(conn);
+        try (PreparedStatement p = conn.prepareStatement("INSERT INTO tblPatients VALUES (?,'F','1990-01-01',NULL,NULL,?,'x')");
+                PreparedStatement v = conn.prepareStatement("INSERT INTO tblVisits VALUES (?,?,3,NULL,NULL,?,'x')");
+                PreparedStatement s = conn.prepareStatement("INSERT INTO ids_table_stats VALUES ('tblVisits', ?, 1)")) {
+            String[] facilities = { "H1", "H2", "H3" };
+            for (String hfr : facilities) {
+                s.setString(1, hfr);
+                s.executeUpdate();
+            }
+            // Interleaved IDs so the merge has real work to do
+            for (int i = 0; i < 90; i++) {
+                String hfr = facilities[i % 3];
+                String id = String.format("P%03d", (i * 37) % 90);
+                p.setString(1, id);
+                p.setString(2, hfr);
+                p.executeUpdate();
+                v.setString(1, id);
+                v.setString(2, "2024-0" + (1 + i % 3) + "-10");
+                v.setString(3, hfr);
+                v.executeUpdate();
+            }
+        }
+        fanout = new FacilityFanout(db, StorageProfile.defaults(), 3);
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        fanout.close();
+        conn.close();
+    }
+
+    @Test
+    public void mergedSlicesMatchTheSingleConnectionResult() throws Exception {
+        String sql = FACILITY_TX_CURR;
+        FacilityFanout.ensureFacilityIndexes(conn, sql);
+
+        List<List<String>> expected = new ArrayList<>();
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            int cols = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                List<String> row = new ArrayList<>();
+                for (int i = 1; i <= cols; i++)
+                    row.add(rs.getString(i));
+                expected.add(row);
+            }
+        }
+
+        List<List<String>> merged = new ArrayList<>();
+        List<String> headers = fanout.run("TX_CURR", sql, merged::add);
+        assertEquals("PatientID", headers.get(0));
+        assertEquals(90, merged.size());
+        assertEquals(expected, merged);
+    }
+
+    @Test
+    public void tinyQueuesAndOneConnectionStillMergeEverySlice() throws Exception {
+        String sql = FACILITY_TX_CURR;
+        List<List<String>> merged = new ArrayList<>();
+        try (FacilityFanout narrow = new FacilityFanout(dir.resolve("converted.db"), StorageProfile.defaults(), 1, 2)) {
+            narrow.run("TX_CURR", sql, merged::add);
+        }
+        assertEquals(90, merged.size());
+        for (int i = 1; i < merged.size(); i++)
+            assertTrue(merged.get(i - 1).get(0).compareTo(merged.get(i).get(0)) <= 0);
+    }
+
+    @Test
+    public void connectionsAreBoundedByParallelismNotFacilities() throws Exception {
+        List<List<String>> merged = new ArrayList<>();
+        try (FacilityFanout two = new FacilityFanout(dir.resolve("converted.db"), StorageProfile.defaults(), 2)) {
+            two.run("TX_CURR", FACILITY_TX_CURR, merged::add, conn);
+            assertEquals(3, two.peakConnections()); // two slices for three facilities, plus metadata
+        }
+        assertEquals(90, merged.size());
+    }
+
+    @Test
+    public void facilitiesFallBackToTheTablesWhenStatsAreMissing() throws Exception {
+        try (Statement st = conn.createStatement()) {
+            st.execute("DELETE FROM ids_table_stats");
+        }
+        assertEquals(List.of("H1", "H2", "H3"), FacilityFanout.facilities(conn, List.of("tblPatients", "tblVisits")));
+
+        String sql = FACILITY_TX_CURR;
+        List<List<String>> merged = new ArrayList<>();
+        fanout.run("TX_CURR", sql, merged::add);
+        assertEquals(90, merged.size());
+    }
+
+    @Test
+    public void onlyQueriesThatKeepJoinsWithinAFacilityAreSplit() throws Exception {
+        assertNotNull(FacilityFanout.splitBlocker(QueryLoader.getQuery("TX_CURR"))); // joins on PatientID only
+        assertNotNull(FacilityFanout.splitBlocker("SELECT COUNT(*) FROM tblVisits"));
+        assertNotNull(FacilityFanout.splitBlocker(
+                "SELECT * FROM tblVisits WHERE PatientID IN (SELECT PatientID FROM tblPatients)"));
+        assertNotNull(FacilityFanout.splitBlocker("SELECT * FROM tblPatients p, tblVisits v"));
+        assertNull(FacilityFanout.splitBlocker(QueryLoader.getQuery("HTS_TST"))); // groups by hfr_code
+        assertNull(FacilityFanout.splitBlocker(FACILITY_TX_CURR));
+        assertNull(FacilityFanout.splitBlocker(
+                "SELECT * FROM tblPatients p JOIN tblVisits v USING (hfr_code, PatientID)"));
+
+        String sql = QueryLoader.render("TX_CURR", LocalDate.of(2024, 1, 1), LocalDate.of(2024, 3, 31));
+        assertThrows(SQLException.class, () -> fanout.run("TX_CURR", sql, row -> {
+        }));
+    }
+
+    @Test
+    public void splitAndWholeRunsAgreeOnACrossFacilityPatient() throws Exception {
+        // P000 is also a patient at H2, with a later visit there
+        try (Statement st = conn.createStatement()) {
+            st.execute("INSERT INTO tblPatients VALUES ('P000','F','1990-01-01',NULL,NULL,'H2','x')");
+            st.execute("INSERT INTO tblVisits VALUES ('P000','2024-03-20',3,NULL,NULL,'H2','x')");
+        }
+        List<List<String>> whole = new ArrayList<>();
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(FACILITY_TX_CURR)) {
+            int cols = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                List<String> row = new ArrayList<>();
+                for (int i = 1; i <= cols; i++)
+                    row.add(rs.getString(i));
+                whole.add(row);
+            }
+        }
+        List<List<String>> split = new ArrayList<>();
+        fanout.run("TX_CURR", FACILITY_TX_CURR, split::add);
+
+        assertEquals(91, whole.size()); // both P000s, each with its own facility's visit
+        Comparator<List<String>> byText = Comparator.comparing(Object::toString);
+        whole.sort(byText);
+        List<List<String>> sortedSplit = new ArrayList<>(split);
+        sortedSplit.sort(byText);
+        assertEquals(whole, sortedSplit);
+        for (int i = 1; i < split.size(); i++)
+            assertTrue(split.get(i - 1).get(0).compareTo(split.get(i).get(0)) <= 0);
+    }
+
+    @Test
+    public void findsRenamedOrderColumns() {
+        String hts = QueryLoader.getQuery("HTS_TST");
+        assertEquals(1, FacilityFanout.orderColumn(hts, List.of("visitDate", "TESTING ID", "Age")));
+        assertEquals(-1, FacilityFanout.orderColumn("SELECT a FROM t", List.of("a")));
+    }
+}
@@ -0,0 +1,75 @@
+package com.ids;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FacilityShardExporterTest {
+
+    @TempDir
+    Path out;
+
+    @Test
+    public void writesOneFilePerFacilityWithBoundedHandles() throws Exception {
+        List<List<String>> rows = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+            rows.add(List.of("P" + i, "HF" + (i % 37)));
+
+        // 2 lanes x 1 open file each forces constant eviction and append-reopen
+        FacilityShardExporter.Summary summary = new FacilityShardExporter(2, 2)
+                .export(List.of("PatientID", "hfr_code"), rows, out, "TX_NEW");
+
+        assertEquals(37, summary.rowsByFacility.size());
+        assertEquals(5000, summary.totalRows());
+        List<String> hf0 = Files.readAllLines(out.resolve("TX_NEW_HF0.csv"));
+        assertEquals("PatientID,hfr_code", hf0.get(0));
+        assertEquals(1 + summary.rowsByFacility.get("HF0"), hf0.size());
+        assertEquals("P0,HF0", hf0.get(1));
+        assertEquals("P37,HF0", hf0.get(2));
+        assertEquals(38, Files.readAllLines(out.resolve("TX_NEW-index.csv")).size());
+    }
+
+    @Test
+    public void codesThatSanitizeAlikeGetTheirOwnFiles() throws Exception {
+        List<List<String>> rows = new ArrayList<>();
+        for (int i = 0; i < 3000; i++)
+            rows.add(List.of("P" + i, List.of("A/1", "A_1", "a_1").get(i % 3)));
+
+        FacilityShardExporter.Summary summary = new FacilityShardExporter(3, 3)
+                .export(List.of("PatientID", "hfr_code"), rows, out, "TX_CURR");
+
+        assertEquals(3, summary.fileByFacility.size());
+        assertEquals(3, new HashSet<>(summary.fileByFacility.values()).size());
+        for (String facility : summary.fileByFacility.keySet()) {
+            List<String> lines = Files.readAllLines(out.resolve(summary.fileByFacility.get(facility)));
+            assertEquals(1001, lines.size(), facility);
+            assertTrue(lines.stream().skip(1).allMatch(l -> l.endsWith("," + facility)), facility);
+        }
+    }
+
+    @Test
+    public void twoIndicatorsInOneFolderKeepTheirOwnIndex() throws Exception {
+        FacilityShardExporter exporter = FacilityShardExporter.withDefaults();
+        exporter.export(List.of("PatientID", "hfr_code"), List.of(List.of("P1", "HF1")), out, "TX_NEW");
+        exporter.export(List.of("PatientID", "hfr_code"), List.of(List.of("P2", "HF2"), List.of("P3", "HF3")), out,
+                "TX_CURR");
+
+        assertEquals(List.of("hfr_code,file,rows", "HF1,TX_NEW_HF1.csv,1"),
+                Files.readAllLines(out.resolve(FacilityShardExporter.indexFileFor("TX_NEW"))));
+        assertEquals(List.of("hfr_code,file,rows", "HF2,TX_CURR_HF2.csv,1", "HF3,TX_CURR_HF3.csv,1"),
+                Files.readAllLines(out.resolve(FacilityShardExporter.indexFileFor("TX_CURR"))));
+    }
+
+    @Test
+    public void rejectsResultsWithoutFacilityColumn() {
+        assertThrows(IllegalArgumentException.class, () -> FacilityShardExporter.withDefaults()
+                .export(List.of("PatientID"), List.of(List.of("P1")), out, "x"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.ids;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlightRecordingTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void recordingCapturesImportEvents() throws Exception {
+        FlightRecording recording = new FlightRecording(dir);
+        recording.start();
+        assertTrue(recording.isRunning());
+
+        File mdb = MdbRecordManagerTest.createFacilityMdb(dir, "HF1", 7);
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("converted.db"))) {
+            assertEquals(ImportJournal.DONE,
+                    MdbRecordManager.importMdbFile(conn, mdb, ImportProfile.catalogDefault()).status);
+        }
+
+        Path file = recording.stopAndDump();
+        assertFalse(recording.isRunning());
+        assertEquals(dir.resolve(FlightRecording.DIR_NAME), file.getParent());
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().startsWith("com.ids."))
+                .collect(Collectors.toList());
+        RecordedEvent open = events.stream().filter(e -> e.getEventType().getName().equals("com.ids.MdbOpen"))
+                .findFirst().orElseThrow();
+        assertEquals("HF1", open.getString("hfrCode"));
+        RecordedEvent patients = events.stream()
+                .filter(e -> e.getEventType().getName().equals("com.ids.TableTransfer")
+                        && "tblPatients".equals(e.getString("table")))
+                .findFirst().orElseThrow();
+        assertEquals(7, patients.getLong("rows"));
+        assertTrue(patients.getLong("bytes") > 0);
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("com.ids.BatchCommit")
+                && e.getLong("rows") >= 7));
+    }
+}
@@ -0,0 +1,32 @@
+package com.ids;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ImportProfileTest {
+
+    @Test
+    public void catalogProfileKeepsReferencedTablesOnly() {
+        ImportProfile profile = ImportProfile.catalogDefault();
+        assertTrue(profile.includesTable("tblPatients"));
+        assertTrue(profile.includesTable("tblVisits"));
+        assertTrue(profile.includesTable("tblCT"));
+        assertTrue(profile.includesTable("tblConfig"));
+        assertTrue(profile.includesTable("SecurityUsers"));
+        assertFalse(profile.includesTable("last_visit"), "CTE names are not tables");
+        assertFalse(profile.includesTable("tblDrugDispensing"));
+    }
+
+    @Test
+    public void aliasesAndCtesAreResolved() {
+        ImportProfile profile = ImportProfile.fromQueryCatalog("test", List.of(
+                "WITH x AS (SELECT PatientID FROM tblA) SELECT b.* FROM x JOIN tblB b ON b.id = x.PatientID"));
+        assertTrue(profile.includesTable("tblA"));
+        assertTrue(profile.includesTable("TBLB"));
+        assertFalse(profile.includesTable("x"));
+        assertTrue(ImportProfile.FULL.includesTable("anything"));
+    }
+}
@@ -0,0 +1,107 @@
+package com.ids;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IndicatorServerTest {
+
+    @TempDir
+    Path dir;
+
+    private Connection conn;
+    private IndicatorServer server;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeEach
+    public void start() throws Exception {
+        Path db = dir.resolve("converted.db");
+        conn = SqliteConnections.open(db, StorageProfile.defaults());
+        TestSchemas.createPatientTables(conn);
+        try (Statement st = conn.createStatement()) {
+            st.execute("INSERT INTO tblPatients VALUES ('P1','F','1990-05-01',NULL,NULL,'H1','a.mdb'),"
+                    + " ('P2','M','2000-01-01',NULL,NULL,'H2','b.mdb')");
+            st.execute("INSERT INTO tblVisits VALUES ('P1','2024-02-01',3,NULL,NULL,'H1','a.mdb'),"
+                    + " ('P2','2024-03-01',3,NULL,NULL,'H2','b.mdb')");
+        }
+        server = IndicatorServer.start(db, StorageProfile.defaults(), 0);
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        server.stop();
+        conn.close();
+    }
+
+    private HttpResponse<String> get(String pathAndQuery) throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create(server.getBaseUrl() + pathAndQuery)).build();
+        return client.send(req, HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    public void servesIndicatorsAsJsonAndCsvWithFacilityFilter() throws Exception {
+        JsonNode list = new ObjectMapper().readTree(get("").body());
+        assertTrue(list.get("indicators").toString().contains("TX_CURR"));
+
+        HttpResponse<String> all = get("/TX_CURR?start=2024-01-01&end=2024-03-31");
+        assertEquals(200, all.statusCode());
+        JsonNode json = new ObjectMapper().readTree(all.body());
+        assertEquals(2, json.get("rowCount").asInt());
+        assertEquals("PatientID", json.get("columns").get(0).asText());
+
+        HttpResponse<String> csv = get("/TX_CURR?start=2024-01-01&end=2024-03-31&hfr=H2&format=csv");
+        assertEquals(200, csv.statusCode());
+        String[] lines = csv.body().split("\r\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[1].startsWith("P2,"));
+
+        assertEquals(404, get("/NOPE?start=2024-01-01&end=2024-03-31").statusCode());
+        assertEquals(400, get("/TX_CURR?start=2024-13-01&end=2024-03-31").statusCode());
+    }
+
+    @Test
+    public void concurrentIdenticalRequestsAllSucceedAndLeaveNoTempFiles() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> pending = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            HttpRequest req = HttpRequest.newBuilder(
+                    URI.create(server.getBaseUrl() + "/TX_CURR?start=2024-01-01&end=2024-03-31")).build();
+            pending.add(client.sendAsync(req, HttpResponse.BodyHandlers.ofString()));
+        }
+        String first = null;
+        for (CompletableFuture<HttpResponse<String>> f : pending) {
+            HttpResponse<String> r = f.join();
+            assertEquals(200, r.statusCode());
+            if (first == null)
+                first = r.body();
+            assertEquals(first, r.body());
+        }
+        // Temp files are removed just after the last response is sent
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (tempFiles() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals(0, tempFiles());
+    }
+
+    private long tempFiles() throws Exception {
+        try (var files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("ids-api-")).count();
+        }
+    }
+}
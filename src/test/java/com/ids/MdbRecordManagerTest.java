@@ -0,0 +1,229 @@
+package com.ids;
+
+import com.healthmarketscience.jackcess.ColumnBuilder;
+import com.healthmarketscience.jackcess.DataType;
+import com.healthmarketscience.jackcess.Database;
+import com.healthmarketscience.jackcess.DatabaseBuilder;
+import com.healthmarketscience.jackcess.Table;
+import com.healthmarketscience.jackcess.TableBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MdbRecordManagerTest {
+
+    @TempDir
+    Path dir;
+
+    private Connection conn;
+
+    @BeforeEach
+    public void open() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("converted.db"));
+    }
+
+    @AfterEach
+    public void close() throws SQLException {
+        conn.close();
+    }
+
+    /** Builds a tiny facility MDB with catalog tables and one table no indicator uses. */
+    static File createFacilityMdb(Path dir, String hfrCode, int patients) throws Exception {
+        File file = dir.resolve(hfrCode + ".mdb").toFile();
+        try (Database db = DatabaseBuilder.create(Database.FileFormat.V2000, file)) {
+            Table config = new TableBuilder("tblConfig").addColumn(new ColumnBuilder("HFRCode", DataType.TEXT))
+                    .toTable(db);
+            config.addRow(hfrCode);
+            Table users = new TableBuilder("SecurityUsers").addColumn(new ColumnBuilder("UserName", DataType.TEXT))
+                    .toTable(db);
+            users.addRow("admin");
+            Table pats = new TableBuilder("tblPatients")
+                    .addColumn(new ColumnBuilder("PatientID", DataType.TEXT))
+                    .addColumn(new ColumnBuilder("Sex", DataType.TEXT))
+                    .addColumn(new ColumnBuilder("DateOfBirth", DataType.TEXT))
+                    .addColumn(new ColumnBuilder("FirstName", DataType.TEXT))
+                    .addColumn(new ColumnBuilder("FavouriteColour", DataType.TEXT))
+                    .toTable(db);
+            for (int i = 0; i < patients; i++)
+                pats.addRow("P" + i, i % 2 == 0 ? "Female" : "Male", "1990-01-" + (10 + i % 10), "Name" + i,
+                        i % 3 == 0 ? null : "blue");
+            Table drugs = new TableBuilder("tblDrugStock").addColumn(new ColumnBuilder("Drug", DataType.TEXT))
+                    .toTable(db);
+            drugs.addRow("TLD");
+        }
+        return file;
+    }
+
+    private void importFile(File file, String hfrCode) throws Exception {
+        try (Database mdb = DatabaseBuilder.open(file)) {
+            MdbRecordManager.mergeMdbToSqlite(conn, mdb, hfrCode, file.getName(), file.getAbsolutePath(),
+                    ImportProfile.catalogDefault());
+        }
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void catalogProfileDefersUnusedTablesAndColumns() throws Exception {
+        File file = createFacilityMdb(dir, "HF1", 10);
+        importFile(file, "HF1");
+
+        assertEquals(10, count("SELECT COUNT(*) FROM tblPatients"));
+        assertTrue(MdbRecordManager.listDeferredTables(conn).contains("tblDrugStock"));
+        assertThrows(SQLException.class, () -> count("SELECT COUNT(FavouriteColour) FROM tblPatients"));
+
+        assertEquals(1, MdbRecordManager.importDeferredTable(conn, "tblDrugStock"));
+        assertEquals(1, count("SELECT COUNT(*) FROM tblDrugStock WHERE hfr_code = 'HF1'"));
+        assertFalse(MdbRecordManager.listDeferredTables(conn).contains("tblDrugStock"));
+    }
+
+    @Test
+    public void statsCatalogFollowsImportAndRemoval() throws Exception {
+        importFile(createFacilityMdb(dir, "HF1", 10), "HF1");
+        importFile(createFacilityMdb(dir, "HF2", 30), "HF2");
+
+        Map<String, TableStatsCatalog.TableStats> stats = TableStatsCatalog.load(conn);
+        TableStatsCatalog.TableStats patients = stats.get("tblPatients");
+        assertEquals(40, patients.rows);
+        assertEquals(10L, patients.rowsByFacility.get("HF1"));
+        TableStatsCatalog.ColumnStats sex = patients.columns.stream().filter(c -> c.column.equals("Sex"))
+                .findFirst().orElseThrow();
+        assertEquals(2, sex.approxDistinct);
+        assertEquals(0.0, sex.nullFraction);
+
+        MdbRecordManager.removeRecordsBySource(conn, "HF2");
+        assertEquals(0, count("SELECT COUNT(*) FROM tblPatients WHERE hfr_code = 'HF2'"));
+        patients = TableStatsCatalog.load(conn).get("tblPatients");
+        assertEquals(10, patients.rows);
+        assertTrue(patients.columns.get(0).stale);
+
+        TableStatsCatalog.rebuildStaleSketches(conn);
+        patients = TableStatsCatalog.load(conn).get("tblPatients");
+        TableStatsCatalog.ColumnStats ids = patients.columns.stream().filter(c -> c.column.equals("PatientID"))
+                .findFirst().orElseThrow();
+        assertFalse(ids.stale);
+        assertEquals(10, ids.approxDistinct);
+    }
+
+    @Test
+    public void searchIndexPointsAtImportedRows() throws Exception {
+        importFile(createFacilityMdb(dir, "HF1", 10), "HF1");
+        importFile(createFacilityMdb(dir, "HF2", 30), "HF2");
+
+        List<SearchIndex.Hit> hits = SearchIndex.search(conn, "P12", 10);
+        assertEquals(1, hits.size());
+        SearchIndex.Hit hit = hits.get(0);
+        assertEquals("HF2", hit.hfrCode);
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(
+                "SELECT PatientID, hfr_code FROM \"" + hit.table + "\" WHERE rowid = " + hit.rowId)) {
+            assertTrue(rs.next());
+            assertEquals("P12", rs.getString(1));
+            assertEquals("HF2", rs.getString(2));
+        }
+        assertThrows(IllegalArgumentException.class, () -> SearchIndex.search(conn, "P1", 10));
+
+        MdbRecordManager.removeRecordsBySource(conn, "HF2");
+        assertTrue(SearchIndex.search(conn, "P12", 10).isEmpty());
+        assertEquals(10, count("SELECT COUNT(*) FROM ids_search"));
+
+        try (Statement st = conn.createStatement()) {
+            st.execute("DELETE FROM ids_search");
+            st.execute("DELETE FROM ids_search_ranges");
+        }
+        assertEquals(1, SearchIndex.backfillMissing(conn));
+        assertEquals(10, count("SELECT COUNT(*) FROM ids_search"));
+    }
+
+    @Test
+    public void searchBackfillIndexesSeveralFacilitiesLargerThanABatch() throws Exception {
+        importFile(createFacilityMdb(dir, "HF1", 700), "HF1");
+        importFile(createFacilityMdb(dir, "HF2", 700), "HF2");
+        try (Statement st = conn.createStatement()) {
+            st.execute("DELETE FROM ids_search");
+            st.execute("DELETE FROM ids_search_ranges");
+        }
+
+        assertEquals(1, SearchIndex.backfillMissing(conn));
+        assertEquals(1400, count("SELECT COUNT(*) FROM ids_search"));
+        assertEquals(2, count("SELECT COUNT(*) FROM ids_search_ranges"));
+        List<SearchIndex.Hit> hits = SearchIndex.search(conn, "P699", 10);
+        assertEquals(2, hits.size());
+        assertNotEquals(hits.get(0).hfrCode, hits.get(1).hfrCode);
+        for (SearchIndex.Hit hit : hits) {
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(
+                    "SELECT PatientID, hfr_code FROM \"" + hit.table + "\" WHERE rowid = " + hit.rowId)) {
+                assertTrue(rs.next());
+                assertEquals("P699", rs.getString(1));
+                assertEquals(hit.hfrCode, rs.getString(2));
+            }
+        }
+
+        MdbRecordManager.removeRecordsBySource(conn, "HF1");
+        assertEquals(700, count("SELECT COUNT(*) FROM ids_search"));
+    }
+
+    @Test
+    public void journalLeavesOnlyUnfinishedFilesPending() throws Exception {
+        File hf1 = createFacilityMdb(dir, "HF1", 5);
+        File hf2 = createFacilityMdb(dir, "HF2", 5);
+        File broken = dir.resolve("broken.mdb").toFile();
+        Files.write(broken.toPath(), new byte[4096]);
+        ImportJournal.enqueue(conn, List.of(hf1, hf2, broken));
+
+        ImportProfile profile = ImportProfile.catalogDefault();
+        assertEquals(ImportJournal.DONE, MdbRecordManager.importMdbFile(conn, hf1, profile).status);
+        assertEquals(List.of(hf2.getAbsoluteFile(), broken.getAbsoluteFile()), ImportJournal.pendingFiles(conn));
+
+        MdbRecordManager.ImportResult failed = MdbRecordManager.importMdbFile(conn, broken, profile);
+        assertEquals(ImportJournal.FAILED, failed.status);
+        assertNotNull(failed.message);
+        assertEquals(List.of(hf2.getAbsoluteFile()), ImportJournal.pendingFiles(conn));
+
+        // Re-queuing an imported facility is skipped, not duplicated
+        ImportJournal.enqueue(conn, List.of(hf1));
+        assertEquals(ImportJournal.SKIPPED, MdbRecordManager.importMdbFile(conn, hf1, profile).status);
+        assertEquals(5, count("SELECT COUNT(*) FROM tblPatients"));
+        assertEquals(List.of(hf2.getAbsoluteFile()), ImportJournal.pendingFiles(conn));
+    }
+
+    @Test
+    public void catalogSnapshotRoundTrips() throws Exception {
+        importFile(createFacilityMdb(dir, "HF1", 10), "HF1");
+        CatalogSnapshot live = CatalogSnapshot.load(conn);
+        assertTrue(live.tables.contains("tblPatients"));
+        assertTrue(live.deferredTables.contains("tblDrugStock"));
+        assertEquals(List.of("HF1 [ HF1.mdb ] "), live.sources);
+
+        Path file = dir.resolve(CatalogSnapshot.FILE_NAME);
+        live.write(file);
+        CatalogSnapshot cached = CatalogSnapshot.read(file);
+        assertEquals(live.tables, cached.tables);
+        assertEquals(live.deferredTables, cached.deferredTables);
+        assertEquals(live.sources, cached.sources);
+        TableStatsCatalog.TableStats patients = cached.stats.get("tblpatients");
+        assertEquals(10, patients.rows);
+        assertEquals(live.stats.get("tblPatients").columns.size(), patients.columns.size());
+
+        Files.writeString(file, "{ not json");
+        assertNull(CatalogSnapshot.read(file));
+    }
+}
@@ -0,0 +1,72 @@
+package com.ids;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PatientLinkageTest {
+
+    private static final List<String> COLUMNS = List.of("PatientID", "DateOfBirth", "Sex", "FirstName", "Surname");
+
+    private Connection conn;
+    private final PatientLinkage linkage = new PatientLinkage();
+
+    @BeforeEach
+    public void open() throws SQLException {
+        conn = TestSchemas.inMemory(linkage);
+    }
+
+    @AfterEach
+    public void close() throws SQLException {
+        conn.close();
+    }
+
+    private void importPatients(String hfr, String[]... patients) throws SQLException {
+        TestSchemas.feed(linkage, conn, "tblPatients", COLUMNS, hfr, List.of(patients));
+    }
+
+    @Test
+    public void keysNeedEnoughEvidence() {
+        assertEquals(1, PatientLinkage.blockingKeys("12-04-0100-001234", null, null, null, null).size());
+        assertTrue(PatientLinkage.blockingKeys("P12", "1990-01-10", null, "Asha", "Juma").isEmpty());
+        assertEquals(PatientLinkage.blockingKeys("P1", "10/1/1990", "F", "Asha", "Juma"),
+                PatientLinkage.blockingKeys("X9", "1990-01-10", "Female", "JUMA", "asha"));
+    }
+
+    @Test
+    public void transfersClusterAcrossFacilitiesAndDissolveOnRemoval() throws SQLException {
+        importPatients("HF1",
+                new String[] { "12-04-0100-000001", "1990-01-10", "F", "Asha", "Juma" },
+                new String[] { "12-04-0100-000002", "1985-05-05", "M", "Baraka", "Mushi" });
+        importPatients("HF2",
+                new String[] { "12-04-0100-000001", "1990-01-10", "F", "Asha", "Juma" }, // same CTC ID
+                new String[] { "HF2-77", "1985-05-05", "M", "Baraka", "Mushi" }); // re-registered
+        importPatients("HF3", new String[] { "HF3-5", "1985-05-05", "Male", "BARAKA", "MUSHI" });
+
+        Map<String, Long> clusters = PatientLinkage.loadClusters(conn);
+        assertEquals(5, clusters.size());
+        assertEquals(2, clusters.values().stream().distinct().count());
+
+        List<String> headers = List.of("PatientID", "VisitDate", "hfr_code");
+        List<List<String>> rows = List.of(
+                List.of("12-04-0100-000002", "2024-01-10", "HF1"),
+                List.of("HF2-77", "2024-03-01", "HF2"),
+                List.of("HF3-5", "2024-02-01", "HF3"),
+                List.of("UNLINKED", "2024-01-01", "HF1"));
+        List<List<String>> deduped = PatientLinkage.deduplicate(headers, rows, clusters);
+        assertEquals(List.of(rows.get(1), rows.get(3)), deduped);
+
+        // HF2 bridged nothing, so Baraka's HF1/HF3 link survives without it
+        linkage.onSourceRemoved(conn, "HF2");
+        clusters = PatientLinkage.loadClusters(conn);
+        assertEquals(2, clusters.size());
+        assertEquals(clusters.get("HF1\u001f12-04-0100-000002"), clusters.get("HF3\u001fHF3-5"));
+    }
+}
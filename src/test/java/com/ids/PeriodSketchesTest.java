@@ -0,0 +1,78 @@
+package com.ids;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeriodSketchesTest {
+
+    private static final List<String> COLUMNS = List.of("PatientID", "VisitDate", "ARVStatusCode");
+
+    private Connection conn;
+    private final PeriodSketches sketches = new PeriodSketches();
+
+    @BeforeEach
+    public void open() throws SQLException {
+        conn = TestSchemas.inMemory(sketches);
+    }
+
+    @AfterEach
+    public void close() throws SQLException {
+        conn.close();
+    }
+
+    /** {@code patients} patients starting at {@code first}, each visiting once a month in Jul-Sep 2024. */
+    private void importVisits(String hfr, int first, int patients) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        for (int month = 7; month <= 9; month++)
+            for (int p = first; p < first + patients; p++)
+                rows.add(new String[] { "P" + p, String.format("2024-%02d-15 00:00:00", month), "3" });
+        TestSchemas.feed(sketches, conn, "tblVisits", COLUMNS, hfr, rows);
+    }
+
+    @Test
+    public void estimatesDistinctPatientsPerFacilityWithinBound() throws SQLException {
+        importVisits("H1", 0, 3000);
+        importVisits("H2", 2000, 1500); // 1000 patients also seen at H1
+
+        List<PeriodSketches.Estimate> q3 = PeriodSketches.estimate(conn, PeriodSketches.VISIT_PATIENTS,
+                LocalDate.of(2024, 7, 1), LocalDate.of(2024, 9, 30));
+        assertEquals(3, q3.size());
+        assertWithin(3000, q3.get(0));
+        assertEquals("H2", q3.get(1).hfrCode);
+        assertWithin(1500, q3.get(1));
+        assertNull(q3.get(2).hfrCode);
+        assertWithin(3500, q3.get(2));
+
+        List<PeriodSketches.Estimate> june = PeriodSketches.estimate(conn, PeriodSketches.VISIT_PATIENTS,
+                LocalDate.of(2024, 6, 1), LocalDate.of(2024, 6, 30));
+        assertEquals(1, june.size());
+        assertEquals(0, june.get(0).distinct);
+    }
+
+    @Test
+    public void removingAFacilityDropsOnlyItsSketches() throws SQLException {
+        importVisits("H1", 0, 100);
+        importVisits("H2", 100, 50);
+        sketches.onSourceRemoved(conn, "H1");
+
+        List<PeriodSketches.Estimate> q3 = PeriodSketches.estimate(conn, PeriodSketches.VISIT_PATIENTS,
+                LocalDate.of(2024, 7, 1), LocalDate.of(2024, 9, 30));
+        assertEquals(2, q3.size());
+        assertEquals("H2", q3.get(0).hfrCode);
+        assertWithin(50, q3.get(1));
+    }
+
+    private static void assertWithin(long exact, PeriodSketches.Estimate e) {
+        assertTrue(Math.abs(e.distinct - exact) <= Math.max(e.errorBound, 1),
+                "estimate " + e.distinct + " ±" + e.errorBound + " vs exact " + exact);
+    }
+}
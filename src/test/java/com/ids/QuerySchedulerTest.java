@@ -0,0 +1,70 @@
+package com.ids;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuerySchedulerTest {
+
+    private final List<QueryScheduler.Stats> reports = new CopyOnWriteArrayList<>();
+    private final QueryScheduler scheduler = new QueryScheduler(1, reports::add);
+
+    @AfterEach
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /** Occupies the single worker until the returned latch is released. */
+    private CountDownLatch blockWorker() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(null, QueryScheduler.Priority.BATCH, () -> {
+            started.countDown();
+            return release.await(5, TimeUnit.SECONDS);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void identicalRequestsShareOneExecution() throws Exception {
+        CountDownLatch release = blockWorker();
+        AtomicInteger runs = new AtomicInteger();
+        CompletableFuture<Integer> a = scheduler.submit("TX_CURR|2024", QueryScheduler.Priority.INTERACTIVE,
+                runs::incrementAndGet);
+        CompletableFuture<Integer> b = scheduler.submit("TX_CURR|2024", QueryScheduler.Priority.INTERACTIVE,
+                runs::incrementAndGet);
+        assertSame(a, b);
+        assertEquals(1, scheduler.queued());
+        release.countDown();
+
+        assertEquals(1, a.get(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+        // Once finished, the same key runs again
+        assertEquals(2, scheduler.submit("TX_CURR|2024", QueryScheduler.Priority.INTERACTIVE,
+                runs::incrementAndGet).get(5, TimeUnit.SECONDS));
+        assertTrue(reports.stream().anyMatch(r -> r.queued == 1 && r.running == 1));
+    }
+
+    @Test
+    public void interactiveWorkOvertakesQueuedBatchWork() throws Exception {
+        CountDownLatch release = blockWorker();
+        List<String> order = new CopyOnWriteArrayList<>();
+        CompletableFuture<Boolean> export = scheduler.submit(null, QueryScheduler.Priority.BATCH,
+                () -> order.add("export"));
+        CompletableFuture<Boolean> query = scheduler.submit(null, QueryScheduler.Priority.INTERACTIVE,
+                () -> order.add("query"));
+        release.countDown();
+
+        CompletableFuture.allOf(export, query).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("query", "export"), order);
+    }
+}
@@ -0,0 +1,66 @@
+package com.ids;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResultSortEngineTest {
+
+    private static final List<String> HEADERS = List.of("PatientID", "Age", "VisitDate");
+
+    private static List<List<String>> rows() {
+        return List.of(
+                Arrays.asList("A", "9", "2024-02-01T00:00"),
+                Arrays.asList("B", "10", "2023-12-31T00:00"),
+                Arrays.asList("C", null, "2024-01-15T00:00"),
+                Arrays.asList("D", "100", null));
+    }
+
+    @Test
+    public void infersNumberAndDateColumns() {
+        ResultSortEngine.ColumnType[] types = ResultSortEngine.inferTypes(3, null, rows());
+        assertEquals(ResultSortEngine.ColumnType.TEXT, types[0]);
+        assertEquals(ResultSortEngine.ColumnType.NUMBER, types[1]);
+        assertEquals(ResultSortEngine.ColumnType.DATE, types[2]);
+    }
+
+    @Test
+    public void sortsNumbersByValueWithMissingLast() {
+        ResultSortEngine engine = new ResultSortEngine(rows(), ResultSortEngine.inferTypes(3, null, rows()));
+        int[] asc = engine.sort(engine.identity(), List.of(new ResultSortEngine.SortKey(1, true)));
+        assertArrayEquals(new int[] { 0, 1, 3, 2 }, asc);
+        int[] desc = engine.sort(engine.identity(), List.of(new ResultSortEngine.SortKey(1, false)));
+        assertArrayEquals(new int[] { 3, 1, 0, 2 }, desc);
+        int[] byDate = engine.sort(engine.identity(), List.of(new ResultSortEngine.SortKey(2, true)));
+        assertArrayEquals(new int[] { 1, 2, 0, 3 }, byDate);
+    }
+
+    @Test
+    public void filtersByTypedCondition() {
+        ResultSortEngine engine = new ResultSortEngine(rows(), ResultSortEngine.inferTypes(3, null, rows()));
+        assertArrayEquals(new int[] { 1, 3 }, engine.filter(engine.identity(), engine.predicate("Age>=10", HEADERS)));
+        assertArrayEquals(new int[] { 1 },
+                engine.filter(engine.identity(), engine.predicate("VisitDate<2024-01-01", HEADERS)));
+        assertArrayEquals(new int[] { 2 }, engine.filter(engine.identity(), engine.predicate("c", HEADERS)));
+    }
+
+    @Test
+    public void parallelSortIsStableAndOrdered() {
+        Random random = new Random(42);
+        List<List<String>> rows = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++)
+            rows.add(Arrays.asList(Integer.toString(random.nextInt(500)), Integer.toString(i)));
+        ResultSortEngine engine = new ResultSortEngine(rows, ResultSortEngine.inferTypes(2, null, rows));
+        int[] order = engine.sort(engine.identity(), List.of(new ResultSortEngine.SortKey(0, true)));
+        for (int i = 1; i < order.length; i++) {
+            int a = Integer.parseInt(rows.get(order[i - 1]).get(0));
+            int b = Integer.parseInt(rows.get(order[i]).get(0));
+            assertTrue(a < b || (a == b && order[i - 1] < order[i]));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.ids;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotsTest {
+
+    @TempDir
+    Path dir;
+
+    private Path db;
+    private Connection live;
+
+    @BeforeEach
+    public void open() throws SQLException {
+        db = dir.resolve("converted.db");
+        live = SqliteConnections.open(db, StorageProfile.defaults());
+        try (Statement st = live.createStatement()) {
+            st.execute("CREATE TABLE tblVisits (PatientID TEXT, VisitDate TEXT, hfr_code TEXT)");
+        }
+        insertVisits(30_000); // well over one backup step
+    }
+
+    @AfterEach
+    public void close() throws SQLException {
+        live.close();
+    }
+
+    private void insertVisits(int n) throws SQLException {
+        live.setAutoCommit(false);
+        try (PreparedStatement ps = live.prepareStatement("INSERT INTO tblVisits VALUES (?, '2024-09-30', 'H1')")) {
+            for (int i = 0; i < n; i++) {
+                ps.setString(1, "P" + i + "-padding-to-fill-pages");
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            live.commit();
+        } finally {
+            live.setAutoCommit(true);
+        }
+    }
+
+    private static long visits(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM tblVisits")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void snapshotIsConsistentWhileTheLiveDatabaseKeepsChanging() throws Exception {
+        AtomicInteger steps = new AtomicInteger();
+        Snapshots.Info first = Snapshots.take(db, StorageProfile.defaults(), dir, "2024 Q3", fraction -> {
+            if (steps.incrementAndGet() == 1) {
+                try {
+                    insertVisits(10); // a write mid-copy neither blocks nor leaks into the snapshot
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        assertTrue(steps.get() > 1);
+        assertEquals("2024_Q3", first.label);
+        assertEquals(1, first.version);
+
+        Snapshots.Info second = Snapshots.take(db, StorageProfile.defaults(), dir, "2024 Q3", null);
+        assertEquals(2, second.version);
+        List<Snapshots.Info> all = Snapshots.list(dir);
+        assertEquals(List.of(first.file, second.file), List.of(all.get(0).file, all.get(1).file));
+
+        try (Connection snap = Snapshots.open(first, StorageProfile.defaults())) {
+            assertEquals(30_000, visits(snap));
+            try (Statement st = snap.createStatement(); ResultSet rs = st.executeQuery(
+                    "SELECT label, version FROM ids_snapshot_info")) {
+                assertTrue(rs.next());
+                assertEquals("2024_Q3", rs.getString(1));
+            }
+            assertThrows(SQLException.class, () -> {
+                try (Statement st = snap.createStatement()) {
+                    st.execute("DELETE FROM tblVisits");
+                }
+            });
+        }
+        try (Connection snap = Snapshots.open(second, StorageProfile.defaults())) {
+            assertEquals(30_010, visits(snap));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.ids;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SqlFunctionsTest {
+
+    private Connection conn;
+
+    @BeforeEach
+    public void open() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+        SqlFunctions.register(conn);
+    }
+
+    @AfterEach
+    public void close() throws SQLException {
+        conn.close();
+    }
+
+    private Object eval(String expr) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT " + expr)) {
+            rs.next();
+            return rs.getObject(1);
+        }
+    }
+
+    @Test
+    public void ageCountsBirthdaysNotCalendarYears() throws SQLException {
+        assertEquals(9, ((Number) eval("age_at('2010-06-15', '2020-06-14')")).intValue());
+        assertEquals(10, ((Number) eval("age_at('2010-06-15 00:00:00', '2020-06-15')")).intValue());
+        assertEquals(10, ((Number) eval("age_at('15/6/2010', '2020-12-31')")).intValue());
+        assertNull(eval("age_at('not a date', '2020-01-01')"));
+        assertNull(eval("age_at(NULL, 'now')"));
+
+        int expected = LocalDate.of(1990, 1, 1).until(LocalDate.now()).getYears();
+        assertEquals(expected, ((Number) eval("age_at('1990-01-01', 'now')")).intValue());
+    }
+
+    @Test
+    public void ageBandUsesNamedScheme() throws SQLException {
+        assertEquals("<1", eval("age_band('2020-03-01', '2020-12-01')"));
+        assertEquals("15-19", eval("age_band('2000-01-01', '2016-01-01', 'mer_fine')"));
+        assertEquals("15+", eval("age_band('2000-01-01', '2016-01-01', 'mer_coarse')"));
+        assertEquals(AgeBands.UNKNOWN_LABEL, eval("age_band('2030-01-01', '2020-01-01')"));
+    }
+
+    @Test
+    public void epochDayMatchesJulianDay() throws SQLException {
+        assertEquals(LocalDate.of(2024, 2, 29).toEpochDay(), ((Number) eval("epoch_day('2024-02-29T08:30:00')")).longValue());
+        assertEquals(0L, ((Number) eval("epoch_day('1970-01-01') - (julianday('1970-01-01') - 2440587.5)")).longValue());
+        assertNull(eval("epoch_day('')"));
+    }
+}
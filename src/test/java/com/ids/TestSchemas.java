@@ -0,0 +1,40 @@
+package com.ids;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/** Shared fixtures: the facility tables the query templates read, and listener-fed imports. */
+final class TestSchemas {
+
+    private TestSchemas() {
+    }
+
+    /** Creates tblPatients and tblVisits with the columns the indicator queries use. */
+    static void createPatientTables(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("CREATE TABLE tblPatients (PatientID TEXT, Sex TEXT, DateOfBirth TEXT,"
+                    + " DateConfirmedHIVPositive TEXT, ReferredFromID TEXT, hfr_code TEXT, source_mdb TEXT)");
+            st.execute("CREATE TABLE tblVisits (PatientID TEXT, VisitDate TEXT, ARVStatusCode INTEGER,"
+                    + " NowPregnant TEXT, NowBreastFeeding TEXT, hfr_code TEXT, source_mdb TEXT)");
+        }
+    }
+
+    /** An in-memory database with {@code listener}'s bookkeeping tables. */
+    static Connection inMemory(ImportListener listener) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+        listener.ensureTables(conn);
+        return conn;
+    }
+
+    /** Feeds {@code rows} of one table from facility {@code hfr} to {@code listener}, as an import would. */
+    static void feed(ImportListener listener, Connection conn, String table, List<String> columns, String hfr,
+            Iterable<String[]> rows) throws SQLException {
+        ImportListener.TableSink sink = listener.onTable(conn, table, columns, hfr);
+        for (String[] row : rows)
+            sink.accept(row);
+        sink.finish(conn);
+    }
+}
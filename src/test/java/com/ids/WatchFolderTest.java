@@ -0,0 +1,92 @@
+package com.ids;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WatchFolderTest {
+
+    @TempDir
+    Path dir;
+
+    private Connection conn;
+    private Path inbox;
+    private final List<WatchFolder.Change> changes = new ArrayList<>();
+    private WatchFolder watch;
+
+    @BeforeEach
+    public void open() throws Exception {
+        conn = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("converted.db"));
+        inbox = Files.createDirectory(dir.resolve("inbox"));
+        // Not started: the test drives the scans itself, with no quiet period
+        watch = new WatchFolder(inbox, () -> conn, () -> false, ImportProfile.catalogDefault(), changes::add, 0);
+    }
+
+    @AfterEach
+    public void close() throws SQLException {
+        conn.close();
+    }
+
+    private long patients() throws SQLException {
+        try (Statement st = conn.createStatement();
+                ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM tblPatients WHERE hfr_code = 'HF1'")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private void scan() throws Exception {
+        watch.rescan();
+        watch.pollOnce();
+    }
+
+    @Test
+    public void changedFileReplacesItsFacilityAndUnchangedFilesAreSkipped() throws Exception {
+        File hf1 = MdbRecordManagerTest.createFacilityMdb(inbox, "HF1", 5);
+        scan();
+        assertEquals(1, changes.size());
+        assertEquals(ImportJournal.DONE, changes.get(0).result.status);
+        assertEquals(5, patients());
+
+        scan();
+        assertEquals(1, changes.size(), "unchanged file is not re-imported");
+
+        // Only the timestamp moves: the checksum shows the content is the same
+        FileTime later = FileTime.fromMillis(Files.getLastModifiedTime(hf1.toPath()).toMillis() + 60_000);
+        Files.setLastModifiedTime(hf1.toPath(), later);
+        scan();
+        assertEquals(1, changes.size());
+
+        Files.delete(hf1.toPath());
+        MdbRecordManagerTest.createFacilityMdb(inbox, "HF1", 8);
+        Files.setLastModifiedTime(hf1.toPath(), FileTime.fromMillis(later.toMillis() + 60_000));
+        scan();
+        assertEquals(2, changes.size());
+        assertEquals(ImportJournal.DONE, changes.get(1).result.status);
+        assertEquals(8, patients(), "the facility is replaced, not appended to");
+    }
+
+    @Test
+    public void savedFolderRoundTrips() throws Exception {
+        assertNull(WatchFolder.savedFolder(dir));
+        WatchFolder.saveFolder(dir, inbox);
+        assertEquals(inbox.toAbsolutePath(), WatchFolder.savedFolder(dir));
+        WatchFolder.saveFolder(dir, null);
+        assertNull(WatchFolder.savedFolder(dir));
+    }
+}
@@ -33,7 +33,22 @@ setlocal
 set APP_DIR=%~dp0
 set JAVA="%APP_DIR%jre\bin\java.exe"
 set JAVAFX="%APP_DIR%javafx\lib"
-%JAVA% --module-path "%JAVAFX%" --add-modules javafx.controls,javafx.fxml -Xms256m -Xmx1024m -Dfile.encoding=UTF-8 -jar "%APP_DIR%app.jar"
+rem AppCDS: the first start after install/update dumps the loaded classes,
+rem later starts map them instead of loading and verifying app.jar again
+set "CDS_DIR=%LOCALAPPDATA%\IDS Analytics"
+set "CDS_FILE=%CDS_DIR%\app-cds.jsa"
+if not exist "%CDS_DIR%" mkdir "%CDS_DIR%"
+for %%F in ("%APP_DIR%app.jar") do set "JAR_STAMP=%%~zF %%~tF"
+set "OLD_STAMP="
+if exist "%CDS_DIR%\app-cds.stamp" set /p OLD_STAMP=<"%CDS_DIR%\app-cds.stamp"
+if not "%OLD_STAMP%"=="%JAR_STAMP%" if exist "%CDS_FILE%" del "%CDS_FILE%"
+if exist "%CDS_FILE%" (
+  set "CDS_OPT=-XX:SharedArchiveFile=%CDS_FILE%"
+) else (
+  set "CDS_OPT=-XX:ArchiveClassesAtExit=%CDS_FILE%"
+  > "%CDS_DIR%\app-cds.stamp" echo %JAR_STAMP%
+)
+%JAVA% "%CDS_OPT%" --module-path "%JAVAFX%" --add-modules javafx.controls,javafx.fxml -Xms256m -Xmx1024m -Dfile.encoding=UTF-8 -jar "%APP_DIR%app.jar"
 BAT
 else
   # Plain launcher
@@ -42,7 +57,22 @@ else
 setlocal
 set APP_DIR=%~dp0
 set JAVA="%APP_DIR%jre\bin\java.exe"
-%JAVA% -Xms256m -Xmx1024m -Dfile.encoding=UTF-8 -jar "%APP_DIR%app.jar"
+rem AppCDS: the first start after install/update dumps the loaded classes,
+rem later starts map them instead of loading and verifying app.jar again
+set "CDS_DIR=%LOCALAPPDATA%\IDS Analytics"
+set "CDS_FILE=%CDS_DIR%\app-cds.jsa"
+if not exist "%CDS_DIR%" mkdir "%CDS_DIR%"
+for %%F in ("%APP_DIR%app.jar") do set "JAR_STAMP=%%~zF %%~tF"
+set "OLD_STAMP="
+if exist "%CDS_DIR%\app-cds.stamp" set /p OLD_STAMP=<"%CDS_DIR%\app-cds.stamp"
+if not "%OLD_STAMP%"=="%JAR_STAMP%" if exist "%CDS_FILE%" del "%CDS_FILE%"
+if exist "%CDS_FILE%" (
+  set "CDS_OPT=-XX:SharedArchiveFile=%CDS_FILE%"
+) else (
+  set "CDS_OPT=-XX:ArchiveClassesAtExit=%CDS_FILE%"
+  > "%CDS_DIR%\app-cds.stamp" echo %JAR_STAMP%
+)
+%JAVA% "%CDS_OPT%" -Xms256m -Xmx1024m -Dfile.encoding=UTF-8 -jar "%APP_DIR%app.jar"
 BAT
 fi
 